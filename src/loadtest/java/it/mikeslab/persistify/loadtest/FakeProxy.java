@@ -0,0 +1,104 @@
+/*
+ *  Copyright (c) 2023, MikesLab
+ *  All rights reserved.
+ *
+ *  Redistribution and use in source and binary forms, with or without
+ *  modification, are permitted provided that the following conditions are met:
+ *  1. Redistributions of source code must retain the above copyright notice, this
+ *     list of conditions and the following disclaimer.
+ *  2. Redistributions in binary form must reproduce the above copyright notice,
+ *     this list of conditions and the following disclaimer in the documentation
+ *     and/or other materials provided with the distribution.
+ *  3. Neither the name of the copyright holder nor the names of its
+ *     contributors may be used to endorse or promote products derived from
+ *     this software without specific prior written permission.
+ *  4. Redistribution of this software in source or binary forms shall be free
+ *     of all charges or fees to the recipient of this software.
+ *
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ *  AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ *  IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ *  DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ *  FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ *  DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ *  SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ *  CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ *  OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ *  OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package it.mikeslab.persistify.loadtest;
+
+import net.md_5.bungee.api.config.ServerInfo;
+import net.md_5.bungee.api.connection.PendingConnection;
+import net.md_5.bungee.api.connection.ProxiedPlayer;
+import net.md_5.bungee.api.connection.Server;
+import net.md_5.bungee.api.plugin.Plugin;
+import sun.reflect.ReflectionFactory;
+
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Proxy;
+import java.util.Map;
+import java.util.UUID;
+
+/**
+ * Stand-ins for the BungeeCord objects the listeners read, backed by dynamic proxies.
+ * Only the methods used by Persistify answer, every other method returns null, zero or false.
+ */
+final class FakeProxy {
+
+    private static final Map<Class<?>, Object> DEFAULTS = Map.of(
+            boolean.class, false,
+            byte.class, (byte) 0,
+            short.class, (short) 0,
+            char.class, (char) 0,
+            int.class, 0,
+            long.class, 0L,
+            float.class, 0.0f,
+            double.class, 0.0);
+
+    private FakeProxy() {
+    }
+
+    static ProxiedPlayer player(String name, UUID uuid) {
+        return fake(ProxiedPlayer.class, Map.of("getName", name, "getUniqueId", uuid));
+    }
+
+    static PendingConnection connection(String name, UUID uuid) {
+        return fake(PendingConnection.class, Map.of("getName", name, "getUniqueId", uuid));
+    }
+
+    static Server server(String name) {
+        ServerInfo info = fake(ServerInfo.class, Map.of("getName", name));
+        return fake(Server.class, Map.of("getInfo", info));
+    }
+
+    /**
+     * Plugins can only be constructed by the BungeeCord plugin loader, so this one is allocated without running
+     * any constructor. It is only used as the owner of login intents.
+     */
+    static Plugin plugin() {
+        try {
+            Constructor<?> constructor = ReflectionFactory.getReflectionFactory()
+                    .newConstructorForSerialization(Plugin.class, Object.class.getDeclaredConstructor());
+            return (Plugin) constructor.newInstance();
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException("Unable to allocate the load test plugin", e);
+        }
+    }
+
+
+    private static <T> T fake(Class<T> type, Map<String, Object> answers) {
+        Object instance = Proxy.newProxyInstance(FakeProxy.class.getClassLoader(), new Class<?>[]{type}, (proxy, method, args) ->
+                switch (method.getName()) {
+                    case "equals" -> proxy == args[0];
+                    case "hashCode" -> System.identityHashCode(proxy);
+                    case "toString" -> "Fake" + type.getSimpleName() + answers;
+                    default -> answers.containsKey(method.getName())
+                            ? answers.get(method.getName())
+                            : DEFAULTS.get(method.getReturnType());
+                });
+        return type.cast(instance);
+    }
+
+}
@@ -0,0 +1,370 @@
+/*
+ *  Copyright (c) 2023, MikesLab
+ *  All rights reserved.
+ *
+ *  Redistribution and use in source and binary forms, with or without
+ *  modification, are permitted provided that the following conditions are met:
+ *  1. Redistributions of source code must retain the above copyright notice, this
+ *     list of conditions and the following disclaimer.
+ *  2. Redistributions in binary form must reproduce the above copyright notice,
+ *     this list of conditions and the following disclaimer in the documentation
+ *     and/or other materials provided with the distribution.
+ *  3. Neither the name of the copyright holder nor the names of its
+ *     contributors may be used to endorse or promote products derived from
+ *     this software without specific prior written permission.
+ *  4. Redistribution of this software in source or binary forms shall be free
+ *     of all charges or fees to the recipient of this software.
+ *
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ *  AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ *  IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ *  DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ *  FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ *  DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ *  SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ *  CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ *  OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ *  OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package it.mikeslab.persistify.loadtest;
+
+import com.google.gson.GsonBuilder;
+import com.google.gson.JsonObject;
+import it.mikeslab.persistify.api.APIManager;
+import it.mikeslab.persistify.coherence.CacheCoherence;
+import it.mikeslab.persistify.coherence.InProcessTransport;
+import it.mikeslab.persistify.level.ExperienceEngine;
+import it.mikeslab.persistify.level.LevelCurve;
+import it.mikeslab.persistify.listener.UserConnectedEvent;
+import it.mikeslab.persistify.listener.UserLoginEvent;
+import it.mikeslab.persistify.metrics.InstrumentedStorageHandler;
+import it.mikeslab.persistify.metrics.LatencyHistogram;
+import it.mikeslab.persistify.metrics.PersistifyMetrics;
+import it.mikeslab.persistify.object.User;
+import it.mikeslab.persistify.util.Leaderboard;
+import it.mikeslab.persistify.util.LevelCache;
+import it.mikeslab.persistify.util.LocalStorageHandler;
+import it.mikeslab.persistify.util.PersistenceExecutor;
+import it.mikeslab.persistify.util.SessionManager;
+import it.mikeslab.persistify.util.StorageHandler;
+import it.mikeslab.persistify.util.WriteBehindBuffer;
+import net.md_5.bungee.api.event.LoginEvent;
+import net.md_5.bungee.api.event.ServerConnectedEvent;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Proxy;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.stream.Stream;
+
+/**
+ * Reproduces a join storm: thousands of players connecting at once, as after a proxy restart.
+ * <p>
+ * Fake {@link LoginEvent}s are fired at {@link UserLoginEvent#onUserLogin} from several event threads at a configurable
+ * rate, each followed by a few {@link APIManager} calls, against the embedded local storage. Once the login intent
+ * completes, as the session of the player has been opened, a {@link ServerConnectedEvent} is fired at
+ * {@link UserConnectedEvent#onUserConnected} from an event loop thread, and the join completes with the registration. Throughput, tail latencies and queue depths are reported, and the process exits with status 1 if
+ * a configured threshold is exceeded, so that a release can be gated on it.
+ * <p>
+ * Settings are read from system properties prefixed with "loadtest.", see {@link Settings}.
+ */
+public final class JoinStormLoadTest {
+
+    private static final Logger LOGGER = Logger.getLogger("Persistify-LoadTest");
+
+    /**
+     * @param players the number of distinct players joining
+     * @param servers the number of servers the players are spread over
+     * @param rate the number of joins fired per second, 0 to fire them as fast as possible
+     * @param concurrency the number of event threads firing joins
+     * @param workers the number of persistence worker threads
+     * @param queueSize the size of the persistence queue
+     * @param apiCalls the number of API calls made after each join
+     * @param maxP99Millis the highest acceptable 99th percentile of the join latency, 0 to disable the check
+     * @param minThroughput the lowest acceptable number of registered joins per second, 0 to disable the check
+     * @param report the file the JSON report is written to
+     */
+    record Settings(int players, int servers, int rate, int concurrency, int workers, int queueSize, int apiCalls,
+                    long maxP99Millis, long minThroughput, String report) {
+
+        static Settings fromSystemProperties() {
+            return new Settings(
+                    Integer.getInteger("loadtest.players", 10_000),
+                    Integer.getInteger("loadtest.servers", 3),
+                    Integer.getInteger("loadtest.rate", 0),
+                    Integer.getInteger("loadtest.concurrency", 8),
+                    Integer.getInteger("loadtest.workers", 4),
+                    Integer.getInteger("loadtest.queue-size", 1024),
+                    Integer.getInteger("loadtest.api-calls", 3),
+                    Long.getLong("loadtest.max-p99-ms", 0),
+                    Long.getLong("loadtest.min-throughput", 0),
+                    System.getProperty("loadtest.report", "target/loadtest-report.json"));
+        }
+    }
+
+    private final Settings settings;
+
+    private final LatencyHistogram joinLatency = new LatencyHistogram();
+    private final LatencyHistogram loginLatency = new LatencyHistogram();
+    private final LatencyHistogram handlerLatency = new LatencyHistogram();
+    private final LatencyHistogram apiLatency = new LatencyHistogram();
+    private final Map<UUID, Long> dispatchedAt = new ConcurrentHashMap<>();
+    private final AtomicLong maxQueueDepth = new AtomicLong();
+    private final AtomicLong maxPendingWrites = new AtomicLong();
+    private final AtomicLong failures = new AtomicLong();
+
+    private CountDownLatch registered;
+
+    private JoinStormLoadTest(Settings settings) {
+        this.settings = settings;
+    }
+
+    public static void main(String[] args) throws Exception {
+        LOGGER.setLevel(Level.WARNING);
+
+        Settings settings = Settings.fromSystemProperties();
+        boolean passed = new JoinStormLoadTest(settings).run();
+        System.exit(passed ? 0 : 1);
+    }
+
+
+    private boolean run() throws Exception {
+        Path dataFolder = Files.createTempDirectory("persistify-loadtest");
+        PersistifyMetrics metrics = new PersistifyMetrics();
+        StorageHandler storage = timed(new LocalStorageHandler(dataFolder.resolve("storage.dat").toFile(), 3600, 1000.0, LOGGER));
+        StorageHandler dbHandler = new InstrumentedStorageHandler(storage, metrics);
+
+        PersistenceExecutor executor = new PersistenceExecutor(settings.workers(), settings.queueSize(), LOGGER);
+        WriteBehindBuffer writeBehindBuffer = new WriteBehindBuffer(dbHandler, 500, 1000, 10_000, LOGGER);
+        LevelCache levelCache = new LevelCache(settings.players() * (long) settings.servers(), 600);
+        Leaderboard leaderboard = new Leaderboard(dbHandler, false);
+        SessionManager sessionManager = new SessionManager(dbHandler, writeBehindBuffer);
+        ExperienceEngine experienceEngine = new ExperienceEngine(dbHandler, new LevelCurve(List.of(100, 250, 500, 1000), 1000), 1000, LOGGER);
+        CacheCoherence cacheCoherence = new CacheCoherence(levelCache);
+        cacheCoherence.start(new InProcessTransport());
+        APIManager apiManager = new APIManager(dbHandler, writeBehindBuffer, levelCache, executor, cacheCoherence, leaderboard,
+                sessionManager, experienceEngine, CompletableFuture.completedFuture(null));
+        UserLoginEvent loginListener = new UserLoginEvent(FakeProxy.plugin(), sessionManager, executor);
+        UserConnectedEvent connectListener = new UserConnectedEvent(dbHandler, executor, levelCache, leaderboard, sessionManager);
+        ExecutorService eventLoop = Executors.newFixedThreadPool(settings.concurrency());
+
+        ScheduledExecutorService sampler = Executors.newSingleThreadScheduledExecutor();
+        sampler.scheduleAtFixedRate(() -> {
+            maxQueueDepth.accumulateAndGet(executor.getQueueDepth(), Math::max);
+            maxPendingWrites.accumulateAndGet(writeBehindBuffer.getPendingCount(), Math::max);
+        }, 0, 10, TimeUnit.MILLISECONDS);
+
+        UUID[] uuids = playerUUIDs(settings.players());
+        registered = new CountDownLatch(uuids.length);
+
+        System.out.println("Join storm: " + settings);
+        long start = System.nanoTime();
+        fire(uuids, loginListener, connectListener, eventLoop, apiManager, start);
+        long dispatched = System.nanoTime();
+        boolean completed = registered.await(5, TimeUnit.MINUTES);
+        long end = System.nanoTime();
+
+        sampler.shutdown();
+        eventLoop.shutdown();
+        executor.shutdown(30, TimeUnit.SECONDS);
+        experienceEngine.close();
+        writeBehindBuffer.close();
+        cacheCoherence.close();
+        dbHandler.disconnect();
+        deleteFolder(dataFolder);
+
+        return report(completed, start, dispatched, end, metrics, executor.getRejectedCount());
+    }
+
+    private void fire(UUID[] uuids, UserLoginEvent loginListener, UserConnectedEvent connectListener, ExecutorService eventLoop,
+                      APIManager apiManager, long start) throws InterruptedException {
+        AtomicInteger next = new AtomicInteger();
+        long interval = settings.rate() > 0 ? TimeUnit.SECONDS.toNanos(1) / settings.rate() : 0;
+
+        List<Thread> threads = new ArrayList<>(settings.concurrency());
+        for (int t = 0; t < settings.concurrency(); t++) {
+            Thread thread = new Thread(() -> {
+                Random random = new Random();
+                int i;
+                while ((i = next.getAndIncrement()) < uuids.length) {
+                    long due = start + i * interval;
+                    long wait = due - System.nanoTime();
+                    if (wait > 0) {
+                        LockSupport.parkNanos(wait);
+                    }
+
+                    UUID uuid = uuids[i];
+                    String playerName = "Player" + i;
+                    String serverName = "server-" + (i % settings.servers());
+
+                    long dispatched = System.nanoTime();
+                    dispatchedAt.put(uuid, dispatched);
+                    LoginEvent login = new LoginEvent(FakeProxy.connection(playerName, uuid), (event, error) -> {
+                        loginLatency.record(System.nanoTime() - dispatched);
+                        // Like BungeeCord, the connection carries on on its event loop
+                        eventLoop.execute(() -> connect(connectListener, playerName, uuid, serverName));
+                    });
+
+                    long handlerStart = System.nanoTime();
+                    loginListener.onUserLogin(login);
+                    login.postCall();
+                    handlerLatency.record(System.nanoTime() - handlerStart);
+
+                    for (int call = 0; call < settings.apiCalls(); call++) {
+                        callApi(apiManager, call, serverName, uuids[random.nextInt(i + 1)]);
+                    }
+                }
+            }, "Load Test Event Thread #" + t);
+            thread.start();
+            threads.add(thread);
+        }
+
+        for (Thread thread : threads) {
+            thread.join();
+        }
+    }
+
+    private void connect(UserConnectedEvent listener, String playerName, UUID uuid, String serverName) {
+        ServerConnectedEvent event = new ServerConnectedEvent(FakeProxy.player(playerName, uuid), FakeProxy.server(serverName));
+        long handlerStart = System.nanoTime();
+        listener.onUserConnected(event);
+        handlerLatency.record(System.nanoTime() - handlerStart);
+    }
+
+    private void callApi(APIManager apiManager, int call, String serverName, UUID uuid) {
+        long start = System.nanoTime();
+        try {
+            switch (call % 3) {
+                case 0 -> apiManager.getPlayerLevel(serverName, uuid);
+                case 1 -> apiManager.setPlayerLevel(serverName, uuid, call);
+                default -> apiManager.addXp(serverName, uuid, 10);
+            }
+        } catch (RuntimeException e) {
+            failures.incrementAndGet();
+        }
+        apiLatency.record(System.nanoTime() - start);
+    }
+
+    /**
+     * Wraps the storage so that the completion of each registration is timed from the dispatch of its event.
+     */
+    private StorageHandler timed(StorageHandler storage) {
+        return (StorageHandler) Proxy.newProxyInstance(getClass().getClassLoader(), new Class<?>[]{StorageHandler.class}, (proxy, method, args) -> {
+            try {
+                Object result = method.invoke(storage, args);
+                if (method.getName().equals("registerUser")) {
+                    Long dispatched = dispatchedAt.remove(((User) args[0]).getPlayerUUID());
+                    if (dispatched != null) {
+                        joinLatency.record(System.nanoTime() - dispatched);
+                        registered.countDown();
+                    }
+                }
+                return result;
+            } catch (InvocationTargetException e) {
+                failures.incrementAndGet();
+                throw e.getCause();
+            }
+        });
+    }
+
+    private boolean report(boolean completed, long start, long dispatched, long end, PersistifyMetrics metrics,
+                           long rejected) throws IOException {
+        double seconds = Math.max(1, end - start) / 1e9;
+        long throughput = Math.round(joinLatency.getCount() / seconds);
+
+        JsonObject json = new JsonObject();
+        json.addProperty("players", settings.players());
+        json.addProperty("completed", completed);
+        json.addProperty("durationMs", TimeUnit.NANOSECONDS.toMillis(end - start));
+        json.addProperty("dispatchMs", TimeUnit.NANOSECONDS.toMillis(dispatched - start));
+        json.addProperty("throughputPerSecond", throughput);
+        json.add("joinLatencyUs", percentiles(joinLatency));
+        json.add("loginLatencyUs", percentiles(loginLatency));
+        json.add("handlerLatencyUs", percentiles(handlerLatency));
+        json.add("apiLatencyUs", percentiles(apiLatency));
+        json.addProperty("maxQueueDepth", maxQueueDepth.get());
+        json.addProperty("maxPendingWrites", maxPendingWrites.get());
+        json.addProperty("failures", failures.get());
+        json.addProperty("rejected", rejected);
+
+        String output = new GsonBuilder().setPrettyPrinting().create().toJson(json);
+        System.out.println(output);
+        metrics.describe().forEach(System.out::println);
+
+        Path report = Path.of(settings.report());
+        if (report.getParent() != null) {
+            Files.createDirectories(report.getParent());
+        }
+        Files.writeString(report, output, StandardCharsets.UTF_8);
+
+        List<String> violations = new ArrayList<>();
+        if (!completed) {
+            violations.add("only " + joinLatency.getCount() + " of " + settings.players() + " joins were registered");
+        }
+        long p99Millis = TimeUnit.MICROSECONDS.toMillis(joinLatency.getPercentile(99));
+        if (settings.maxP99Millis() > 0 && p99Millis > settings.maxP99Millis()) {
+            violations.add("join p99 of " + p99Millis + "ms exceeds " + settings.maxP99Millis() + "ms");
+        }
+        if (settings.minThroughput() > 0 && throughput < settings.minThroughput()) {
+            violations.add("throughput of " + throughput + "/s is below " + settings.minThroughput() + "/s");
+        }
+        if (failures.get() > 0) {
+            violations.add(failures.get() + " operation(s) failed");
+        }
+        if (rejected > 0) {
+            violations.add(rejected + " operation(s) rejected by the saturated persistence pipeline");
+        }
+
+        violations.forEach(violation -> System.out.println("FAILED: " + violation));
+        return violations.isEmpty();
+    }
+
+    private static JsonObject percentiles(LatencyHistogram histogram) {
+        JsonObject json = new JsonObject();
+        json.addProperty("count", histogram.getCount());
+        json.addProperty("p50", histogram.getPercentile(50));
+        json.addProperty("p99", histogram.getPercentile(99));
+        json.addProperty("p999", histogram.getPercentile(99.9));
+        json.addProperty("max", histogram.getMax());
+        return json;
+    }
+
+    private static UUID[] playerUUIDs(int count) {
+        // Seeded so that runs are reproducible
+        Random random = new Random(42L);
+        UUID[] uuids = new UUID[count];
+        for (int i = 0; i < count; i++) {
+            uuids[i] = new UUID(random.nextLong(), random.nextLong());
+        }
+        return uuids;
+    }
+
+    private static void deleteFolder(Path folder) throws IOException {
+        try (Stream<Path> paths = Files.walk(folder)) {
+            paths.sorted(Comparator.reverseOrder()).map(Path::toFile).forEach(File::delete);
+        }
+    }
+
+}
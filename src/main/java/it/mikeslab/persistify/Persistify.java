@@ -31,19 +31,82 @@ package it.mikeslab.persistify;
 
 import com.google.common.base.Stopwatch;
 import it.mikeslab.persistify.api.APIManager;
+import it.mikeslab.persistify.api.PlayerLevelUpEvent;
+import it.mikeslab.persistify.coherence.CacheCoherence;
+import it.mikeslab.persistify.coherence.ChangeStreamTransport;
+import it.mikeslab.persistify.coherence.InvalidationTransport;
+import it.mikeslab.persistify.coherence.PollingTransport;
+import it.mikeslab.persistify.command.PersistifyCommand;
+import it.mikeslab.persistify.level.ExperienceEngine;
+import it.mikeslab.persistify.level.LevelCurve;
+import it.mikeslab.persistify.level.LevelUp;
 import it.mikeslab.persistify.listener.UserConnectedEvent;
+import it.mikeslab.persistify.listener.UserDisconnectedEvent;
+import it.mikeslab.persistify.listener.UserLoginEvent;
+import it.mikeslab.persistify.metrics.InstrumentedStorageHandler;
+import it.mikeslab.persistify.metrics.MetricsReporter;
+import it.mikeslab.persistify.metrics.PersistifyMetrics;
+import it.mikeslab.persistify.object.UserKey;
+import it.mikeslab.persistify.util.CircuitBreaker;
 import it.mikeslab.persistify.util.ConfigHandler;
+import it.mikeslab.persistify.util.ConfigWatcher;
+import it.mikeslab.persistify.util.DeferredStorageHandler;
+import it.mikeslab.persistify.util.Leaderboard;
+import it.mikeslab.persistify.util.LevelCache;
+import it.mikeslab.persistify.util.LocalStorageHandler;
+import it.mikeslab.persistify.util.MongoConnectionSettings;
 import it.mikeslab.persistify.util.MongoDBHandler;
+import it.mikeslab.persistify.util.PersistenceExecutor;
+import it.mikeslab.persistify.util.ResilientStorageHandler;
+import it.mikeslab.persistify.util.SessionManager;
+import it.mikeslab.persistify.util.StorageHandler;
+import it.mikeslab.persistify.util.StorageUnavailableException;
+import it.mikeslab.persistify.util.WriteBehindBuffer;
+import it.mikeslab.persistify.util.WriteOutbox;
 import lombok.Getter;
+import net.md_5.bungee.api.connection.ProxiedPlayer;
 import net.md_5.bungee.api.plugin.Plugin;
+import net.md_5.bungee.api.scheduler.ScheduledTask;
 import net.md_5.bungee.config.Configuration;
 
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+import java.util.Objects;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
 
 public final class Persistify extends Plugin {
+    private static final List<String> RESTART_REQUIRED = List.of(
+            "storage", "persistence.queue-size", "leaderboard.in-memory",
+            "degraded-mode.memory-capacity", "degraded-mode.max-spilled", "degraded-mode.replay-interval", "degraded-mode.replay-batch-size",
+            "local-storage.file", "local-storage.compaction-interval", "local-storage.compaction-ratio");
+    // Logins complete well within a minute, a session older than that without a connected player is stale
+    private static final long STALE_SESSION_GRACE = TimeUnit.MINUTES.toMillis(1);
+
     @Getter private static Persistify instance;
     @Getter private APIManager apiManager;
-    private MongoDBHandler dbHandler;
+    @Getter private StorageHandler dbHandler;
+    @Getter private volatile MongoDBHandler mongoDBHandler;
+    private DeferredStorageHandler deferredStorageHandler;
+    private ResilientStorageHandler resilientStorageHandler;
+    private CircuitBreaker circuitBreaker;
+    private CompletableFuture<Void> storageReady;
+    private PersistenceExecutor persistenceExecutor;
+    @Getter private WriteBehindBuffer writeBehindBuffer;
+    @Getter private LevelCache levelCache;
+    @Getter private CacheCoherence cacheCoherence;
+    @Getter private Leaderboard leaderboard;
+    @Getter private SessionManager sessionManager;
+    @Getter private ExperienceEngine experienceEngine;
+    @Getter private PersistifyMetrics metrics;
+    private ScheduledTask archivingTask;
+    private ScheduledTask metricsDumpTask;
+    private ConfigWatcher configWatcher;
+    private final Object reconnectLock = new Object();
 
     @Override
     public void onEnable() {
@@ -54,34 +117,430 @@ public final class Persistify extends Plugin {
         Stopwatch stopwatch = Stopwatch.createStarted();
 
         new ConfigHandler().loadConfig();
+        metrics = new PersistifyMetrics();
         initDbHandler();
+        initPersistenceExecutor();
+        initApiManager();
         registerListeners();
+        registerCommands();
+        initMetrics();
+        watchConfig(ConfigHandler.getConfig());
 
-        stopwatch.stop();
         getLogger().info("Plugin enabled in " + stopwatch.elapsed(TimeUnit.MILLISECONDS) + "ms");
         getLogger().info("===== Persistify =====");
+
+        startStorage(stopwatch);
     }
 
     @Override
     public void onDisable() {
-        dbHandler.disconnect();
+        this.getProxy().getPluginManager().unregisterListeners(this);
+        if (configWatcher != null) {
+            configWatcher.close();
+        }
+
+        long shutdownTimeout = ConfigHandler.getConfig().getLong("persistence.shutdown-timeout", 10);
+        persistenceExecutor.shutdown(shutdownTimeout, TimeUnit.SECONDS);
+
+        // Each step runs even if a previous one failed, e.g. because the storage is unavailable
+        shutdownStep("write the experience gains", experienceEngine::close);
+        shutdownStep("write the buffered levels", writeBehindBuffer::close);
+        shutdownStep("save the data of the connected players", () -> {
+            int unsaved = sessionManager.closeAll();
+            if (unsaved > 0) {
+                this.getLogger().severe("Unable to save the data of " + unsaved + " player(s), their latest changes are lost.");
+            }
+        });
+        shutdownStep("stop the cache coherence", cacheCoherence::close);
+        shutdownStep("disconnect from the storage", dbHandler::disconnect);
     }
 
 
+    /**
+     * Reads 'config.yml' again and applies it without restarting the proxy. Tunables are applied right away,
+     * and changed MongoDB connection settings reconnect in the background.
+     *
+     * @throws IOException if the file cannot be read, in which case the current configuration is kept
+     */
+    public synchronized void reload() throws IOException {
+        Configuration previous = new ConfigHandler().reloadConfig();
+        Configuration config = ConfigHandler.getConfig();
+
+        persistenceExecutor.setThreads(config.getInt("persistence.threads", 4));
+        writeBehindBuffer.reconfigure(
+                config.getInt("write-behind.flush-size", 500),
+                positiveInterval(config, "write-behind.flush-interval", 1000),
+                config.getInt("write-behind.max-buffered", 10000));
+        levelCache.reconfigure(config.getLong("cache.maximum-size", 10000), config.getLong("cache.expire-after-access", 600));
+        experienceEngine.reconfigure(levelCurve(config), positiveInterval(config, "levels.flush-interval", 1000));
+        if (circuitBreaker != null) {
+            circuitBreaker.reconfigure(
+                    config.getInt("circuit-breaker.failure-threshold", 5),
+                    config.getLong("circuit-breaker.open-duration", 10000));
+        }
+        scheduleMetricsDump(config);
+        watchConfig(config);
+
+        if (storageReady.isDone()) {
+            scheduleArchiving(config);
+            if (!Objects.equals(previous.get("coherence.mode"), config.get("coherence.mode"))
+                    || !Objects.equals(previous.get("coherence.poll-interval"), config.get("coherence.poll-interval"))) {
+                restartCoherence(config);
+            }
+        }
+
+        if (mongoDBHandler != null) {
+            MongoConnectionSettings settings = MongoConnectionSettings.fromConfig(config);
+            if (!settings.equals(mongoDBHandler.getConnectionSettings())) {
+                this.getProxy().getScheduler().runAsync(this, () -> reconnect(settings));
+            }
+        }
+
+        for (String key : RESTART_REQUIRED) {
+            if (!Objects.equals(previous.get(key), config.get(key))) {
+                getLogger().warning("The change of '" + key + "' will only be applied after a restart.");
+            }
+        }
+        getLogger().info("Configuration reloaded.");
+    }
+
     private void registerListeners() {
-        this.getProxy().getPluginManager().registerListener(this, new UserConnectedEvent(dbHandler));
+        this.getProxy().getPluginManager().registerListener(this, new UserLoginEvent(this, sessionManager, persistenceExecutor));
+        this.getProxy().getPluginManager().registerListener(this, new UserConnectedEvent(dbHandler, persistenceExecutor, levelCache, leaderboard, sessionManager));
+        this.getProxy().getPluginManager().registerListener(this, new UserDisconnectedEvent(levelCache, sessionManager, writeBehindBuffer, persistenceExecutor));
+    }
+
+    private void registerCommands() {
+        this.getProxy().getPluginManager().registerCommand(this, new PersistifyCommand(this));
     }
 
     private void initDbHandler() {
         Configuration config = ConfigHandler.getConfig();
 
-        String connectionString = config.getString("connection-string");
-        String database = config.getString("database");
-        String collection = config.getString("collection");
+        String storage = config.getString("storage", "mongodb");
+
+        StorageHandler storageHandler;
+        if (storage.equalsIgnoreCase("local")) {
+            File file = new File(getDataFolder(), config.getString("local-storage.file", "storage.dat"));
+            long compactionInterval = config.getLong("local-storage.compaction-interval", 300);
+            double compactionRatio = config.getDouble("local-storage.compaction-ratio", 2.0);
+
+            storageHandler = new LocalStorageHandler(file, compactionInterval, compactionRatio, getLogger());
+            storageReady = CompletableFuture.completedFuture(null);
+        } else {
+            mongoDBHandler = new MongoDBHandler(MongoConnectionSettings.fromConfig(config), metrics);
+            deferredStorageHandler = new DeferredStorageHandler(mongoDBHandler, mongoDBHandler::bootstrap,
+                    config.getLong("mongodb.bootstrap-retry", 5000), getLogger());
+            storageReady = deferredStorageHandler.whenReady();
+
+            circuitBreaker = new CircuitBreaker(
+                    config.getInt("circuit-breaker.failure-threshold", 5),
+                    config.getLong("circuit-breaker.open-duration", 10000));
+            WriteOutbox outbox = new WriteOutbox(
+                    new File(getDataFolder(), "outbox"),
+                    config.getInt("degraded-mode.memory-capacity", 10000),
+                    config.getLong("degraded-mode.max-spilled", 1000000),
+                    getLogger());
+
+            resilientStorageHandler = new ResilientStorageHandler(deferredStorageHandler, circuitBreaker, outbox,
+                    config.getLong("degraded-mode.replay-interval", 2000),
+                    config.getInt("degraded-mode.replay-batch-size", 500),
+                    getLogger());
+            storageHandler = resilientStorageHandler;
+        }
+
+        dbHandler = new InstrumentedStorageHandler(storageHandler, metrics);
+    }
+
+    private void initPersistenceExecutor() {
+        Configuration config = ConfigHandler.getConfig();
+
+        int threads = config.getInt("persistence.threads", 4);
+        int queueSize = config.getInt("persistence.queue-size", 1024);
+
+        persistenceExecutor = new PersistenceExecutor(threads, queueSize, getLogger());
+    }
+
+    private void initApiManager() {
+        Configuration config = ConfigHandler.getConfig();
+
+        int flushSize = config.getInt("write-behind.flush-size", 500);
+        long flushInterval = positiveInterval(config, "write-behind.flush-interval", 1000);
+        int maxBuffered = config.getInt("write-behind.max-buffered", 10000);
+
+        long cacheSize = config.getLong("cache.maximum-size", 10000);
+        long cacheExpiry = config.getLong("cache.expire-after-access", 600);
 
-        dbHandler = new MongoDBHandler(connectionString, database, collection);
+        writeBehindBuffer = new WriteBehindBuffer(dbHandler, flushSize, flushInterval, maxBuffered, getLogger());
+        levelCache = new LevelCache(cacheSize, cacheExpiry);
+        leaderboard = new Leaderboard(dbHandler, config.getBoolean("leaderboard.in-memory", false));
+        sessionManager = new SessionManager(dbHandler, writeBehindBuffer);
+        long dataRetryInterval = config.getLong("degraded-mode.replay-interval", 2000);
+        this.getProxy().getScheduler().schedule(this, sessionManager::saveUnsaved, dataRetryInterval, dataRetryInterval, TimeUnit.MILLISECONDS);
+        // Logins which are cancelled or never complete leave a session behind
+        this.getProxy().getScheduler().schedule(this,
+                () -> sessionManager.closeStale(playerUUID -> getProxy().getPlayer(playerUUID) != null, STALE_SESSION_GRACE),
+                STALE_SESSION_GRACE, STALE_SESSION_GRACE, TimeUnit.MILLISECONDS);
+        cacheCoherence = new CacheCoherence(levelCache);
+        cacheCoherence.addListener(change -> leaderboard.update(change.key(), null, change.level()));
+        cacheCoherence.addListener(change -> sessionManager.update(change.key(), change.level()));
+        experienceEngine = new ExperienceEngine(dbHandler, levelCurve(config), positiveInterval(config, "levels.flush-interval", 1000), getLogger());
+        experienceEngine.addListener(this::onLevelUp);
+        apiManager = new APIManager(dbHandler, writeBehindBuffer, levelCache, persistenceExecutor, cacheCoherence, leaderboard,
+                sessionManager, experienceEngine, storageReady);
     }
 
+    /**
+     * Connects to the storage in the background. Until it is ready, reads fail fast and writes are queued.
+     */
+    private void startStorage(Stopwatch stopwatch) {
+        storageReady.thenRunAsync(() -> onStorageReady(stopwatch), task -> getProxy().getScheduler().runAsync(this, task))
+                .exceptionally(throwable -> {
+                    getLogger().log(Level.SEVERE, "Unable to complete the startup of the storage", throwable);
+                    return null;
+                });
+
+        if (deferredStorageHandler != null) {
+            deferredStorageHandler.start();
+        }
+    }
+
+    private void onStorageReady(Stopwatch stopwatch) {
+        // Writes queued while connecting can be replayed right away
+        if (circuitBreaker != null) {
+            circuitBreaker.recordSuccess();
+        }
+        cacheCoherence.start(createInvalidationTransport(ConfigHandler.getConfig()));
+        scheduleArchiving(ConfigHandler.getConfig());
+
+        stopwatch.stop();
+        getLogger().info("Storage ready in " + stopwatch.elapsed(TimeUnit.MILLISECONDS) + "ms");
+    }
+
+    /**
+     * Connects with new settings and switches to the new connection once it works, keeping the current one otherwise.
+     * The operations in flight complete on the current connection before it is closed.
+     */
+    private void reconnect(MongoConnectionSettings settings) {
+        synchronized (reconnectLock) {
+            if (settings.equals(mongoDBHandler.getConnectionSettings())) {
+                return;
+            }
+
+            getLogger().info("MongoDB connection settings changed, connecting with the new ones...");
+            MongoDBHandler next = new MongoDBHandler(settings, metrics);
+            try {
+                next.bootstrap();
+            } catch (RuntimeException e) {
+                next.disconnect();
+                getLogger().log(Level.SEVERE, "Unable to connect with the new MongoDB settings, keeping the current connection", e);
+                return;
+            }
+
+            // If the storage was not ready yet, switching makes it ready and the usual startup follows
+            boolean wasReady = storageReady.isDone();
+            if (wasReady) {
+                // Sessions hold data read through the current connection, which is saved before switching
+                int unsaved = sessionManager.closeAll();
+                if (unsaved > 0) {
+                    getLogger().warning("Unable to save the data of " + unsaved + " player(s) before switching, it is saved with the new connection.");
+                }
+            }
+            mongoDBHandler = next;
+            deferredStorageHandler.replace(next);
 
+            if (wasReady) {
+                circuitBreaker.recordSuccess();
+                // The new connection may point to other data
+                levelCache.clear();
+                leaderboard.clear();
+                restartCoherence(ConfigHandler.getConfig());
+                reopenSessions();
+            }
+            getLogger().info("Switched to the new MongoDB connection.");
+        }
+    }
+
+    private void reopenSessions() {
+        for (ProxiedPlayer player : getProxy().getPlayers()) {
+            UUID playerUUID = player.getUniqueId();
+            try {
+                persistenceExecutor.execute(() -> {
+                    try {
+                        sessionManager.open(playerUUID);
+                    } catch (StorageUnavailableException e) {
+                        // Like on login, the player keeps playing without a session
+                    }
+                });
+            } catch (RejectedExecutionException e) {
+                // Same as above
+            }
+        }
+    }
+
+    private void restartCoherence(Configuration config) {
+        cacheCoherence.close();
+        cacheCoherence.start(createInvalidationTransport(config));
+    }
+
+    private LevelCurve levelCurve(Configuration config) {
+        return new LevelCurve(config.getLongList("levels.thresholds"), config.getLong("levels.increment", 0));
+    }
+
+    private void watchConfig(Configuration config) {
+        boolean watch = config.getBoolean("reload.watch-file", false);
+        if (watch == (configWatcher != null)) {
+            return;
+        }
+
+        if (!watch) {
+            configWatcher.close();
+            configWatcher = null;
+            return;
+        }
+
+        try {
+            configWatcher = new ConfigWatcher(new File(getDataFolder(), "config.yml").toPath(), () -> {
+                try {
+                    reload();
+                } catch (IOException e) {
+                    getLogger().log(Level.WARNING, "Unable to reload 'config.yml', keeping the current configuration", e);
+                }
+            }, getLogger());
+        } catch (IOException e) {
+            getLogger().log(Level.WARNING, "Unable to watch 'config.yml' for changes", e);
+        }
+    }
+
+    private void onLevelUp(LevelUp levelUp) {
+        UserKey key = levelUp.key();
+        levelCache.refresh(key, levelUp.level());
+        sessionManager.update(key, levelUp.level());
+        leaderboard.update(key, null, levelUp.level());
+        cacheCoherence.publish(key, levelUp.level());
+
+        this.getProxy().getPluginManager().callEvent(
+                new PlayerLevelUpEvent(key.serverName(), key.playerUUID(), levelUp.previousLevel(), levelUp.level()));
+    }
+
+    private void scheduleArchiving(Configuration config) {
+        if (archivingTask != null) {
+            archivingTask.cancel();
+            archivingTask = null;
+        }
+
+        long maxIdleDays = config.getLong("archive.max-idle-days", 0);
+        if (mongoDBHandler == null || maxIdleDays <= 0) {
+            return;
+        }
+
+        long maxIdle = TimeUnit.DAYS.toMillis(maxIdleDays);
+        long interval = config.getLong("archive.interval", 60);
+        int batchSize = config.getInt("archive.batch-size", 500);
+        getLogger().info("Archiving the players idle for more than " + maxIdleDays + " day(s) every " + interval + " minute(s).");
+
+        archivingTask = this.getProxy().getScheduler().schedule(this, () -> {
+            try {
+                long archived = mongoDBHandler.archiveIdle(maxIdle, batchSize, uuid -> getProxy().getPlayer(uuid) != null);
+                if (archived > 0) {
+                    getLogger().info("Archived " + archived + " idle player document(s).");
+                }
+            } catch (RuntimeException e) {
+                getLogger().log(Level.WARNING, "Unable to archive the idle players", e);
+            }
+        }, interval, interval, TimeUnit.MINUTES);
+    }
+
+    private InvalidationTransport createInvalidationTransport(Configuration config) {
+        String mode = config.getString("coherence.mode", "auto").toLowerCase();
+
+        // A local storage is never shared with other proxies
+        if (mongoDBHandler == null || mode.equals("none")) {
+            return listener -> {};
+        }
+
+        boolean changeStreams = switch (mode) {
+            case "change-stream" -> true;
+            case "polling" -> false;
+            default -> mongoDBHandler.supportsChangeStreams();
+        };
+
+        if (changeStreams) {
+            getLogger().info("Keeping cached levels coherent through MongoDB change streams.");
+            return new ChangeStreamTransport(mongoDBHandler, getLogger());
+        }
+
+        // Only online players are polled, so that idle entries can still expire
+        long pollInterval = config.getLong("coherence.poll-interval", 5);
+        getLogger().info("Keeping cached levels coherent by polling every " + pollInterval + "s.");
+        return new PollingTransport(dbHandler, () -> levelCache.keys().stream()
+                .filter(key -> getProxy().getPlayer(key.playerUUID()) != null)
+                .toList(), key -> writeBehindBuffer.getPendingLevel(key) != null, pollInterval, getLogger());
+    }
+
+    private void initMetrics() {
+        Configuration config = ConfigHandler.getConfig();
+
+        metrics.gauge("persistence.queue-depth", persistenceExecutor::getQueueDepth);
+        metrics.gauge("persistence.active", persistenceExecutor::getActiveCount);
+        metrics.gauge("persistence.rejected", persistenceExecutor::getRejectedCount);
+        metrics.gauge("write-behind.pending", writeBehindBuffer::getPendingCount);
+        metrics.gauge("write-behind.flushes", writeBehindBuffer::getFlushCount);
+        metrics.gauge("write-behind.last-batch-size", writeBehindBuffer::getLastBatchSize);
+        metrics.gauge("write-behind.last-flush-ms", writeBehindBuffer::getLastFlushMillis);
+        metrics.gauge("write-behind.max-flush-ms", writeBehindBuffer::getMaxFlushMillis);
+        metrics.gauge("experience.pending", experienceEngine::getPendingCount);
+        metrics.gauge("cache.size", levelCache::size);
+        metrics.gauge("sessions", sessionManager::size);
+        metrics.gauge("sessions.unsaved", sessionManager::getUnsavedCount);
+        metrics.gauge("cache.hits", () -> levelCache.getStats().hitCount());
+        metrics.gauge("cache.misses", () -> levelCache.getStats().missCount());
+        metrics.gauge("cache.evictions", () -> levelCache.getStats().evictionCount());
+        metrics.gauge("coherence.refreshes", cacheCoherence::getRefreshes);
+        metrics.gauge("storage.ready", () -> storageReady.isDone() ? 1 : 0);
+        if (mongoDBHandler != null) {
+            metrics.gauge("archive.archived", () -> mongoDBHandler.getArchivedCount());
+            metrics.gauge("archive.rehydrated", () -> mongoDBHandler.getRehydratedCount());
+        }
+        if (resilientStorageHandler != null) {
+            metrics.gauge("storage.circuit-open", () -> resilientStorageHandler.getState() == CircuitBreaker.State.CLOSED ? 0 : 1);
+            metrics.gauge("storage.queued-writes", resilientStorageHandler::getQueuedWrites);
+            metrics.gauge("storage.spilled-writes", resilientStorageHandler::getSpilledWrites);
+            metrics.gauge("storage.dropped-writes", resilientStorageHandler::getDroppedWrites);
+        }
+
+        scheduleMetricsDump(config);
+    }
+
+    private void scheduleMetricsDump(Configuration config) {
+        if (metricsDumpTask != null) {
+            metricsDumpTask.cancel();
+            metricsDumpTask = null;
+        }
+
+        long dumpInterval = config.getLong("metrics.dump-interval", 0);
+        if (dumpInterval > 0) {
+            String format = config.getString("metrics.dump-format", "log");
+            MetricsReporter reporter = new MetricsReporter(metrics, format, new File(getDataFolder(), "metrics.json"), getLogger());
+            metricsDumpTask = this.getProxy().getScheduler().schedule(this, reporter, dumpInterval, dumpInterval, TimeUnit.SECONDS);
+        }
+    }
+
+    private long positiveInterval(Configuration config, String path, long defaultValue) {
+        long interval = config.getLong(path, defaultValue);
+        if (interval > 0) {
+            return interval;
+        }
+        getLogger().warning("'" + path + "' must be positive, using " + defaultValue + " instead.");
+        return defaultValue;
+    }
+
+    private void shutdownStep(String description, Runnable step) {
+        try {
+            step.run();
+        } catch (RuntimeException e) {
+            this.getLogger().log(Level.SEVERE, "Unable to " + description + " while disabling", e);
+        }
+    }
 
 }
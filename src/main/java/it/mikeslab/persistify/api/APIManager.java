@@ -29,27 +29,97 @@
 
 package it.mikeslab.persistify.api;
 
-import it.mikeslab.persistify.util.MongoDBHandler;
+import it.mikeslab.persistify.coherence.CacheCoherence;
+import it.mikeslab.persistify.data.PlayerData;
+import it.mikeslab.persistify.level.ExperienceEngine;
+import it.mikeslab.persistify.object.User;
+import it.mikeslab.persistify.object.UserKey;
+import it.mikeslab.persistify.util.Leaderboard;
+import it.mikeslab.persistify.util.LevelCache;
+import it.mikeslab.persistify.util.PersistenceExecutor;
+import it.mikeslab.persistify.util.SessionManager;
+import it.mikeslab.persistify.util.StorageHandler;
+import it.mikeslab.persistify.util.StorageUnavailableException;
+import it.mikeslab.persistify.util.WriteBehindBuffer;
 
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.function.Supplier;
 
 public class APIManager {
 
-    private final MongoDBHandler mongoDBHandler;
+    private final StorageHandler storageHandler;
+    private final WriteBehindBuffer writeBehindBuffer;
+    private final LevelCache levelCache;
+    private final PersistenceExecutor executor;
+    private final CacheCoherence cacheCoherence;
+    private final Leaderboard leaderboard;
+    private final SessionManager sessionManager;
+    private final ExperienceEngine experienceEngine;
+    private final CompletableFuture<Void> ready;
 
-    public APIManager(MongoDBHandler mongoDBHandler) {
-        this.mongoDBHandler = mongoDBHandler;
+    public APIManager(StorageHandler storageHandler, WriteBehindBuffer writeBehindBuffer, LevelCache levelCache,
+                      PersistenceExecutor executor, CacheCoherence cacheCoherence, Leaderboard leaderboard,
+                      SessionManager sessionManager, ExperienceEngine experienceEngine, CompletableFuture<Void> ready) {
+        this.storageHandler = storageHandler;
+        this.writeBehindBuffer = writeBehindBuffer;
+        this.levelCache = levelCache;
+        this.executor = executor;
+        this.cacheCoherence = cacheCoherence;
+        this.leaderboard = leaderboard;
+        this.sessionManager = sessionManager;
+        this.experienceEngine = experienceEngine;
+        this.ready = ready;
+    }
+
+    /**
+     * Checks whether the storage is ready. Until then reads fail with a {@link StorageUnavailableException}
+     * and writes are queued.
+     *
+     * @return true if the storage is ready
+     */
+    public boolean isReady() {
+        return ready.isDone() && !ready.isCompletedExceptionally();
+    }
+
+    /**
+     * Gets a future completed once the storage is ready.
+     *
+     * @return the future, already completed if the storage is ready
+     */
+    public CompletableFuture<Void> whenReady() {
+        return ready.thenApply(ignored -> null);
     }
 
     /**
      * Sets the level of the specified player on the specified server.
+     * The update is buffered and written to the database in the background.
      *
      * @param serverName the name of the server the player is on
      * @param playerUUID the UUID of the player whose level to set
      * @param level      the level to set for the player
      */
     public void setPlayerLevel(String serverName, UUID playerUUID, int level) {
-        mongoDBHandler.setLevelByUUID(serverName, playerUUID, level);
+        UserKey key = new UserKey(serverName, playerUUID);
+        writeBehindBuffer.setLevel(key, level);
+        onLevelSet(key, level);
+    }
+
+    /**
+     * Sets the levels of several players on the specified server.
+     * The updates are buffered and written to the database in the background.
+     *
+     * @param serverName the name of the server the players are on
+     * @param levels     the levels to set, keyed by player UUID
+     */
+    public void setPlayerLevels(String serverName, Map<UUID, Integer> levels) {
+        levels.forEach((playerUUID, level) -> setPlayerLevel(serverName, playerUUID, level));
     }
 
     /**
@@ -58,9 +128,296 @@ public class APIManager {
      * @param serverName the name of the server the player is on
      * @param playerUUID the UUID of the player to get the level for
      * @return the player's level, or -1 if the player was not found in the database
+     * @throws StorageUnavailableException if the level is not cached and the database is unreachable
      */
     public int getPlayerLevel(String serverName, UUID playerUUID) {
-        return mongoDBHandler.getLevelByUUID(serverName, playerUUID);
+        UserKey key = new UserKey(serverName, playerUUID);
+
+        Integer localLevel = getLocalLevel(key);
+        if (localLevel != null) {
+            return localLevel;
+        }
+
+        int level = storageHandler.getLevelByUUID(serverName, playerUUID);
+        if (level != -1) {
+            levelCache.warm(key, level);
+        }
+        return level;
+    }
+
+    /**
+     * Gets the levels of several players on the specified server.
+     * Levels which are not known locally are retrieved with a single database query.
+     *
+     * @param serverName  the name of the server the players are on
+     * @param playerUUIDs the UUIDs of the players to get the levels for
+     * @return the players' levels keyed by UUID, -1 for the players not found in the database
+     */
+    public Map<UUID, Integer> getPlayerLevels(String serverName, Collection<UUID> playerUUIDs) {
+        Map<UUID, Integer> levels = new HashMap<>();
+        List<UUID> missing = new ArrayList<>();
+
+        for (UUID playerUUID : playerUUIDs) {
+            Integer localLevel = getLocalLevel(new UserKey(serverName, playerUUID));
+            if (localLevel != null) {
+                levels.put(playerUUID, localLevel);
+            } else {
+                missing.add(playerUUID);
+            }
+        }
+
+        if (!missing.isEmpty()) {
+            Map<UUID, Integer> storedLevels = storageHandler.getLevels(serverName, missing);
+            for (UUID playerUUID : missing) {
+                int level = storedLevels.getOrDefault(playerUUID, -1);
+                if (level != -1) {
+                    levelCache.warm(new UserKey(serverName, playerUUID), level);
+                }
+                levels.put(playerUUID, level);
+            }
+        }
+        return levels;
+    }
+
+    /**
+     * Asynchronously sets the level of the specified player on the specified server.
+     *
+     * @param serverName the name of the server the player is on
+     * @param playerUUID the UUID of the player whose level to set
+     * @param level      the level to set for the player
+     * @return a future completed once the level has been written to the database by the next flush,
+     *         or queued to be written later if the database is unreachable
+     */
+    public CompletableFuture<Void> setPlayerLevelAsync(String serverName, UUID playerUUID, int level) {
+        UserKey key = new UserKey(serverName, playerUUID);
+        CompletableFuture<Void> written = writeBehindBuffer.setLevelAsync(key, level);
+        onLevelSet(key, level);
+        return written;
+    }
+
+    /**
+     * Asynchronously sets the levels of several players on the specified server with a single bulk write.
+     *
+     * @param serverName the name of the server the players are on
+     * @param levels     the levels to set, keyed by player UUID
+     * @return a future completed once the levels have been written to the database by the next flush,
+     *         or queued to be written later if the database is unreachable
+     */
+    public CompletableFuture<Void> setPlayerLevelsAsync(String serverName, Map<UUID, Integer> levels) {
+        List<CompletableFuture<Void>> written = new ArrayList<>(levels.size());
+        levels.forEach((playerUUID, level) -> written.add(setPlayerLevelAsync(serverName, playerUUID, level)));
+        return CompletableFuture.allOf(written.toArray(CompletableFuture[]::new));
+    }
+
+    /**
+     * Asynchronously gets the level of the specified player on the specified server.
+     *
+     * @param serverName the name of the server the player is on
+     * @param playerUUID the UUID of the player to get the level for
+     * @return a future completed with the player's level, or -1 if the player was not found in the database
+     */
+    public CompletableFuture<Integer> getPlayerLevelAsync(String serverName, UUID playerUUID) {
+        Integer localLevel = getLocalLevel(new UserKey(serverName, playerUUID));
+        if (localLevel != null) {
+            return CompletableFuture.completedFuture(localLevel);
+        }
+        return supplyAsync(() -> getPlayerLevel(serverName, playerUUID));
+    }
+
+    /**
+     * Asynchronously gets the levels of several players on the specified server with a single database query.
+     *
+     * @param serverName  the name of the server the players are on
+     * @param playerUUIDs the UUIDs of the players to get the levels for
+     * @return a future completed with the players' levels keyed by UUID, -1 for the players not found in the database
+     */
+    public CompletableFuture<Map<UUID, Integer>> getPlayerLevelsAsync(String serverName, Collection<UUID> playerUUIDs) {
+        return supplyAsync(() -> getPlayerLevels(serverName, playerUUIDs));
+    }
+
+    /**
+     * Gets the players with the highest levels on the specified server.
+     *
+     * @param serverName the name of the server
+     * @param limit      the maximum number of players to return
+     * @return the players, highest level first
+     */
+    public List<User> getTopPlayers(String serverName, int limit) {
+        return getTopPlayers(serverName, 0, limit);
+    }
+
+    /**
+     * Gets a page of the players of the specified server, ordered by descending level.
+     *
+     * @param serverName the name of the server
+     * @param offset     the number of players to skip
+     * @param limit      the maximum number of players to return
+     * @return the players, highest level first
+     */
+    public List<User> getTopPlayers(String serverName, int offset, int limit) {
+        return leaderboard.getTopLevels(serverName, offset, limit);
+    }
+
+    /**
+     * Gets the rank of the specified player on the specified server. Players with the same level share the same rank.
+     *
+     * @param serverName the name of the server
+     * @param playerUUID the UUID of the player
+     * @return the 1-based rank of the player, or -1 if the player was not found in the database
+     */
+    public long getPlayerRank(String serverName, UUID playerUUID) {
+        return leaderboard.getRank(serverName, playerUUID);
+    }
+
+    /**
+     * Asynchronously gets a page of the players of the specified server, ordered by descending level.
+     *
+     * @param serverName the name of the server
+     * @param offset     the number of players to skip
+     * @param limit      the maximum number of players to return
+     * @return a future completed with the players, highest level first
+     */
+    public CompletableFuture<List<User>> getTopPlayersAsync(String serverName, int offset, int limit) {
+        return supplyAsync(() -> getTopPlayers(serverName, offset, limit));
+    }
+
+    /**
+     * Asynchronously gets the rank of the specified player on the specified server.
+     *
+     * @param serverName the name of the server
+     * @param playerUUID the UUID of the player
+     * @return a future completed with the 1-based rank of the player, or -1 if the player was not found in the database
+     */
+    public CompletableFuture<Long> getPlayerRankAsync(String serverName, UUID playerUUID) {
+        return supplyAsync(() -> getPlayerRank(serverName, playerUUID));
+    }
+
+    /**
+     * Awards experience to the specified player on the specified server. Gains are accumulated without locking
+     * and written in batches, the level of the player is raised once the experience crosses a threshold,
+     * and a {@link PlayerLevelUpEvent} is then called.
+     *
+     * @param serverName the name of the server
+     * @param playerUUID the UUID of the player
+     * @param amount     the amount of experience to award, which must not be negative
+     */
+    public void addXp(String serverName, UUID playerUUID, long amount) {
+        experienceEngine.addExperience(new UserKey(serverName, playerUUID), amount);
+    }
+
+    /**
+     * Gets the total experience of the specified player on the specified server,
+     * including the experience awarded by this proxy which has not been written yet.
+     *
+     * @param serverName the name of the server
+     * @param playerUUID the UUID of the player
+     * @return the total experience of the player
+     */
+    public long getXp(String serverName, UUID playerUUID) {
+        UserKey key = new UserKey(serverName, playerUUID);
+        return storageHandler.getExperience(serverName, playerUUID) + experienceEngine.getPendingExperience(key);
+    }
+
+    /**
+     * Asynchronously gets the total experience of the specified player on the specified server.
+     *
+     * @param serverName the name of the server
+     * @param playerUUID the UUID of the player
+     * @return a future completed with the total experience of the player
+     */
+    public CompletableFuture<Long> getXpAsync(String serverName, UUID playerUUID) {
+        return supplyAsync(() -> getXp(serverName, playerUUID));
+    }
+
+    /**
+     * @param experience a total amount of experience
+     * @return the level reached with the experience, according to the configured thresholds
+     */
+    public int getLevelForXp(long experience) {
+        return experienceEngine.levelFor(experience);
+    }
+
+    /**
+     * Gets the data stored for the specified player on the specified server.
+     * The data of online players is held by their session and saved when they disconnect,
+     * the data of offline players is read from the database and must be saved with {@link #savePlayerData(PlayerData)}.
+     *
+     * @param serverName the name of the server
+     * @param playerUUID the UUID of the player
+     * @return the data of the player, empty if nothing has been stored yet
+     */
+    public PlayerData getPlayerData(String serverName, UUID playerUUID) {
+        UserKey key = new UserKey(serverName, playerUUID);
+
+        PlayerData data = sessionManager.getData(key);
+        return data != null ? data : new PlayerData(key, storageHandler.getData(serverName, playerUUID));
+    }
+
+    /**
+     * Saves the fields of the data which have changed since it was last saved. Only the changed fields are sent,
+     * with $set for the fields which have been set and $inc for the ones which have been incremented.
+     * If the save fails, the changes are kept and sent again with the next save.
+     *
+     * @param data the data to save
+     */
+    public void savePlayerData(PlayerData data) {
+        data.saveTo(storageHandler);
+    }
+
+    /**
+     * Asynchronously gets the data stored for the specified player on the specified server.
+     *
+     * @param serverName the name of the server
+     * @param playerUUID the UUID of the player
+     * @return a future completed with the data of the player
+     */
+    public CompletableFuture<PlayerData> getPlayerDataAsync(String serverName, UUID playerUUID) {
+        PlayerData data = sessionManager.getData(new UserKey(serverName, playerUUID));
+        if (data != null) {
+            return CompletableFuture.completedFuture(data);
+        }
+        return supplyAsync(() -> getPlayerData(serverName, playerUUID));
+    }
+
+    /**
+     * Asynchronously saves the fields of the data which have changed since it was last saved.
+     *
+     * @param data the data to save
+     * @return a future completed once the changes have been written to the database
+     */
+    public CompletableFuture<Void> savePlayerDataAsync(PlayerData data) {
+        return supplyAsync(() -> {
+            savePlayerData(data);
+            return null;
+        });
+    }
+
+
+    /**
+     * Runs an operation on the persistence pipeline. A rejection by a saturated pipeline fails the future
+     * instead of being thrown at the caller.
+     */
+    private <T> CompletableFuture<T> supplyAsync(Supplier<T> operation) {
+        try {
+            return CompletableFuture.supplyAsync(operation, executor);
+        } catch (RejectedExecutionException e) {
+            return CompletableFuture.failedFuture(e);
+        }
+    }
+
+    private void onLevelSet(UserKey key, int level) {
+        levelCache.put(key, level);
+        sessionManager.update(key, level);
+        leaderboard.update(key, null, level);
+        cacheCoherence.publish(key, level);
+    }
+
+    private Integer getLocalLevel(UserKey key) {
+        Integer level = writeBehindBuffer.getPendingLevel(key);
+        if (level == null) {
+            level = sessionManager.getLevel(key);
+        }
+        return level != null ? level : levelCache.get(key);
     }
 
 }
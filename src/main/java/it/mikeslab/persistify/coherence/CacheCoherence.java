@@ -0,0 +1,114 @@
+/*
+ *  Copyright (c) 2023, MikesLab
+ *  All rights reserved.
+ *
+ *  Redistribution and use in source and binary forms, with or without
+ *  modification, are permitted provided that the following conditions are met:
+ *  1. Redistributions of source code must retain the above copyright notice, this
+ *     list of conditions and the following disclaimer.
+ *  2. Redistributions in binary form must reproduce the above copyright notice,
+ *     this list of conditions and the following disclaimer in the documentation
+ *     and/or other materials provided with the distribution.
+ *  3. Neither the name of the copyright holder nor the names of its
+ *     contributors may be used to endorse or promote products derived from
+ *     this software without specific prior written permission.
+ *  4. Redistribution of this software in source or binary forms shall be free
+ *     of all charges or fees to the recipient of this software.
+ *
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ *  AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ *  IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ *  DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ *  FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ *  DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ *  SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ *  CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ *  OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ *  OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package it.mikeslab.persistify.coherence;
+
+import it.mikeslab.persistify.object.UserKey;
+import it.mikeslab.persistify.util.LevelCache;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+/**
+ * Keeps the level cache coherent with the changes made by other proxies.
+ * <p>
+ * Only levels which are already cached are refreshed. Levels set locally but not yet written are not affected,
+ * since reads look at the write-behind buffer before the cache.
+ */
+public class CacheCoherence {
+
+    private final LevelCache levelCache;
+    private volatile InvalidationTransport transport;
+    private final List<Consumer<LevelChange>> listeners = new CopyOnWriteArrayList<>();
+    private final AtomicLong refreshes = new AtomicLong();
+
+    public CacheCoherence(LevelCache levelCache) {
+        this.levelCache = levelCache;
+    }
+
+    /**
+     * Starts listening for level changes. Changes published before are not announced to other proxies.
+     *
+     * @param transport the transport level changes are exchanged through
+     */
+    public void start(InvalidationTransport transport) {
+        transport.start(this::apply);
+        this.transport = transport;
+    }
+
+    /**
+     * Registers a listener notified of every level change received from the transport.
+     *
+     * @param listener the listener
+     */
+    public void addListener(Consumer<LevelChange> listener) {
+        listeners.add(listener);
+    }
+
+    /**
+     * Announces a level set by this proxy.
+     *
+     * @param key the player and server the level belongs to
+     * @param level the new level
+     */
+    public void publish(UserKey key, int level) {
+        InvalidationTransport transport = this.transport;
+        if (transport != null) {
+            transport.publish(new LevelChange(key, level));
+        }
+    }
+
+    /**
+     * @return the number of cached levels refreshed because of a change
+     */
+    public long getRefreshes() {
+        return refreshes.get();
+    }
+
+    /**
+     * Stops listening for level changes.
+     */
+    public void close() {
+        InvalidationTransport transport = this.transport;
+        if (transport != null) {
+            transport.close();
+        }
+    }
+
+
+    private void apply(LevelChange change) {
+        if (levelCache.refresh(change.key(), change.level())) {
+            refreshes.incrementAndGet();
+        }
+        listeners.forEach(listener -> listener.accept(change));
+    }
+
+}
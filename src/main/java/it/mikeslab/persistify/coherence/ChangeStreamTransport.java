@@ -0,0 +1,109 @@
+/*
+ *  Copyright (c) 2023, MikesLab
+ *  All rights reserved.
+ *
+ *  Redistribution and use in source and binary forms, with or without
+ *  modification, are permitted provided that the following conditions are met:
+ *  1. Redistributions of source code must retain the above copyright notice, this
+ *     list of conditions and the following disclaimer.
+ *  2. Redistributions in binary form must reproduce the above copyright notice,
+ *     this list of conditions and the following disclaimer in the documentation
+ *     and/or other materials provided with the distribution.
+ *  3. Neither the name of the copyright holder nor the names of its
+ *     contributors may be used to endorse or promote products derived from
+ *     this software without specific prior written permission.
+ *  4. Redistribution of this software in source or binary forms shall be free
+ *     of all charges or fees to the recipient of this software.
+ *
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ *  AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ *  IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ *  DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ *  FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ *  DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ *  SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ *  CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ *  OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ *  OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package it.mikeslab.persistify.coherence;
+
+import com.mongodb.MongoException;
+import com.mongodb.client.MongoChangeStreamCursor;
+import com.mongodb.client.model.changestream.ChangeStreamDocument;
+import it.mikeslab.persistify.util.MongoDBHandler;
+import org.bson.BsonDocument;
+import org.bson.Document;
+
+import java.util.function.Consumer;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A transport which follows the level changes of the collection through a MongoDB change stream.
+ * Requires a replica set or a sharded cluster. The stream is resumed where it left off after a failure.
+ */
+public class ChangeStreamTransport implements InvalidationTransport {
+
+    private static final long RETRY_DELAY = 1000;
+
+    private final MongoDBHandler mongoDBHandler;
+    private final Logger logger;
+
+    private volatile boolean running;
+    private Thread thread;
+    private BsonDocument resumeToken;
+
+    public ChangeStreamTransport(MongoDBHandler mongoDBHandler, Logger logger) {
+        this.mongoDBHandler = mongoDBHandler;
+        this.logger = logger;
+    }
+
+    @Override
+    public void start(Consumer<LevelChange> listener) {
+        running = true;
+        thread = new Thread(() -> follow(listener), "Persistify Change Stream");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    @Override
+    public void close() {
+        running = false;
+        if (thread != null) {
+            thread.interrupt();
+        }
+    }
+
+
+    private void follow(Consumer<LevelChange> listener) {
+        while (running) {
+            try (MongoChangeStreamCursor<ChangeStreamDocument<Document>> cursor = mongoDBHandler.watchLevels(resumeToken)) {
+                while (running) {
+                    ChangeStreamDocument<Document> event = cursor.tryNext();
+                    if (event == null) {
+                        continue;
+                    }
+                    resumeToken = cursor.getResumeToken();
+
+                    LevelChange change = mongoDBHandler.toLevelChange(event);
+                    if (change != null) {
+                        listener.accept(change);
+                    }
+                }
+            } catch (MongoException | IllegalStateException e) {
+                if (!running) {
+                    return;
+                }
+                logger.log(Level.WARNING, "Change stream interrupted, resuming in " + RETRY_DELAY + "ms", e);
+                try {
+                    Thread.sleep(RETRY_DELAY);
+                } catch (InterruptedException interrupted) {
+                    return;
+                }
+            }
+        }
+    }
+
+}
@@ -0,0 +1,125 @@
+/*
+ *  Copyright (c) 2023, MikesLab
+ *  All rights reserved.
+ *
+ *  Redistribution and use in source and binary forms, with or without
+ *  modification, are permitted provided that the following conditions are met:
+ *  1. Redistributions of source code must retain the above copyright notice, this
+ *     list of conditions and the following disclaimer.
+ *  2. Redistributions in binary form must reproduce the above copyright notice,
+ *     this list of conditions and the following disclaimer in the documentation
+ *     and/or other materials provided with the distribution.
+ *  3. Neither the name of the copyright holder nor the names of its
+ *     contributors may be used to endorse or promote products derived from
+ *     this software without specific prior written permission.
+ *  4. Redistribution of this software in source or binary forms shall be free
+ *     of all charges or fees to the recipient of this software.
+ *
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ *  AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ *  IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ *  DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ *  FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ *  DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ *  SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ *  CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ *  OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ *  OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package it.mikeslab.persistify.coherence;
+
+import it.mikeslab.persistify.object.UserKey;
+import it.mikeslab.persistify.util.StorageHandler;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
+import java.util.function.Supplier;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A transport for deployments without change streams, which periodically reloads the levels of interest
+ * with one bulk query per server.
+ * <p>
+ * Levels set locally and not written yet are newer than the stored ones, so players with a pending write before or
+ * after the query are skipped.
+ */
+public class PollingTransport implements InvalidationTransport {
+
+    private final StorageHandler storageHandler;
+    private final Supplier<Collection<UserKey>> keys;
+    private final Predicate<UserKey> hasPendingWrite;
+    private final long interval;
+    private final Logger logger;
+
+    private ScheduledExecutorService scheduler;
+
+    /**
+     * Constructs a new PollingTransport.
+     *
+     * @param storageHandler the storage the levels are reloaded from
+     * @param keys the supplier of the players whose levels are reloaded
+     * @param hasPendingWrite tells whether a level has been set locally but not written yet
+     * @param interval the number of seconds between reloads
+     * @param logger the logger used to report failed reloads
+     */
+    public PollingTransport(StorageHandler storageHandler, Supplier<Collection<UserKey>> keys, Predicate<UserKey> hasPendingWrite,
+                            long interval, Logger logger) {
+        this.storageHandler = storageHandler;
+        this.keys = keys;
+        this.hasPendingWrite = hasPendingWrite;
+        this.interval = interval;
+        this.logger = logger;
+    }
+
+    @Override
+    public void start(Consumer<LevelChange> listener) {
+        scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "Persistify Coherence Polling");
+            thread.setDaemon(true);
+            return thread;
+        });
+        scheduler.scheduleWithFixedDelay(() -> poll(listener), interval, interval, TimeUnit.SECONDS);
+    }
+
+    @Override
+    public void close() {
+        if (scheduler != null) {
+            scheduler.shutdownNow();
+        }
+    }
+
+
+    private void poll(Consumer<LevelChange> listener) {
+        try {
+            Map<String, List<UUID>> playersByServer = new HashMap<>();
+            for (UserKey key : keys.get()) {
+                if (!hasPendingWrite.test(key)) {
+                    playersByServer.computeIfAbsent(key.serverName(), server -> new ArrayList<>()).add(key.playerUUID());
+                }
+            }
+
+            playersByServer.forEach((serverName, playerUUIDs) ->
+                    storageHandler.getLevels(serverName, playerUUIDs).forEach((playerUUID, level) -> {
+                        // A level set while the query ran is newer than the one read
+                        UserKey key = new UserKey(serverName, playerUUID);
+                        if (!hasPendingWrite.test(key)) {
+                            listener.accept(new LevelChange(key, level));
+                        }
+                    }));
+        } catch (RuntimeException e) {
+            logger.log(Level.WARNING, "Unable to poll for level changes", e);
+        }
+    }
+
+}
@@ -0,0 +1,162 @@
+/*
+ *  Copyright (c) 2023, MikesLab
+ *  All rights reserved.
+ *
+ *  Redistribution and use in source and binary forms, with or without
+ *  modification, are permitted provided that the following conditions are met:
+ *  1. Redistributions of source code must retain the above copyright notice, this
+ *     list of conditions and the following disclaimer.
+ *  2. Redistributions in binary form must reproduce the above copyright notice,
+ *     this list of conditions and the following disclaimer in the documentation
+ *     and/or other materials provided with the distribution.
+ *  3. Neither the name of the copyright holder nor the names of its
+ *     contributors may be used to endorse or promote products derived from
+ *     this software without specific prior written permission.
+ *  4. Redistribution of this software in source or binary forms shall be free
+ *     of all charges or fees to the recipient of this software.
+ *
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ *  AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ *  IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ *  DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ *  FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ *  DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ *  SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ *  CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ *  OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ *  OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package it.mikeslab.persistify.command;
+
+import it.mikeslab.persistify.Persistify;
+import it.mikeslab.persistify.util.DataTransfer;
+import it.mikeslab.persistify.util.MongoDBHandler;
+import net.md_5.bungee.api.ChatColor;
+import net.md_5.bungee.api.CommandSender;
+import net.md_5.bungee.api.chat.TextComponent;
+import net.md_5.bungee.api.plugin.Command;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.logging.Level;
+
+/**
+ * The /persistify administration command.
+ */
+public class PersistifyCommand extends Command {
+
+    private static final int MIGRATION_BATCH_SIZE = 1000;
+    private static final int TRANSFER_BATCH_SIZE = 1000;
+
+    private final Persistify plugin;
+
+    public PersistifyCommand(Persistify plugin) {
+        super("persistify", "persistify.admin", "psf");
+        this.plugin = plugin;
+    }
+
+    @Override
+    public void execute(CommandSender sender, String[] args) {
+        if (args.length == 0) {
+            sendUsage(sender);
+            return;
+        }
+
+        switch (args[0].toLowerCase()) {
+            case "metrics" -> sendMetrics(sender);
+            case "reload" -> reload(sender);
+            case "migrate-schema" -> migrateSchema(sender);
+            case "export" -> transfer(sender, args, true);
+            case "import" -> transfer(sender, args, false);
+            default -> sendUsage(sender);
+        }
+    }
+
+
+    private void sendMetrics(CommandSender sender) {
+        sender.sendMessage(new TextComponent(ChatColor.GOLD + "===== Persistify metrics ====="));
+        for (String line : plugin.getMetrics().describe()) {
+            sender.sendMessage(new TextComponent(ChatColor.GRAY + line));
+        }
+    }
+
+    private void reload(CommandSender sender) {
+        plugin.getProxy().getScheduler().runAsync(plugin, () -> {
+            try {
+                plugin.reload();
+                sender.sendMessage(new TextComponent(ChatColor.GREEN + "Configuration reloaded, details are reported in the console."));
+            } catch (IOException | RuntimeException e) {
+                plugin.getLogger().log(Level.SEVERE, "Configuration reload failed", e);
+                sender.sendMessage(new TextComponent(ChatColor.RED + "Configuration reload failed: " + e.getMessage()));
+            }
+        });
+    }
+
+    private void migrateSchema(CommandSender sender) {
+        MongoDBHandler mongoDBHandler = plugin.getMongoDBHandler();
+        if (mongoDBHandler == null) {
+            sender.sendMessage(new TextComponent(ChatColor.RED + "Schema migration is only available with MongoDB storage."));
+            return;
+        }
+        if (!plugin.getApiManager().isReady()) {
+            sender.sendMessage(new TextComponent(ChatColor.RED + "MongoDB is not reachable yet, try again later."));
+            return;
+        }
+
+        sender.sendMessage(new TextComponent(ChatColor.YELLOW + "Migrating to the compact schema, progress is reported in the console..."));
+        plugin.getProxy().getScheduler().runAsync(plugin, () -> {
+            try {
+                long migrated = mongoDBHandler.migrateToCompactSchema(MIGRATION_BATCH_SIZE);
+                sender.sendMessage(new TextComponent(ChatColor.GREEN + "Schema migration completed, " + migrated + " document(s) migrated."));
+            } catch (RuntimeException e) {
+                plugin.getLogger().log(Level.SEVERE, "Schema migration failed", e);
+                sender.sendMessage(new TextComponent(ChatColor.RED + "Schema migration failed: " + e.getMessage()));
+            }
+        });
+    }
+
+    private void transfer(CommandSender sender, String[] args, boolean export) {
+        if (args.length < 2) {
+            sender.sendMessage(new TextComponent(ChatColor.RED + "Usage: /persistify " + args[0].toLowerCase() + " <file>"));
+            return;
+        }
+
+        // Files are always resolved inside the plugin folder
+        Path dataFolder = plugin.getDataFolder().toPath().toAbsolutePath().normalize();
+        Path file = dataFolder.resolve(args[1]).normalize();
+        if (!file.startsWith(dataFolder)) {
+            sender.sendMessage(new TextComponent(ChatColor.RED + "The file must be inside the plugin folder."));
+            return;
+        }
+
+        String action = export ? "Export" : "Import";
+        sender.sendMessage(new TextComponent(ChatColor.YELLOW + action + " of " + file.getFileName() + " started, progress is reported in the console..."));
+        plugin.getProxy().getScheduler().runAsync(plugin, () -> {
+            DataTransfer transfer = new DataTransfer(plugin.getDbHandler(), TRANSFER_BATCH_SIZE, plugin.getLogger());
+            try {
+                long count;
+                if (export) {
+                    // Buffered level updates must be part of the export
+                    plugin.getWriteBehindBuffer().flush();
+                    count = transfer.exportTo(file);
+                } else {
+                    // Buffered level updates written after the import would overwrite the imported levels
+                    plugin.getWriteBehindBuffer().flush();
+                    count = transfer.importFrom(file);
+                    plugin.getLevelCache().clear();
+                    plugin.getLeaderboard().clear();
+                }
+                sender.sendMessage(new TextComponent(ChatColor.GREEN + action + " completed, " + count + " player(s) transferred."));
+            } catch (IOException | RuntimeException e) {
+                plugin.getLogger().log(Level.SEVERE, action + " of " + file.getFileName() + " failed", e);
+                sender.sendMessage(new TextComponent(ChatColor.RED + action + " failed: " + e.getMessage()));
+            }
+        });
+    }
+
+    private void sendUsage(CommandSender sender) {
+        sender.sendMessage(new TextComponent(ChatColor.RED + "Usage: /persistify <metrics|reload|migrate-schema|export|import>"));
+    }
+
+}
@@ -0,0 +1,141 @@
+/*
+ *  Copyright (c) 2023, MikesLab
+ *  All rights reserved.
+ *
+ *  Redistribution and use in source and binary forms, with or without
+ *  modification, are permitted provided that the following conditions are met:
+ *  1. Redistributions of source code must retain the above copyright notice, this
+ *     list of conditions and the following disclaimer.
+ *  2. Redistributions in binary form must reproduce the above copyright notice,
+ *     this list of conditions and the following disclaimer in the documentation
+ *     and/or other materials provided with the distribution.
+ *  3. Neither the name of the copyright holder nor the names of its
+ *     contributors may be used to endorse or promote products derived from
+ *     this software without specific prior written permission.
+ *  4. Redistribution of this software in source or binary forms shall be free
+ *     of all charges or fees to the recipient of this software.
+ *
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ *  AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ *  IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ *  DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ *  FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ *  DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ *  SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ *  CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ *  OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ *  OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package it.mikeslab.persistify.data;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Function;
+
+/**
+ * The built-in codecs, and the registry of codecs by value type used by {@link DataKey#of(String, Class, Object)}.
+ */
+public final class DataCodecs {
+
+    public static final DataCodec<Integer> INTEGER = numeric(Number::intValue);
+    public static final DataCodec<Long> LONG = numeric(Number::longValue);
+    public static final DataCodec<Double> DOUBLE = numeric(Number::doubleValue);
+    public static final DataCodec<Boolean> BOOLEAN = identity(Boolean.class);
+    public static final DataCodec<String> STRING = identity(String.class);
+
+    private static final Map<Class<?>, DataCodec<?>> CODECS = new ConcurrentHashMap<>();
+
+    static {
+        register(Integer.class, INTEGER);
+        register(Long.class, LONG);
+        register(Double.class, DOUBLE);
+        register(Boolean.class, BOOLEAN);
+        register(String.class, STRING);
+    }
+
+    private DataCodecs() {}
+
+    /**
+     * Registers the codec of a value type, replacing the previous one.
+     *
+     * @param type the value type
+     * @param codec the codec of the type
+     */
+    public static <T> void register(Class<T> type, DataCodec<T> codec) {
+        CODECS.put(type, codec);
+    }
+
+    /**
+     * @param type a value type
+     * @return the codec registered for the type
+     * @throws IllegalArgumentException if no codec is registered for the type
+     */
+    @SuppressWarnings("unchecked")
+    public static <T> DataCodec<T> forType(Class<T> type) {
+        DataCodec<T> codec = (DataCodec<T>) CODECS.get(type);
+        if (codec == null) {
+            throw new IllegalArgumentException("No codec registered for " + type.getName());
+        }
+        return codec;
+    }
+
+    /**
+     * @param elementCodec the codec of the elements
+     * @return a codec of lists of elements
+     */
+    public static <E> DataCodec<List<E>> listOf(DataCodec<E> elementCodec) {
+        return new DataCodec<>() {
+            @Override
+            public Object encode(List<E> value) {
+                List<Object> stored = new ArrayList<>(value.size());
+                for (E element : value) {
+                    stored.add(elementCodec.encode(element));
+                }
+                return stored;
+            }
+
+            @Override
+            public List<E> decode(Object stored) {
+                List<?> elements = (List<?>) stored;
+                List<E> value = new ArrayList<>(elements.size());
+                for (Object element : elements) {
+                    value.add(elementCodec.decode(element));
+                }
+                return value;
+            }
+        };
+    }
+
+
+    private static <T extends Number> DataCodec<T> numeric(Function<Number, T> converter) {
+        return new DataCodec<>() {
+            @Override
+            public Object encode(T value) {
+                return value;
+            }
+
+            @Override
+            public T decode(Object stored) {
+                return converter.apply((Number) stored);
+            }
+        };
+    }
+
+    private static <T> DataCodec<T> identity(Class<T> type) {
+        return new DataCodec<>() {
+            @Override
+            public Object encode(T value) {
+                return value;
+            }
+
+            @Override
+            public T decode(Object stored) {
+                return type.cast(stored);
+            }
+        };
+    }
+
+}
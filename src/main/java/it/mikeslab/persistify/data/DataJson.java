@@ -0,0 +1,113 @@
+/*
+ *  Copyright (c) 2023, MikesLab
+ *  All rights reserved.
+ *
+ *  Redistribution and use in source and binary forms, with or without
+ *  modification, are permitted provided that the following conditions are met:
+ *  1. Redistributions of source code must retain the above copyright notice, this
+ *     list of conditions and the following disclaimer.
+ *  2. Redistributions in binary form must reproduce the above copyright notice,
+ *     this list of conditions and the following disclaimer in the documentation
+ *     and/or other materials provided with the distribution.
+ *  3. Neither the name of the copyright holder nor the names of its
+ *     contributors may be used to endorse or promote products derived from
+ *     this software without specific prior written permission.
+ *  4. Redistribution of this software in source or binary forms shall be free
+ *     of all charges or fees to the recipient of this software.
+ *
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ *  AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ *  IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ *  DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ *  FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ *  DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ *  SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ *  CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ *  OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ *  OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package it.mikeslab.persistify.data;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonNull;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonPrimitive;
+
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Converts stored data values to and from JSON, for the backends and files which hold them as text.
+ * Integral numbers come back as integers or longs, the others as doubles.
+ */
+public final class DataJson {
+
+    private DataJson() {}
+
+    public static JsonObject toJson(Map<String, Object> values) {
+        JsonObject json = new JsonObject();
+        values.forEach((name, value) -> json.add(name, toJsonElement(value)));
+        return json;
+    }
+
+    public static Map<String, Object> fromJson(JsonObject json) {
+        Map<String, Object> values = new HashMap<>();
+        for (Map.Entry<String, JsonElement> entry : json.entrySet()) {
+            values.put(entry.getKey(), fromJsonElement(entry.getValue()));
+        }
+        return values;
+    }
+
+
+    private static JsonElement toJsonElement(Object value) {
+        if (value == null) {
+            return JsonNull.INSTANCE;
+        }
+        if (value instanceof Number number) {
+            return new JsonPrimitive(number);
+        }
+        if (value instanceof Boolean bool) {
+            return new JsonPrimitive(bool);
+        }
+        if (value instanceof List<?> list) {
+            JsonArray array = new JsonArray(list.size());
+            list.forEach(element -> array.add(toJsonElement(element)));
+            return array;
+        }
+        return new JsonPrimitive(value.toString());
+    }
+
+    private static Object fromJsonElement(JsonElement element) {
+        if (element.isJsonNull()) {
+            return null;
+        }
+        if (element.isJsonArray()) {
+            List<Object> list = new ArrayList<>(element.getAsJsonArray().size());
+            element.getAsJsonArray().forEach(child -> list.add(fromJsonElement(child)));
+            return list;
+        }
+
+        JsonPrimitive primitive = element.getAsJsonPrimitive();
+        if (primitive.isBoolean()) {
+            return primitive.getAsBoolean();
+        }
+        if (primitive.isNumber()) {
+            BigDecimal number = primitive.getAsBigDecimal();
+            if (number.stripTrailingZeros().scale() <= 0) {
+                long longValue = number.longValue();
+                if (longValue == (int) longValue) {
+                    return (int) longValue;
+                }
+                return longValue;
+            }
+            return number.doubleValue();
+        }
+        return primitive.getAsString();
+    }
+
+}
@@ -0,0 +1,58 @@
+/*
+ *  Copyright (c) 2023, MikesLab
+ *  All rights reserved.
+ *
+ *  Redistribution and use in source and binary forms, with or without
+ *  modification, are permitted provided that the following conditions are met:
+ *  1. Redistributions of source code must retain the above copyright notice, this
+ *     list of conditions and the following disclaimer.
+ *  2. Redistributions in binary form must reproduce the above copyright notice,
+ *     this list of conditions and the following disclaimer in the documentation
+ *     and/or other materials provided with the distribution.
+ *  3. Neither the name of the copyright holder nor the names of its
+ *     contributors may be used to endorse or promote products derived from
+ *     this software without specific prior written permission.
+ *  4. Redistribution of this software in source or binary forms shall be free
+ *     of all charges or fees to the recipient of this software.
+ *
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ *  AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ *  IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ *  DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ *  FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ *  DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ *  SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ *  CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ *  OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ *  OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package it.mikeslab.persistify.data;
+
+/**
+ * A typed field of the data a plugin stores for a player.
+ *
+ * @param name the name of the field, which must not contain '.' or start with '$'
+ * @param codec the codec of the values of the field
+ * @param defaultValue the value of the field when it has not been set
+ * @param <T> the type of the values of the field
+ */
+public record DataKey<T>(String name, DataCodec<T> codec, T defaultValue) {
+
+    public DataKey {
+        if (name.isEmpty() || name.contains(".") || name.startsWith("$")) {
+            throw new IllegalArgumentException("Invalid data key name: " + name);
+        }
+    }
+
+    /**
+     * @param name the name of the field
+     * @param type the type of the values, whose codec must have been registered in {@link DataCodecs}
+     * @param defaultValue the value of the field when it has not been set
+     * @return a key using the codec registered for the type
+     */
+    public static <T> DataKey<T> of(String name, Class<T> type, T defaultValue) {
+        return new DataKey<>(name, DataCodecs.forType(type), defaultValue);
+    }
+
+}
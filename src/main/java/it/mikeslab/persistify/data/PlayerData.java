@@ -0,0 +1,165 @@
+/*
+ *  Copyright (c) 2023, MikesLab
+ *  All rights reserved.
+ *
+ *  Redistribution and use in source and binary forms, with or without
+ *  modification, are permitted provided that the following conditions are met:
+ *  1. Redistributions of source code must retain the above copyright notice, this
+ *     list of conditions and the following disclaimer.
+ *  2. Redistributions in binary form must reproduce the above copyright notice,
+ *     this list of conditions and the following disclaimer in the documentation
+ *     and/or other materials provided with the distribution.
+ *  3. Neither the name of the copyright holder nor the names of its
+ *     contributors may be used to endorse or promote products derived from
+ *     this software without specific prior written permission.
+ *  4. Redistribution of this software in source or binary forms shall be free
+ *     of all charges or fees to the recipient of this software.
+ *
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ *  AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ *  IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ *  DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ *  FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ *  DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ *  SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ *  CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ *  OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ *  OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package it.mikeslab.persistify.data;
+
+import it.mikeslab.persistify.object.UserKey;
+import it.mikeslab.persistify.util.StorageHandler;
+import lombok.Getter;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * The data plugins store for a player on a server, as typed fields.
+ * <p>
+ * Changes are tracked per field, so that saving only sends the fields which have been set, and the amounts
+ * numeric fields have been incremented by. Increments are applied atomically by the storage, so concurrent
+ * increments from several proxies are never lost.
+ */
+public class PlayerData {
+
+    @Getter private final UserKey key;
+    private final Map<String, Object> values;
+    private final Set<String> dirty = new HashSet<>();
+    private final Map<String, Number> increments = new HashMap<>();
+
+    /**
+     * Constructs a new PlayerData.
+     *
+     * @param key the player and server the data belongs to
+     * @param values the stored values of the fields, keyed by field name
+     */
+    public PlayerData(UserKey key, Map<String, Object> values) {
+        this.key = key;
+        this.values = new HashMap<>(values);
+    }
+
+    /**
+     * @param key the field
+     * @return the value of the field, or its default value if it has not been set
+     */
+    public synchronized <T> T get(DataKey<T> key) {
+        Object stored = values.get(key.name());
+        return stored != null ? key.codec().decode(stored) : key.defaultValue();
+    }
+
+    /**
+     * Sets the value of a field.
+     *
+     * @param key the field
+     * @param value the new value, or null to clear the field
+     */
+    public synchronized <T> void set(DataKey<T> key, T value) {
+        values.put(key.name(), value != null ? key.codec().encode(value) : null);
+        dirty.add(key.name());
+        increments.remove(key.name());
+    }
+
+    /**
+     * Adds an amount to a numeric field.
+     *
+     * @param key the field
+     * @param amount the amount to add, which may be negative
+     */
+    public synchronized <T extends Number> void increment(DataKey<T> key, Number amount) {
+        Number current = (Number) values.get(key.name());
+        values.put(key.name(), DataChanges.add(current != null ? current : key.defaultValue(), amount));
+
+        // A field which has been set is saved with its value, which already includes the amount
+        if (!dirty.contains(key.name())) {
+            increments.merge(key.name(), amount, DataChanges::add);
+        }
+    }
+
+    /**
+     * @return true if the data has changed since it was last saved
+     */
+    public synchronized boolean isDirty() {
+        return !dirty.isEmpty() || !increments.isEmpty();
+    }
+
+    /**
+     * Takes the changes made since the data was last saved, which are then no longer tracked.
+     *
+     * @return the changes to save
+     */
+    public synchronized DataChanges drainChanges() {
+        Map<String, Object> sets = new HashMap<>();
+        for (String name : dirty) {
+            sets.put(name, values.get(name));
+        }
+
+        DataChanges changes = new DataChanges(sets, new HashMap<>(increments));
+        dirty.clear();
+        increments.clear();
+        return changes;
+    }
+
+    /**
+     * Saves the changes made since the data was last saved. If the save fails, the changes are tracked again.
+     *
+     * @param storageHandler the storage to save to
+     */
+    public void saveTo(StorageHandler storageHandler) {
+        DataChanges changes = drainChanges();
+        if (changes.isEmpty()) {
+            return;
+        }
+
+        try {
+            storageHandler.updateData(key.serverName(), key.playerUUID(), changes);
+        } catch (RuntimeException e) {
+            restoreChanges(changes);
+            throw e;
+        }
+    }
+
+    /**
+     * Tracks changes which could not be saved again, unless they have been superseded in the meantime.
+     *
+     * @param changes the changes returned by {@link #drainChanges()}
+     */
+    public synchronized void restoreChanges(DataChanges changes) {
+        for (String name : changes.sets().keySet()) {
+            // The current value is saved, whether or not the field has been set again
+            dirty.add(name);
+            increments.remove(name);
+        }
+
+        changes.increments().forEach((name, amount) -> {
+            if (!dirty.contains(name)) {
+                increments.merge(name, amount, DataChanges::add);
+            }
+        });
+    }
+
+}
@@ -0,0 +1,253 @@
+/*
+ *  Copyright (c) 2023, MikesLab
+ *  All rights reserved.
+ *
+ *  Redistribution and use in source and binary forms, with or without
+ *  modification, are permitted provided that the following conditions are met:
+ *  1. Redistributions of source code must retain the above copyright notice, this
+ *     list of conditions and the following disclaimer.
+ *  2. Redistributions in binary form must reproduce the above copyright notice,
+ *     this list of conditions and the following disclaimer in the documentation
+ *     and/or other materials provided with the distribution.
+ *  3. Neither the name of the copyright holder nor the names of its
+ *     contributors may be used to endorse or promote products derived from
+ *     this software without specific prior written permission.
+ *  4. Redistribution of this software in source or binary forms shall be free
+ *     of all charges or fees to the recipient of this software.
+ *
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ *  AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ *  IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ *  DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ *  FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ *  DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ *  SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ *  CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ *  OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ *  OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package it.mikeslab.persistify.level;
+
+import it.mikeslab.persistify.object.UserKey;
+import it.mikeslab.persistify.util.StorageHandler;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Accumulates experience gains in memory and persists them in batches, raising levels as thresholds are crossed.
+ * <p>
+ * Gains are merged into a concurrent map entry per player and server, and each flush removes the entries it
+ * writes. Both happen atomically on the entry, so a gain is always either taken by a flush or left for the next one.
+ * Each flush sends the accumulated gains as a single bulk $inc, which stays correct when several proxies award
+ * experience to the same player, then reads the totals back. A level is raised with a conditional update which only
+ * succeeds if the stored level is lower, so exactly one proxy raises each level and notifies its listeners.
+ * <p>
+ * A failed batch is retried as is, with the same id, before the gains accumulated since. The storage skips the
+ * players the batch was already applied to, so a failure after the increments reached the database never applies
+ * them twice.
+ */
+public class ExperienceEngine {
+
+    private final StorageHandler dbHandler;
+    private volatile LevelCurve curve;
+    private final Logger logger;
+
+    private final Map<UserKey, Long> gains = new ConcurrentHashMap<>();
+    private final List<Consumer<LevelUp>> listeners = new CopyOnWriteArrayList<>();
+    private volatile Batch failedBatch;
+
+    private final ReentrantLock flushLock = new ReentrantLock();
+    private final ScheduledExecutorService scheduler;
+    private ScheduledFuture<?> periodicFlush;
+
+    /**
+     * Constructs a new ExperienceEngine and starts its periodic flush.
+     *
+     * @param dbHandler the storage backend the gains are written to
+     * @param curve the curve mapping total experience to levels
+     * @param flushInterval the interval between periodic flushes, in milliseconds
+     * @param logger the logger used to report failed flushes
+     */
+    public ExperienceEngine(StorageHandler dbHandler, LevelCurve curve, long flushInterval, Logger logger) {
+        this.dbHandler = dbHandler;
+        this.curve = curve;
+        this.logger = logger;
+
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "Persistify Experience");
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.periodicFlush = scheduler.scheduleWithFixedDelay(this::flushQuietly, flushInterval, flushInterval, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Applies new settings while running. Levels already raised are never lowered by a steeper curve.
+     *
+     * @param curve the curve mapping total experience to levels
+     * @param flushInterval the interval between periodic flushes, in milliseconds
+     */
+    public synchronized void reconfigure(LevelCurve curve, long flushInterval) {
+        this.curve = curve;
+        periodicFlush.cancel(false);
+        periodicFlush = scheduler.scheduleWithFixedDelay(this::flushQuietly, flushInterval, flushInterval, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Registers a listener notified of every level raised by this proxy, on the flushing thread.
+     *
+     * @param listener the listener
+     */
+    public void addListener(Consumer<LevelUp> listener) {
+        listeners.add(listener);
+    }
+
+    /**
+     * Awards experience to a player. The gain is written with the next flush.
+     *
+     * @param key the player and server
+     * @param amount the amount of experience, which must not be negative
+     */
+    public void addExperience(UserKey key, long amount) {
+        if (amount < 0) {
+            throw new IllegalArgumentException("Experience gains must not be negative");
+        }
+        if (amount > 0) {
+            gains.merge(key, amount, Long::sum);
+        }
+    }
+
+    /**
+     * @param key the player and server
+     * @return the experience awarded to the player which has not been written yet
+     */
+    public long getPendingExperience(UserKey key) {
+        Batch batch = failedBatch;
+        return gains.getOrDefault(key, 0L) + (batch != null ? batch.amounts().getOrDefault(key, 0L) : 0);
+    }
+
+    /**
+     * @param experience a total amount of experience
+     * @return the level reached with the experience
+     */
+    public int levelFor(long experience) {
+        return curve.levelFor(experience);
+    }
+
+    /**
+     * Writes the accumulated gains and raises the levels of the players who crossed a threshold.
+     */
+    public void flush() {
+        flushLock.lock();
+        try {
+            if (failedBatch != null) {
+                write(failedBatch);
+            }
+
+            Map<UserKey, Long> amounts = drain();
+            if (!amounts.isEmpty()) {
+                write(new Batch(UUID.randomUUID(), amounts));
+            }
+        } finally {
+            flushLock.unlock();
+        }
+    }
+
+    /**
+     * Stops the periodic flush and writes the remaining gains.
+     */
+    public void close() {
+        scheduler.shutdown();
+        try {
+            scheduler.awaitTermination(5, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        flush();
+    }
+
+    /**
+     * @return the number of players with experience which has not been written yet
+     */
+    public int getPendingCount() {
+        return gains.size();
+    }
+
+
+    private Map<UserKey, Long> drain() {
+        Map<UserKey, Long> amounts = new HashMap<>();
+        for (UserKey key : gains.keySet()) {
+            // Removing the entry takes every gain merged into it so far, later gains create a new entry
+            Long amount = gains.remove(key);
+            if (amount != null) {
+                amounts.put(key, amount);
+            }
+        }
+        return amounts;
+    }
+
+    /**
+     * Writes a batch, keeping it to be retried if it fails. Must be called while holding the flush lock.
+     */
+    private void write(Batch batch) {
+        Map<UserKey, Long> totals;
+        try {
+            totals = dbHandler.addExperience(batch.id(), batch.amounts());
+        } catch (RuntimeException e) {
+            failedBatch = batch;
+            throw e;
+        }
+        failedBatch = null;
+
+        LevelCurve curve = this.curve;
+        totals.forEach((key, total) -> {
+            long amount = batch.amounts().getOrDefault(key, 0L);
+            int level = curve.levelFor(total);
+
+            // Only the proxy whose gain crossed the threshold has to raise the level
+            if (level > curve.levelFor(total - amount)) {
+                raiseLevel(key, level);
+            }
+        });
+    }
+
+    private void raiseLevel(UserKey key, int level) {
+        try {
+            int previousLevel = dbHandler.raiseLevel(key.serverName(), key.playerUUID(), level);
+            if (previousLevel < 0) {
+                return;
+            }
+
+            LevelUp levelUp = new LevelUp(key, previousLevel, level);
+            listeners.forEach(listener -> listener.accept(levelUp));
+        } catch (RuntimeException e) {
+            logger.log(Level.WARNING, "Unable to raise the level of " + key.playerUUID() + " on " + key.serverName() + " to " + level, e);
+        }
+    }
+
+    private void flushQuietly() {
+        try {
+            flush();
+        } catch (RuntimeException e) {
+            logger.log(Level.WARNING, "Unable to write experience gains, they will be retried", e);
+        }
+    }
+
+    private record Batch(UUID id, Map<UserKey, Long> amounts) {
+    }
+
+}
@@ -0,0 +1,79 @@
+/*
+ *  Copyright (c) 2023, MikesLab
+ *  All rights reserved.
+ *
+ *  Redistribution and use in source and binary forms, with or without
+ *  modification, are permitted provided that the following conditions are met:
+ *  1. Redistributions of source code must retain the above copyright notice, this
+ *     list of conditions and the following disclaimer.
+ *  2. Redistributions in binary form must reproduce the above copyright notice,
+ *     this list of conditions and the following disclaimer in the documentation
+ *     and/or other materials provided with the distribution.
+ *  3. Neither the name of the copyright holder nor the names of its
+ *     contributors may be used to endorse or promote products derived from
+ *     this software without specific prior written permission.
+ *  4. Redistribution of this software in source or binary forms shall be free
+ *     of all charges or fees to the recipient of this software.
+ *
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ *  AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ *  IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ *  DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ *  FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ *  DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ *  SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ *  CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ *  OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ *  OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package it.mikeslab.persistify.level;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Maps total experience to levels.
+ * <p>
+ * Each threshold is the total experience needed to reach the next level, so the first threshold leads to level 1.
+ * Beyond the last threshold, every further increment of experience grants one more level.
+ */
+public class LevelCurve {
+
+    private final long[] thresholds;
+    private final long increment;
+
+    /**
+     * Constructs a new LevelCurve.
+     *
+     * @param thresholds the total experience needed to reach each level, in ascending order
+     * @param increment the experience needed for each level beyond the last threshold, 0 to cap the level
+     */
+    public LevelCurve(List<? extends Number> thresholds, long increment) {
+        this.thresholds = thresholds.stream().mapToLong(Number::longValue).toArray();
+        this.increment = increment;
+
+        for (int i = 1; i < this.thresholds.length; i++) {
+            if (this.thresholds[i] <= this.thresholds[i - 1]) {
+                throw new IllegalArgumentException("Level thresholds must be strictly ascending");
+            }
+        }
+    }
+
+    /**
+     * @param experience a total amount of experience
+     * @return the level reached with the experience
+     */
+    public int levelFor(long experience) {
+        int index = Arrays.binarySearch(thresholds, experience);
+        int level = index >= 0 ? index + 1 : -index - 1;
+
+        if (level == thresholds.length && increment > 0) {
+            long last = thresholds.length > 0 ? thresholds[thresholds.length - 1] : 0;
+            long beyond = (experience - last) / increment;
+            return (int) Math.min(Integer.MAX_VALUE, level + beyond);
+        }
+        return level;
+    }
+
+}
@@ -30,20 +30,53 @@
 package it.mikeslab.persistify.listener;
 
 import it.mikeslab.persistify.object.User;
-import it.mikeslab.persistify.util.MongoDBHandler;
+import it.mikeslab.persistify.object.UserKey;
+import it.mikeslab.persistify.util.Leaderboard;
+import it.mikeslab.persistify.util.LevelCache;
+import it.mikeslab.persistify.util.PersistenceExecutor;
+import it.mikeslab.persistify.util.SessionManager;
+import it.mikeslab.persistify.util.StorageHandler;
+import it.mikeslab.persistify.util.StorageUnavailableException;
 import net.md_5.bungee.api.connection.ProxiedPlayer;
 import net.md_5.bungee.api.event.ServerConnectedEvent;
 import net.md_5.bungee.api.plugin.Listener;
 import net.md_5.bungee.event.EventHandler;
 
-public record UserConnectedEvent(MongoDBHandler dbHandler) implements Listener {
+import java.util.concurrent.RejectedExecutionException;
+
+public record UserConnectedEvent(StorageHandler dbHandler, PersistenceExecutor executor, LevelCache levelCache, Leaderboard leaderboard,
+                                 SessionManager sessionManager) implements Listener {
 
     @EventHandler
     public void onUserConnected(ServerConnectedEvent event) {
         ProxiedPlayer subject = event.getPlayer();
         String serverName = event.getServer().getInfo().getName();
         User user = User.reduce(subject, serverName);
-        dbHandler.registerUser(user);
+        UserKey key = UserKey.of(user);
+
+        // The session loaded on login already holds the player's document for this server
+        if (sessionManager.isRegistered(key, user.getPlayerName())) {
+            return;
+        }
+
+        // Hand the registration over to the persistence pipeline so the event thread never waits on the database,
+        // the stored level comes back with the upsert and warms the cache
+        try {
+            executor.execute(() -> {
+                int level;
+                try {
+                    level = dbHandler.registerUser(user);
+                } catch (StorageUnavailableException e) {
+                    // The registration is queued and replayed later, the stored level is unknown until then
+                    return;
+                }
+                sessionManager.registered(key, user.getPlayerName(), level);
+                levelCache.warm(key, level);
+                leaderboard.update(key, user.getPlayerName(), level);
+            });
+        } catch (RejectedExecutionException e) {
+            // The pipeline is saturated, the player is registered on their next server switch
+        }
     }
 
 
@@ -0,0 +1,70 @@
+/*
+ *  Copyright (c) 2023, MikesLab
+ *  All rights reserved.
+ *
+ *  Redistribution and use in source and binary forms, with or without
+ *  modification, are permitted provided that the following conditions are met:
+ *  1. Redistributions of source code must retain the above copyright notice, this
+ *     list of conditions and the following disclaimer.
+ *  2. Redistributions in binary form must reproduce the above copyright notice,
+ *     this list of conditions and the following disclaimer in the documentation
+ *     and/or other materials provided with the distribution.
+ *  3. Neither the name of the copyright holder nor the names of its
+ *     contributors may be used to endorse or promote products derived from
+ *     this software without specific prior written permission.
+ *  4. Redistribution of this software in source or binary forms shall be free
+ *     of all charges or fees to the recipient of this software.
+ *
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ *  AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ *  IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ *  DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ *  FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ *  DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ *  SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ *  CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ *  OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ *  OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package it.mikeslab.persistify.listener;
+
+import it.mikeslab.persistify.data.PlayerData;
+import it.mikeslab.persistify.util.LevelCache;
+import it.mikeslab.persistify.util.PersistenceExecutor;
+import it.mikeslab.persistify.util.SessionManager;
+import it.mikeslab.persistify.util.WriteBehindBuffer;
+import net.md_5.bungee.api.event.PlayerDisconnectEvent;
+import net.md_5.bungee.api.plugin.Listener;
+import net.md_5.bungee.event.EventHandler;
+
+import java.util.Collection;
+import java.util.UUID;
+import java.util.concurrent.RejectedExecutionException;
+
+public record UserDisconnectedEvent(LevelCache levelCache, SessionManager sessionManager,
+                                    WriteBehindBuffer writeBehindBuffer, PersistenceExecutor executor) implements Listener {
+
+    @EventHandler
+    public void onUserDisconnected(PlayerDisconnectEvent event) {
+        UUID playerUUID = event.getPlayer().getUniqueId();
+        Collection<PlayerData> data = sessionManager.close(playerUUID);
+        levelCache.invalidatePlayer(playerUUID);
+
+        // Write the player's last changes right away, so that another proxy they join next reads them
+        try {
+            executor.execute(() -> {
+                try {
+                    writeBehindBuffer.flushPlayer(playerUUID);
+                } finally {
+                    sessionManager.save(data);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            // The levels are written by the next periodic flush, the data by the next retry of unsaved data
+            sessionManager.keepUnsaved(data);
+        }
+    }
+
+
+}
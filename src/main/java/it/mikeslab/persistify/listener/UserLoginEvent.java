@@ -0,0 +1,72 @@
+/*
+ *  Copyright (c) 2023, MikesLab
+ *  All rights reserved.
+ *
+ *  Redistribution and use in source and binary forms, with or without
+ *  modification, are permitted provided that the following conditions are met:
+ *  1. Redistributions of source code must retain the above copyright notice, this
+ *     list of conditions and the following disclaimer.
+ *  2. Redistributions in binary form must reproduce the above copyright notice,
+ *     this list of conditions and the following disclaimer in the documentation
+ *     and/or other materials provided with the distribution.
+ *  3. Neither the name of the copyright holder nor the names of its
+ *     contributors may be used to endorse or promote products derived from
+ *     this software without specific prior written permission.
+ *  4. Redistribution of this software in source or binary forms shall be free
+ *     of all charges or fees to the recipient of this software.
+ *
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ *  AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ *  IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ *  DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ *  FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ *  DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ *  SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ *  CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ *  OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ *  OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package it.mikeslab.persistify.listener;
+
+import it.mikeslab.persistify.util.PersistenceExecutor;
+import it.mikeslab.persistify.util.SessionManager;
+import it.mikeslab.persistify.util.StorageUnavailableException;
+import net.md_5.bungee.api.event.LoginEvent;
+import net.md_5.bungee.api.plugin.Listener;
+import net.md_5.bungee.api.plugin.Plugin;
+import net.md_5.bungee.event.EventHandler;
+
+import java.util.UUID;
+import java.util.concurrent.RejectedExecutionException;
+
+public record UserLoginEvent(Plugin plugin, SessionManager sessionManager, PersistenceExecutor executor) implements Listener {
+
+    @EventHandler
+    public void onUserLogin(LoginEvent event) {
+        if (event.isCancelled()) {
+            return;
+        }
+
+        UUID playerUUID = event.getConnection().getUniqueId();
+
+        // The login waits for the player's profiles without holding a network thread
+        event.registerIntent(plugin);
+        try {
+            executor.execute(() -> {
+                try {
+                    sessionManager.open(playerUUID);
+                } catch (StorageUnavailableException e) {
+                    // The player is let in without a session, levels are then read through the cache
+                } finally {
+                    event.completeIntent(plugin);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            // Same as above, the login must never wait on an intent nobody completes
+            event.completeIntent(plugin);
+        }
+    }
+
+
+}
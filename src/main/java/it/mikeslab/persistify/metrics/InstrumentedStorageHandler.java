@@ -0,0 +1,169 @@
+/*
+ *  Copyright (c) 2023, MikesLab
+ *  All rights reserved.
+ *
+ *  Redistribution and use in source and binary forms, with or without
+ *  modification, are permitted provided that the following conditions are met:
+ *  1. Redistributions of source code must retain the above copyright notice, this
+ *     list of conditions and the following disclaimer.
+ *  2. Redistributions in binary form must reproduce the above copyright notice,
+ *     this list of conditions and the following disclaimer in the documentation
+ *     and/or other materials provided with the distribution.
+ *  3. Neither the name of the copyright holder nor the names of its
+ *     contributors may be used to endorse or promote products derived from
+ *     this software without specific prior written permission.
+ *  4. Redistribution of this software in source or binary forms shall be free
+ *     of all charges or fees to the recipient of this software.
+ *
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ *  AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ *  IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ *  DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ *  FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ *  DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ *  SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ *  CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ *  OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ *  OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package it.mikeslab.persistify.metrics;
+
+import it.mikeslab.persistify.data.DataChanges;
+import it.mikeslab.persistify.object.User;
+import it.mikeslab.persistify.object.UserKey;
+import it.mikeslab.persistify.util.StorageHandler;
+
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.function.Consumer;
+
+/**
+ * A StorageHandler which records latency, error and concurrency metrics of every operation of another one.
+ */
+public class InstrumentedStorageHandler implements StorageHandler {
+
+    private final StorageHandler delegate;
+    private final OperationMetrics registerUser;
+    private final OperationMetrics setLevel;
+    private final OperationMetrics setLevels;
+    private final OperationMetrics getLevel;
+    private final OperationMetrics getLevels;
+    private final OperationMetrics getUserProfiles;
+    private final OperationMetrics getData;
+    private final OperationMetrics updateData;
+    private final OperationMetrics addExperience;
+    private final OperationMetrics getExperience;
+    private final OperationMetrics raiseLevel;
+    private final OperationMetrics getTopLevels;
+    private final OperationMetrics getRank;
+    private final OperationMetrics forEachUser;
+    private final OperationMetrics importUsers;
+
+    public InstrumentedStorageHandler(StorageHandler delegate, PersistifyMetrics metrics) {
+        this.delegate = delegate;
+        this.registerUser = metrics.operation("registerUser");
+        this.setLevel = metrics.operation("setLevelByUUID");
+        this.setLevels = metrics.operation("setLevels");
+        this.getLevel = metrics.operation("getLevelByUUID");
+        this.getLevels = metrics.operation("getLevels");
+        this.getUserProfiles = metrics.operation("getUserProfiles");
+        this.getData = metrics.operation("getData");
+        this.updateData = metrics.operation("updateData");
+        this.addExperience = metrics.operation("addExperience");
+        this.getExperience = metrics.operation("getExperience");
+        this.raiseLevel = metrics.operation("raiseLevel");
+        this.getTopLevels = metrics.operation("getTopLevels");
+        this.getRank = metrics.operation("getRank");
+        this.forEachUser = metrics.operation("forEachUser");
+        this.importUsers = metrics.operation("importUsers");
+    }
+
+    @Override
+    public int registerUser(User user) {
+        return registerUser.record(() -> delegate.registerUser(user));
+    }
+
+    @Override
+    public void setLevelByUUID(String bungeeCordServerName, UUID playerUUID, int newLevel) {
+        setLevel.run(() -> delegate.setLevelByUUID(bungeeCordServerName, playerUUID, newLevel));
+    }
+
+    @Override
+    public void setLevels(Map<UserKey, Integer> levels) {
+        setLevels.run(() -> delegate.setLevels(levels));
+    }
+
+    @Override
+    public int getLevelByUUID(String serverName, UUID playerUUID) {
+        return getLevel.record(() -> delegate.getLevelByUUID(serverName, playerUUID));
+    }
+
+    @Override
+    public Map<UUID, Integer> getLevels(String serverName, Collection<UUID> playerUUIDs) {
+        return getLevels.record(() -> delegate.getLevels(serverName, playerUUIDs));
+    }
+
+    @Override
+    public List<User> getUserProfiles(UUID playerUUID) {
+        return getUserProfiles.record(() -> delegate.getUserProfiles(playerUUID));
+    }
+
+    @Override
+    public Map<String, Object> getData(String serverName, UUID playerUUID) {
+        return getData.record(() -> delegate.getData(serverName, playerUUID));
+    }
+
+    @Override
+    public void updateData(String serverName, UUID playerUUID, DataChanges changes) {
+        updateData.run(() -> delegate.updateData(serverName, playerUUID, changes));
+    }
+
+    @Override
+    public Map<UserKey, Long> addExperience(UUID batchId, Map<UserKey, Long> amounts) {
+        return addExperience.record(() -> delegate.addExperience(batchId, amounts));
+    }
+
+    @Override
+    public long getExperience(String serverName, UUID playerUUID) {
+        return getExperience.record(() -> delegate.getExperience(serverName, playerUUID));
+    }
+
+    @Override
+    public int raiseLevel(String serverName, UUID playerUUID, int level) {
+        return raiseLevel.record(() -> delegate.raiseLevel(serverName, playerUUID, level));
+    }
+
+    @Override
+    public List<User> getTopLevels(String serverName, int offset, int limit) {
+        return getTopLevels.record(() -> delegate.getTopLevels(serverName, offset, limit));
+    }
+
+    @Override
+    public long getRank(String serverName, UUID playerUUID) {
+        return getRank.record(() -> delegate.getRank(serverName, playerUUID));
+    }
+
+    @Override
+    public void forEachUser(String serverName, Consumer<User> consumer) {
+        forEachUser.run(() -> delegate.forEachUser(serverName, consumer));
+    }
+
+    @Override
+    public void forEachUser(Consumer<User> consumer) {
+        forEachUser.run(() -> delegate.forEachUser(consumer));
+    }
+
+    @Override
+    public void importUsers(List<User> users) {
+        importUsers.run(() -> delegate.importUsers(users));
+    }
+
+    @Override
+    public void disconnect() {
+        delegate.disconnect();
+    }
+
+}
@@ -0,0 +1,83 @@
+/*
+ *  Copyright (c) 2023, MikesLab
+ *  All rights reserved.
+ *
+ *  Redistribution and use in source and binary forms, with or without
+ *  modification, are permitted provided that the following conditions are met:
+ *  1. Redistributions of source code must retain the above copyright notice, this
+ *     list of conditions and the following disclaimer.
+ *  2. Redistributions in binary form must reproduce the above copyright notice,
+ *     this list of conditions and the following disclaimer in the documentation
+ *     and/or other materials provided with the distribution.
+ *  3. Neither the name of the copyright holder nor the names of its
+ *     contributors may be used to endorse or promote products derived from
+ *     this software without specific prior written permission.
+ *  4. Redistribution of this software in source or binary forms shall be free
+ *     of all charges or fees to the recipient of this software.
+ *
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ *  AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ *  IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ *  DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ *  FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ *  DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ *  SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ *  CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ *  OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ *  OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package it.mikeslab.persistify.metrics;
+
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Periodically writes the metrics either to the console or to a JSON file.
+ */
+public class MetricsReporter implements Runnable {
+
+    private static final Gson GSON = new GsonBuilder().setPrettyPrinting().create();
+
+    private final PersistifyMetrics metrics;
+    private final boolean json;
+    private final File file;
+    private final Logger logger;
+
+    /**
+     * Constructs a new MetricsReporter.
+     *
+     * @param metrics the metrics to report
+     * @param format "json" to overwrite the specified file with a JSON snapshot, anything else to log a summary
+     * @param file the file JSON snapshots are written to
+     * @param logger the logger summaries are written to
+     */
+    public MetricsReporter(PersistifyMetrics metrics, String format, File file, Logger logger) {
+        this.metrics = metrics;
+        this.json = "json".equalsIgnoreCase(format);
+        this.file = file;
+        this.logger = logger;
+    }
+
+    @Override
+    public void run() {
+        if (!json) {
+            metrics.describe().forEach(line -> logger.info("[Metrics] " + line));
+            return;
+        }
+
+        try {
+            Files.writeString(file.toPath(), GSON.toJson(metrics.snapshot()), StandardCharsets.UTF_8);
+        } catch (IOException e) {
+            logger.log(Level.WARNING, "Unable to write " + file.getName(), e);
+        }
+    }
+
+}
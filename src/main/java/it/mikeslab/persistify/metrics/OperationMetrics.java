@@ -0,0 +1,134 @@
+/*
+ *  Copyright (c) 2023, MikesLab
+ *  All rights reserved.
+ *
+ *  Redistribution and use in source and binary forms, with or without
+ *  modification, are permitted provided that the following conditions are met:
+ *  1. Redistributions of source code must retain the above copyright notice, this
+ *     list of conditions and the following disclaimer.
+ *  2. Redistributions in binary form must reproduce the above copyright notice,
+ *     this list of conditions and the following disclaimer in the documentation
+ *     and/or other materials provided with the distribution.
+ *  3. Neither the name of the copyright holder nor the names of its
+ *     contributors may be used to endorse or promote products derived from
+ *     this software without specific prior written permission.
+ *  4. Redistribution of this software in source or binary forms shall be free
+ *     of all charges or fees to the recipient of this software.
+ *
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ *  AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ *  IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ *  DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ *  FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ *  DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ *  SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ *  CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ *  OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ *  OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package it.mikeslab.persistify.metrics;
+
+import com.mongodb.MongoExecutionTimeoutException;
+import com.mongodb.MongoSocketReadTimeoutException;
+import com.mongodb.MongoTimeoutException;
+import lombok.Getter;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+
+/**
+ * Latency, error and concurrency statistics of a single kind of storage operation.
+ */
+public class OperationMetrics {
+
+    @Getter private final String name;
+    @Getter private final LatencyHistogram latency = new LatencyHistogram();
+    private final LongAdder errors = new LongAdder();
+    private final LongAdder timeouts = new LongAdder();
+    private final AtomicInteger inFlight = new AtomicInteger();
+
+    public OperationMetrics(String name) {
+        this.name = name;
+    }
+
+    /**
+     * Runs and measures an operation.
+     *
+     * @param operation the operation to run
+     * @return the result of the operation
+     */
+    public <T> T record(Supplier<T> operation) {
+        inFlight.incrementAndGet();
+        long start = System.nanoTime();
+        try {
+            return operation.get();
+        } catch (RuntimeException e) {
+            errors.increment();
+            if (isTimeout(e)) {
+                timeouts.increment();
+            }
+            throw e;
+        } finally {
+            latency.record(System.nanoTime() - start);
+            inFlight.decrementAndGet();
+        }
+    }
+
+    /**
+     * Runs and measures an operation which does not return a result.
+     *
+     * @param operation the operation to run
+     */
+    public void run(Runnable operation) {
+        record(() -> {
+            operation.run();
+            return null;
+        });
+    }
+
+    public long getErrors() {
+        return errors.sum();
+    }
+
+    public long getTimeouts() {
+        return timeouts.sum();
+    }
+
+    public int getInFlight() {
+        return inFlight.get();
+    }
+
+    /**
+     * @return the current statistics, suitable for serialization
+     */
+    public Map<String, Object> snapshot() {
+        Map<String, Object> snapshot = new LinkedHashMap<>();
+        snapshot.put("calls", latency.getCount());
+        snapshot.put("errors", getErrors());
+        snapshot.put("timeouts", getTimeouts());
+        snapshot.put("inFlight", getInFlight());
+        snapshot.put("p50Micros", latency.getPercentile(50));
+        snapshot.put("p99Micros", latency.getPercentile(99));
+        snapshot.put("maxMicros", latency.getMax());
+        return snapshot;
+    }
+
+
+    private static boolean isTimeout(Throwable throwable) {
+        for (Throwable cause = throwable; cause != null; cause = cause.getCause()) {
+            if (cause instanceof MongoTimeoutException
+                    || cause instanceof MongoSocketReadTimeoutException
+                    || cause instanceof MongoExecutionTimeoutException
+                    || cause instanceof TimeoutException) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+}
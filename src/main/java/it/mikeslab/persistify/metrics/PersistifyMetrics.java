@@ -0,0 +1,108 @@
+/*
+ *  Copyright (c) 2023, MikesLab
+ *  All rights reserved.
+ *
+ *  Redistribution and use in source and binary forms, with or without
+ *  modification, are permitted provided that the following conditions are met:
+ *  1. Redistributions of source code must retain the above copyright notice, this
+ *     list of conditions and the following disclaimer.
+ *  2. Redistributions in binary form must reproduce the above copyright notice,
+ *     this list of conditions and the following disclaimer in the documentation
+ *     and/or other materials provided with the distribution.
+ *  3. Neither the name of the copyright holder nor the names of its
+ *     contributors may be used to endorse or promote products derived from
+ *     this software without specific prior written permission.
+ *  4. Redistribution of this software in source or binary forms shall be free
+ *     of all charges or fees to the recipient of this software.
+ *
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ *  AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ *  IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ *  DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ *  FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ *  DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ *  SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ *  CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ *  OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ *  OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package it.mikeslab.persistify.metrics;
+
+import lombok.Getter;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.function.Supplier;
+
+/**
+ * The registry of every metric exposed by Persistify.
+ */
+public class PersistifyMetrics {
+
+    private final Map<String, OperationMetrics> operations = new ConcurrentSkipListMap<>();
+    private final Map<String, Supplier<? extends Number>> gauges = new ConcurrentSkipListMap<>();
+    @Getter private final DriverMetrics driverMetrics = new DriverMetrics();
+
+    /**
+     * Gets the metrics of an operation, creating them on first use.
+     *
+     * @param name the name of the operation
+     * @return the metrics of the operation
+     */
+    public OperationMetrics operation(String name) {
+        return operations.computeIfAbsent(name, OperationMetrics::new);
+    }
+
+    /**
+     * Registers a gauge, replacing any gauge with the same name.
+     *
+     * @param name the name of the gauge
+     * @param gauge the supplier of the current value
+     */
+    public void gauge(String name, Supplier<? extends Number> gauge) {
+        gauges.put(name, gauge);
+    }
+
+    /**
+     * @return the current value of every metric, suitable for serialization
+     */
+    public Map<String, Object> snapshot() {
+        Map<String, Object> operationSnapshots = new LinkedHashMap<>();
+        operations.forEach((name, metrics) -> operationSnapshots.put(name, metrics.snapshot()));
+
+        Map<String, Object> gaugeValues = new LinkedHashMap<>();
+        gauges.forEach((name, gauge) -> gaugeValues.put(name, gauge.get()));
+
+        Map<String, Object> snapshot = new LinkedHashMap<>();
+        snapshot.put("timestamp", System.currentTimeMillis());
+        snapshot.put("operations", operationSnapshots);
+        snapshot.put("driver", driverMetrics.snapshot());
+        snapshot.put("gauges", gaugeValues);
+        return snapshot;
+    }
+
+    /**
+     * @return a short human-readable line for every operation and gauge
+     */
+    public List<String> describe() {
+        List<String> lines = new ArrayList<>();
+        operations.forEach((name, metrics) -> lines.add(String.format(
+                "%s: %d calls, p50 %.2fms, p99 %.2fms, max %.2fms, %d errors, %d timeouts, %d in-flight",
+                name,
+                metrics.getLatency().getCount(),
+                metrics.getLatency().getPercentile(50) / 1000.0,
+                metrics.getLatency().getPercentile(99) / 1000.0,
+                metrics.getLatency().getMax() / 1000.0,
+                metrics.getErrors(),
+                metrics.getTimeouts(),
+                metrics.getInFlight())));
+        driverMetrics.snapshot().forEach((name, value) -> lines.add("driver." + name + ": " + value));
+        gauges.forEach((name, gauge) -> lines.add(name + ": " + gauge.get()));
+        return lines;
+    }
+
+}
@@ -34,6 +34,8 @@ import lombok.Getter;
 import lombok.Setter;
 import net.md_5.bungee.api.connection.ProxiedPlayer;
 
+import java.util.HashMap;
+import java.util.Map;
 import java.util.UUID;
 
 @Getter
@@ -44,7 +46,14 @@ public class User {
     private String serverName;
     private String playerName;
     private UUID playerUUID;
-    private int level; //Def = 0, there is not a Level-System implemented in this version of the plug-in.
+    private int level; //Def = 0, raised by the ExperienceEngine as experience is awarded.
+    private long experience; // Total experience awarded on the server
+    private long lastSeen; // Epoch millis of the last connection to the server, 0 if unknown
+    private final Map<String, Object> data = new HashMap<>(); // Stored values of the fields set by other plugins, see PlayerData
+
+    public User(String serverName, String playerName, UUID playerUUID, int level) {
+        this(serverName, playerName, playerUUID, level, 0, 0);
+    }
 
     public static User reduce(ProxiedPlayer subject, String serverName) {
         return new User(serverName, subject.getName(), subject.getUniqueId(), 0);
@@ -59,6 +59,20 @@ public class ConfigHandler {
     }
 
 
+    /**
+     * Reads 'config.yml' again. The current configuration is kept if the file cannot be read or parsed.
+     *
+     * @return the previous configuration
+     * @throws IOException if the file cannot be read
+     */
+    public Configuration reloadConfig() throws IOException {
+        Configuration previous = getConfig();
+        setConfig(ConfigurationProvider.getProvider(YamlConfiguration.class).load(new File(Persistify.getInstance().getDataFolder(), "config.yml")));
+        Persistify.getInstance().getLogger().info("Reloading 'config.yml'...");
+        return previous;
+    }
+
+
     public boolean makeConfig() throws IOException {
         Plugin plugin = Persistify.getInstance();
 
@@ -0,0 +1,132 @@
+/*
+ *  Copyright (c) 2023, MikesLab
+ *  All rights reserved.
+ *
+ *  Redistribution and use in source and binary forms, with or without
+ *  modification, are permitted provided that the following conditions are met:
+ *  1. Redistributions of source code must retain the above copyright notice, this
+ *     list of conditions and the following disclaimer.
+ *  2. Redistributions in binary form must reproduce the above copyright notice,
+ *     this list of conditions and the following disclaimer in the documentation
+ *     and/or other materials provided with the distribution.
+ *  3. Neither the name of the copyright holder nor the names of its
+ *     contributors may be used to endorse or promote products derived from
+ *     this software without specific prior written permission.
+ *  4. Redistribution of this software in source or binary forms shall be free
+ *     of all charges or fees to the recipient of this software.
+ *
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ *  AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ *  IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ *  DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ *  FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ *  DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ *  SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ *  CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ *  OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ *  OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package it.mikeslab.persistify.util;
+
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Watches a file and runs an action whenever it is saved.
+ * <p>
+ * Editors often write a file in several steps, so the action only runs once the file has not changed for a short delay.
+ */
+public class ConfigWatcher {
+
+    private static final long SETTLE_DELAY = 500;
+
+    private final Path file;
+    private final Runnable onChange;
+    private final Logger logger;
+    private final WatchService watchService;
+
+    /**
+     * Constructs a new ConfigWatcher and starts watching the file.
+     *
+     * @param file the file to watch
+     * @param onChange the action run on the watcher thread when the file changes
+     * @param logger the logger failed actions are reported to
+     * @throws IOException if the folder of the file cannot be watched
+     */
+    public ConfigWatcher(Path file, Runnable onChange, Logger logger) throws IOException {
+        this.file = file.toAbsolutePath();
+        this.onChange = onChange;
+        this.logger = logger;
+
+        this.watchService = FileSystems.getDefault().newWatchService();
+        this.file.getParent().register(watchService, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY);
+
+        Thread thread = new Thread(this::watch, "Persistify Config Watcher");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Stops watching the file.
+     */
+    public void close() {
+        try {
+            watchService.close();
+        } catch (IOException e) {
+            logger.log(Level.FINE, "Unable to close the config watcher", e);
+        }
+    }
+
+
+    private void watch() {
+        try {
+            while (true) {
+                if (!concernsFile(watchService.take())) {
+                    continue;
+                }
+
+                // Wait for the writes to settle, folding the following events into this change. Only changes to the
+                // file extend the wait, other files of the folder such as the metrics dump could keep it open forever
+                long settleDelay = TimeUnit.MILLISECONDS.toNanos(SETTLE_DELAY);
+                long settledAt = System.nanoTime() + settleDelay;
+                long remaining;
+                while ((remaining = settledAt - System.nanoTime()) > 0) {
+                    WatchKey next = watchService.poll(remaining, TimeUnit.NANOSECONDS);
+                    if (next != null && concernsFile(next)) {
+                        settledAt = System.nanoTime() + settleDelay;
+                    }
+                }
+
+                try {
+                    onChange.run();
+                } catch (RuntimeException e) {
+                    logger.log(Level.WARNING, "Unable to apply the changes to " + file.getFileName(), e);
+                }
+            }
+        } catch (InterruptedException | ClosedWatchServiceException e) {
+            // Closed
+        }
+    }
+
+    private boolean concernsFile(WatchKey key) {
+        boolean concerns = false;
+        for (WatchEvent<?> event : key.pollEvents()) {
+            if (event.context() instanceof Path changed && file.getFileName().equals(changed)) {
+                concerns = true;
+            }
+        }
+        key.reset();
+        return concerns;
+    }
+
+}
@@ -0,0 +1,226 @@
+/*
+ *  Copyright (c) 2023, MikesLab
+ *  All rights reserved.
+ *
+ *  Redistribution and use in source and binary forms, with or without
+ *  modification, are permitted provided that the following conditions are met:
+ *  1. Redistributions of source code must retain the above copyright notice, this
+ *     list of conditions and the following disclaimer.
+ *  2. Redistributions in binary form must reproduce the above copyright notice,
+ *     this list of conditions and the following disclaimer in the documentation
+ *     and/or other materials provided with the distribution.
+ *  3. Neither the name of the copyright holder nor the names of its
+ *     contributors may be used to endorse or promote products derived from
+ *     this software without specific prior written permission.
+ *  4. Redistribution of this software in source or binary forms shall be free
+ *     of all charges or fees to the recipient of this software.
+ *
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ *  AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ *  IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ *  DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ *  FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ *  DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ *  SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ *  CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ *  OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ *  OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package it.mikeslab.persistify.util;
+
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import it.mikeslab.persistify.data.DataJson;
+import it.mikeslab.persistify.object.User;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+/**
+ * Streams player data between a storage backend and an NDJSON file, one player per line, including the data
+ * stored by other plugins.
+ * Memory usage is bounded by the batch size, regardless of the amount of data.
+ */
+public class DataTransfer {
+
+    private static final int PROGRESS_INTERVAL = 10_000;
+    private static final int REPORTED_MALFORMED_LINES = 20;
+
+    private final StorageHandler storageHandler;
+    private final int batchSize;
+    private final Logger logger;
+
+    /**
+     * Constructs a new DataTransfer.
+     *
+     * @param storageHandler the storage the data is exported from or imported into
+     * @param batchSize the number of players written to the storage with each bulk write
+     * @param logger the logger progress is reported to
+     */
+    public DataTransfer(StorageHandler storageHandler, int batchSize, Logger logger) {
+        this.storageHandler = storageHandler;
+        this.batchSize = batchSize;
+        this.logger = logger;
+    }
+
+    /**
+     * Writes every stored player to a file, replacing its content.
+     *
+     * @param file the file to write
+     * @return the number of exported players
+     * @throws IOException if the file cannot be written
+     */
+    public long exportTo(Path file) throws IOException {
+        Progress progress = new Progress("Exported");
+
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+             BufferedWriter writer = new BufferedWriter(Channels.newWriter(channel, StandardCharsets.UTF_8), 64 * 1024)) {
+            storageHandler.forEachUser(user -> {
+                try {
+                    writer.write(toJson(user));
+                    writer.newLine();
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+                progress.increment();
+            });
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+
+        progress.complete();
+        return progress.count;
+    }
+
+    /**
+     * Reads players from a file and stores them, replacing the name and level of the players already stored.
+     * Malformed lines are skipped and reported with their line number.
+     *
+     * @param file the file to read
+     * @return the number of imported players
+     * @throws IOException if the file cannot be read
+     */
+    public long importFrom(Path file) throws IOException {
+        Progress progress = new Progress("Imported");
+        List<User> batch = new ArrayList<>(batchSize);
+        long lineNumber = 0;
+        long malformed = 0;
+
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ);
+             BufferedReader reader = new BufferedReader(Channels.newReader(channel, StandardCharsets.UTF_8), 64 * 1024)) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                lineNumber++;
+                if (line.isBlank()) {
+                    continue;
+                }
+
+                User user;
+                try {
+                    user = fromJson(line);
+                } catch (RuntimeException e) {
+                    // Whatever the line contains, one bad player must not abort the import of the others
+                    if (++malformed <= REPORTED_MALFORMED_LINES) {
+                        logger.warning("Skipping malformed line " + lineNumber + " of " + file.getFileName() + ": " + e.getMessage());
+                    }
+                    continue;
+                }
+
+                batch.add(user);
+                if (batch.size() >= batchSize) {
+                    storageHandler.importUsers(batch);
+                    progress.add(batch.size());
+                    batch.clear();
+                }
+            }
+        }
+
+        storageHandler.importUsers(batch);
+        progress.add(batch.size());
+        progress.complete();
+        if (malformed > 0) {
+            logger.warning("Skipped " + malformed + " malformed line(s) of " + file.getFileName() + ".");
+        }
+        return progress.count;
+    }
+
+
+    private static String toJson(User user) {
+        JsonObject json = new JsonObject();
+        json.addProperty("server", user.getServerName());
+        json.addProperty("uuid", user.getPlayerUUID().toString());
+        json.addProperty("name", user.getPlayerName());
+        json.addProperty("level", user.getLevel());
+        if (user.getExperience() != 0) {
+            json.addProperty("xp", user.getExperience());
+        }
+        if (!user.getData().isEmpty()) {
+            json.add("data", DataJson.toJson(user.getData()));
+        }
+        return json.toString();
+    }
+
+    private static User fromJson(String line) {
+        JsonObject json = JsonParser.parseString(line).getAsJsonObject();
+        if (!json.has("server") || !json.has("uuid")) {
+            throw new IllegalArgumentException("server and uuid are required");
+        }
+        User user = new User(
+                json.get("server").getAsString(),
+                json.has("name") && !json.get("name").isJsonNull() ? json.get("name").getAsString() : null,
+                UUID.fromString(json.get("uuid").getAsString()),
+                json.has("level") ? json.get("level").getAsInt() : 0,
+                json.has("xp") ? json.get("xp").getAsLong() : 0,
+                0);
+        if (json.has("data")) {
+            user.getData().putAll(DataJson.fromJson(json.getAsJsonObject("data")));
+        }
+        return user;
+    }
+
+
+    private class Progress {
+        private final String action;
+        private final long start = System.nanoTime();
+        private long count;
+
+        private Progress(String action) {
+            this.action = action;
+        }
+
+        private void increment() {
+            add(1);
+        }
+
+        private void add(long amount) {
+            long previous = count;
+            count += amount;
+            if (count / PROGRESS_INTERVAL != previous / PROGRESS_INTERVAL) {
+                logger.info(action + " " + count + " player(s) so far (" + rate() + "/s)...");
+            }
+        }
+
+        private void complete() {
+            logger.info(action + " " + count + " player(s) in " + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) + "ms (" + rate() + "/s).");
+        }
+
+        private long rate() {
+            long elapsed = Math.max(1, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+            return count * 1000 / elapsed;
+        }
+    }
+
+}
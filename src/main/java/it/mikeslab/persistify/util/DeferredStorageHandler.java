@@ -0,0 +1,291 @@
+/*
+ *  Copyright (c) 2023, MikesLab
+ *  All rights reserved.
+ *
+ *  Redistribution and use in source and binary forms, with or without
+ *  modification, are permitted provided that the following conditions are met:
+ *  1. Redistributions of source code must retain the above copyright notice, this
+ *     list of conditions and the following disclaimer.
+ *  2. Redistributions in binary form must reproduce the above copyright notice,
+ *     this list of conditions and the following disclaimer in the documentation
+ *     and/or other materials provided with the distribution.
+ *  3. Neither the name of the copyright holder nor the names of its
+ *     contributors may be used to endorse or promote products derived from
+ *     this software without specific prior written permission.
+ *  4. Redistribution of this software in source or binary forms shall be free
+ *     of all charges or fees to the recipient of this software.
+ *
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ *  AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ *  IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ *  DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ *  FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ *  DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ *  SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ *  CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ *  OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ *  OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package it.mikeslab.persistify.util;
+
+import it.mikeslab.persistify.data.DataChanges;
+import it.mikeslab.persistify.object.User;
+import it.mikeslab.persistify.object.UserKey;
+
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.logging.Logger;
+
+/**
+ * A StorageHandler which becomes usable once another one has been bootstrapped in the background,
+ * so that the proxy does not wait on the database while starting, and which can later be switched to another one.
+ * <p>
+ * The bootstrap is retried until it succeeds. Until then every operation fails fast with a
+ * {@link StorageUnavailableException}, which the {@link ResilientStorageHandler} turns into queued writes.
+ */
+public class DeferredStorageHandler implements StorageHandler {
+
+    public enum State {
+        STARTING, READY, CLOSED
+    }
+
+    private final CompletableFuture<Void> ready = new CompletableFuture<>();
+    private final ReadWriteLock switchLock = new ReentrantReadWriteLock();
+    private final Thread bootstrapThread;
+
+    private volatile StorageHandler target;
+    private volatile State state = State.STARTING;
+
+    /**
+     * Constructs a new DeferredStorageHandler. The bootstrap starts with {@link #start()}.
+     *
+     * @param target the storage to bootstrap
+     * @param bootstrap the bootstrap of the storage, which blocks and throws if it fails
+     * @param retryInterval the number of milliseconds between bootstrap attempts
+     * @param logger the logger failed attempts are reported to
+     */
+    public DeferredStorageHandler(StorageHandler target, Runnable bootstrap, long retryInterval, Logger logger) {
+        this.target = target;
+        this.bootstrapThread = new Thread(() -> {
+            while (state == State.STARTING) {
+                try {
+                    bootstrap.run();
+                    markReady();
+                    return;
+                } catch (RuntimeException e) {
+                    if (state != State.STARTING) {
+                        return;
+                    }
+                    logger.warning("Unable to reach the storage (" + e.getMessage() + "), retrying in " + retryInterval + "ms.");
+                }
+
+                try {
+                    TimeUnit.MILLISECONDS.sleep(retryInterval);
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+        }, "Persistify Bootstrap");
+        this.bootstrapThread.setDaemon(true);
+    }
+
+    /**
+     * Starts bootstrapping the storage in the background.
+     */
+    public void start() {
+        bootstrapThread.start();
+    }
+
+    /**
+     * Switches to another storage, which must already be bootstrapped. New operations wait while the in-flight ones
+     * complete on the current storage, then run on the new one, and the current storage is disconnected.
+     * If the current storage was still bootstrapping, the bootstrap is abandoned and the new storage is ready right away.
+     *
+     * @param next the storage to switch to
+     */
+    public void replace(StorageHandler next) {
+        StorageHandler previous;
+        boolean starting;
+
+        Lock lock = switchLock.writeLock();
+        lock.lock();
+        try {
+            if (state == State.CLOSED) {
+                next.disconnect();
+                return;
+            }
+            previous = target;
+            starting = state == State.STARTING;
+            target = next;
+            state = State.READY;
+        } finally {
+            lock.unlock();
+        }
+
+        if (starting) {
+            bootstrapThread.interrupt();
+            ready.complete(null);
+        }
+        previous.disconnect();
+    }
+
+    public State getState() {
+        return state;
+    }
+
+    /**
+     * @return a future completed once the storage is ready
+     */
+    public CompletableFuture<Void> whenReady() {
+        return ready;
+    }
+
+    @Override
+    public int registerUser(User user) {
+        return call(storage -> storage.registerUser(user));
+    }
+
+    @Override
+    public void setLevelByUUID(String bungeeCordServerName, UUID playerUUID, int newLevel) {
+        run(storage -> storage.setLevelByUUID(bungeeCordServerName, playerUUID, newLevel));
+    }
+
+    @Override
+    public void setLevels(Map<UserKey, Integer> levels) {
+        run(storage -> storage.setLevels(levels));
+    }
+
+    @Override
+    public int getLevelByUUID(String serverName, UUID playerUUID) {
+        return call(storage -> storage.getLevelByUUID(serverName, playerUUID));
+    }
+
+    @Override
+    public Map<UUID, Integer> getLevels(String serverName, Collection<UUID> playerUUIDs) {
+        return call(storage -> storage.getLevels(serverName, playerUUIDs));
+    }
+
+    @Override
+    public List<User> getUserProfiles(UUID playerUUID) {
+        return call(storage -> storage.getUserProfiles(playerUUID));
+    }
+
+    @Override
+    public Map<String, Object> getData(String serverName, UUID playerUUID) {
+        return call(storage -> storage.getData(serverName, playerUUID));
+    }
+
+    @Override
+    public void updateData(String serverName, UUID playerUUID, DataChanges changes) {
+        run(storage -> storage.updateData(serverName, playerUUID, changes));
+    }
+
+    @Override
+    public Map<UserKey, Long> addExperience(UUID batchId, Map<UserKey, Long> amounts) {
+        return call(storage -> storage.addExperience(batchId, amounts));
+    }
+
+    @Override
+    public long getExperience(String serverName, UUID playerUUID) {
+        return call(storage -> storage.getExperience(serverName, playerUUID));
+    }
+
+    @Override
+    public int raiseLevel(String serverName, UUID playerUUID, int level) {
+        return call(storage -> storage.raiseLevel(serverName, playerUUID, level));
+    }
+
+    @Override
+    public List<User> getTopLevels(String serverName, int offset, int limit) {
+        return call(storage -> storage.getTopLevels(serverName, offset, limit));
+    }
+
+    @Override
+    public long getRank(String serverName, UUID playerUUID) {
+        return call(storage -> storage.getRank(serverName, playerUUID));
+    }
+
+    /**
+     * Streams every player of a BungeeCord server from the current storage. Streams can be long, so a switch to
+     * another storage does not wait for them: it disconnects the storage being streamed, and the stream fails.
+     */
+    @Override
+    public void forEachUser(String serverName, Consumer<User> consumer) {
+        call(storage -> storage).forEachUser(serverName, consumer);
+    }
+
+    /**
+     * Streams every player from the current storage. Streams can be long, so a switch to another storage
+     * does not wait for them: it disconnects the storage being streamed, and the stream fails.
+     */
+    @Override
+    public void forEachUser(Consumer<User> consumer) {
+        call(storage -> storage).forEachUser(consumer);
+    }
+
+    @Override
+    public void importUsers(List<User> users) {
+        run(storage -> storage.importUsers(users));
+    }
+
+    /**
+     * Stops the bootstrap if it is still running and disconnects the storage.
+     */
+    @Override
+    public void disconnect() {
+        state = State.CLOSED;
+        bootstrapThread.interrupt();
+        target.disconnect();
+    }
+
+
+    private <T> T call(Function<StorageHandler, T> operation) {
+        Lock lock = switchLock.readLock();
+        lock.lock();
+        try {
+            return operation.apply(current());
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void run(Consumer<StorageHandler> operation) {
+        call(storage -> {
+            operation.accept(storage);
+            return null;
+        });
+    }
+
+    private StorageHandler current() {
+        return switch (state) {
+            case READY -> target;
+            case STARTING -> throw new StorageUnavailableException("Storage is not ready yet");
+            case CLOSED -> throw new StorageUnavailableException("Storage has been closed");
+        };
+    }
+
+    private void markReady() {
+        Lock lock = switchLock.writeLock();
+        lock.lock();
+        try {
+            if (state != State.STARTING) {
+                return;
+            }
+            state = State.READY;
+        } finally {
+            lock.unlock();
+        }
+        ready.complete(null);
+    }
+
+}
@@ -0,0 +1,193 @@
+/*
+ *  Copyright (c) 2023, MikesLab
+ *  All rights reserved.
+ *
+ *  Redistribution and use in source and binary forms, with or without
+ *  modification, are permitted provided that the following conditions are met:
+ *  1. Redistributions of source code must retain the above copyright notice, this
+ *     list of conditions and the following disclaimer.
+ *  2. Redistributions in binary form must reproduce the above copyright notice,
+ *     this list of conditions and the following disclaimer in the documentation
+ *     and/or other materials provided with the distribution.
+ *  3. Neither the name of the copyright holder nor the names of its
+ *     contributors may be used to endorse or promote products derived from
+ *     this software without specific prior written permission.
+ *  4. Redistribution of this software in source or binary forms shall be free
+ *     of all charges or fees to the recipient of this software.
+ *
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ *  AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ *  IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ *  DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ *  FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ *  DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ *  SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ *  CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ *  OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ *  OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package it.mikeslab.persistify.util;
+
+import it.mikeslab.persistify.object.User;
+import it.mikeslab.persistify.object.UserKey;
+
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.NavigableSet;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+
+/**
+ * Level rankings of the BungeeCord servers.
+ * <p>
+ * Rankings are either queried from the storage, or kept in memory: the ranking of a server is then loaded
+ * from the storage on first use and kept up to date with every level change reported to
+ * {@link #update(UserKey, String, int)}. Updates received while a ranking is loading take precedence
+ * over the loaded data.
+ */
+public class Leaderboard {
+
+    private final StorageHandler storageHandler;
+    private final boolean inMemory;
+    private final Map<String, ServerRanking> rankings = new ConcurrentHashMap<>();
+
+    /**
+     * Constructs a new Leaderboard.
+     *
+     * @param storageHandler the storage the rankings are read from
+     * @param inMemory whether rankings are kept in memory instead of being queried every time
+     */
+    public Leaderboard(StorageHandler storageHandler, boolean inMemory) {
+        this.storageHandler = storageHandler;
+        this.inMemory = inMemory;
+    }
+
+    /**
+     * Gets a page of the players of a BungeeCord server, ordered by descending level.
+     *
+     * @param serverName the name of the BungeeCord server
+     * @param offset the number of players to skip
+     * @param limit the maximum number of players to return
+     * @return the players, highest level first
+     */
+    public List<User> getTopLevels(String serverName, int offset, int limit) {
+        if (!inMemory) {
+            return storageHandler.getTopLevels(serverName, offset, limit);
+        }
+
+        ServerRanking ranking = ranking(serverName);
+        return ranking.entries.stream()
+                .skip(offset)
+                .limit(limit)
+                .map(entry -> new User(serverName, entry.playerName(), entry.playerUUID(), entry.level()))
+                .toList();
+    }
+
+    /**
+     * Gets the rank of a player on a BungeeCord server. Players with the same level share the same rank.
+     * <p>
+     * In memory, the rank adds up the number of players of each higher level, so its cost grows with the number
+     * of distinct levels above the player rather than with the number of players.
+     *
+     * @param serverName the name of the BungeeCord server
+     * @param playerUUID the UUID of the player
+     * @return the 1-based rank of the player, or -1 if the player is not ranked
+     */
+    public long getRank(String serverName, UUID playerUUID) {
+        if (!inMemory) {
+            return storageHandler.getRank(serverName, playerUUID);
+        }
+
+        ServerRanking ranking = ranking(serverName);
+        Entry entry = ranking.byPlayer.get(playerUUID);
+        if (entry == null) {
+            return -1;
+        }
+        long higher = 0;
+        for (int count : ranking.levelCounts.headMap(entry.level(), false).values()) {
+            higher += count;
+        }
+        return higher + 1;
+    }
+
+    /**
+     * Records a level change. Servers whose ranking has never been requested are ignored,
+     * as is everything when rankings are not kept in memory.
+     *
+     * @param key the player and server the level belongs to
+     * @param playerName the name of the player, or null to keep the known one
+     * @param level the new level
+     */
+    public void update(UserKey key, String playerName, int level) {
+        ServerRanking ranking = rankings.get(key.serverName());
+        if (ranking != null) {
+            ranking.put(key.playerUUID(), playerName, level, false);
+        }
+    }
+
+    /**
+     * Discards the rankings kept in memory, so that they are loaded again on next use.
+     */
+    public void clear() {
+        rankings.clear();
+    }
+
+
+    private ServerRanking ranking(String serverName) {
+        ServerRanking ranking = rankings.computeIfAbsent(serverName, name -> new ServerRanking());
+        if (!ranking.loaded) {
+            // Loading holds its own lock, so that updates to the ranking are never blocked for the whole load
+            synchronized (ranking.loadLock) {
+                if (!ranking.loaded) {
+                    storageHandler.forEachUser(serverName, user ->
+                            ranking.put(user.getPlayerUUID(), user.getPlayerName(), user.getLevel(), true));
+                    ranking.loaded = true;
+                }
+            }
+        }
+        return ranking;
+    }
+
+
+    private record Entry(UUID playerUUID, String playerName, int level) implements Comparable<Entry> {
+
+        @Override
+        public int compareTo(Entry other) {
+            int byLevel = Integer.compare(other.level, level);
+            return byLevel != 0 ? byLevel : playerUUID.compareTo(other.playerUUID);
+        }
+
+    }
+
+    private static class ServerRanking {
+        private final NavigableSet<Entry> entries = new ConcurrentSkipListSet<>();
+        private final Map<UUID, Entry> byPlayer = new ConcurrentHashMap<>();
+        // The number of players of each level, highest level first
+        private final NavigableMap<Integer, Integer> levelCounts = new ConcurrentSkipListMap<>(Comparator.reverseOrder());
+        private final Object loadLock = new Object();
+        private volatile boolean loaded;
+
+        private synchronized void put(UUID playerUUID, String playerName, int level, boolean onlyIfAbsent) {
+            Entry previous = byPlayer.get(playerUUID);
+            if (previous != null && onlyIfAbsent) {
+                return;
+            }
+
+            String name = playerName != null || previous == null ? playerName : previous.playerName();
+            Entry entry = new Entry(playerUUID, name, level);
+            if (previous != null) {
+                entries.remove(previous);
+                levelCounts.computeIfPresent(previous.level(), (previousLevel, count) -> count > 1 ? count - 1 : null);
+            }
+            entries.add(entry);
+            levelCounts.merge(level, 1, Integer::sum);
+            byPlayer.put(playerUUID, entry);
+        }
+    }
+
+}
@@ -0,0 +1,232 @@
+/*
+ *  Copyright (c) 2023, MikesLab
+ *  All rights reserved.
+ *
+ *  Redistribution and use in source and binary forms, with or without
+ *  modification, are permitted provided that the following conditions are met:
+ *  1. Redistributions of source code must retain the above copyright notice, this
+ *     list of conditions and the following disclaimer.
+ *  2. Redistributions in binary form must reproduce the above copyright notice,
+ *     this list of conditions and the following disclaimer in the documentation
+ *     and/or other materials provided with the distribution.
+ *  3. Neither the name of the copyright holder nor the names of its
+ *     contributors may be used to endorse or promote products derived from
+ *     this software without specific prior written permission.
+ *  4. Redistribution of this software in source or binary forms shall be free
+ *     of all charges or fees to the recipient of this software.
+ *
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ *  AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ *  IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ *  DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ *  FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ *  DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ *  SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ *  CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ *  OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ *  OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package it.mikeslab.persistify.util;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheStats;
+import com.google.common.cache.RemovalCause;
+import com.google.common.cache.RemovalListener;
+import com.google.common.cache.RemovalNotification;
+import it.mikeslab.persistify.object.UserKey;
+
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A bounded in-memory cache of player levels, keyed by BungeeCord server name and player UUID.
+ * Entries are evicted when the cache is full, when they have not been accessed for a while,
+ * and when the player disconnects from the proxy. The servers each player has cached levels for are tracked,
+ * so that evicting a player does not scan the whole cache.
+ */
+public class LevelCache {
+
+    private final Map<UUID, Set<String>> serversByPlayer = new ConcurrentHashMap<>();
+    private volatile Cache<UserKey, Integer> cache;
+    private volatile CacheStats retiredStats = new CacheStats(0, 0, 0, 0, 0, 0);
+    private final AtomicLong disconnectEvictions = new AtomicLong();
+    private long maximumSize;
+    private long expireAfterAccess;
+
+    /**
+     * Constructs a new LevelCache.
+     *
+     * @param maximumSize the maximum number of cached levels
+     * @param expireAfterAccess the number of seconds after which an entry which has not been accessed is evicted
+     */
+    public LevelCache(long maximumSize, long expireAfterAccess) {
+        this.cache = build(maximumSize, expireAfterAccess);
+        this.maximumSize = maximumSize;
+        this.expireAfterAccess = expireAfterAccess;
+    }
+
+    /**
+     * Applies new settings while running. If they changed, the cache is rebuilt with the cached levels
+     * which still fit in it, and the statistics are kept.
+     *
+     * @param maximumSize the maximum number of cached levels
+     * @param expireAfterAccess the number of seconds after which an entry which has not been accessed is evicted
+     */
+    public synchronized void reconfigure(long maximumSize, long expireAfterAccess) {
+        if (maximumSize == this.maximumSize && expireAfterAccess == this.expireAfterAccess) {
+            return;
+        }
+        this.maximumSize = maximumSize;
+        this.expireAfterAccess = expireAfterAccess;
+
+        Cache<UserKey, Integer> previous = cache;
+        Cache<UserKey, Integer> next = build(maximumSize, expireAfterAccess);
+        next.putAll(previous.asMap());
+        cache = next;
+        retiredStats = retiredStats.plus(previous.stats());
+        previous.invalidateAll();
+    }
+
+    /**
+     * @param key the player and server to look up
+     * @return the cached level, or null if it is not cached
+     */
+    public Integer get(UserKey key) {
+        return cache.getIfPresent(key);
+    }
+
+    /**
+     * Caches a level, replacing the current one.
+     *
+     * @param key the player and server the level belongs to
+     * @param level the level to cache
+     */
+    public void put(UserKey key, int level) {
+        cache.put(key, level);
+        track(key);
+    }
+
+    /**
+     * Caches a level loaded from the database, unless a level has been cached in the meantime.
+     *
+     * @param key the player and server the level belongs to
+     * @param level the level to cache
+     */
+    public void warm(UserKey key, int level) {
+        if (cache.asMap().putIfAbsent(key, level) == null) {
+            track(key);
+        }
+    }
+
+    /**
+     * Replaces a cached level with one stored elsewhere, if the level is cached.
+     *
+     * @param key the player and server the level belongs to
+     * @param level the stored level
+     * @return true if a different level was cached and has been replaced
+     */
+    public boolean refresh(UserKey key, int level) {
+        Integer previous = cache.asMap().replace(key, level);
+        return previous != null && previous != level;
+    }
+
+    /**
+     * @return a snapshot of the keys of the cached levels
+     */
+    public Set<UserKey> keys() {
+        return new HashSet<>(cache.asMap().keySet());
+    }
+
+    /**
+     * Evicts every cached level of a player.
+     *
+     * @param playerUUID the UUID of the player
+     */
+    public void invalidatePlayer(UUID playerUUID) {
+        Set<String> servers = serversByPlayer.remove(playerUUID);
+        if (servers == null) {
+            return;
+        }
+
+        for (String serverName : servers) {
+            if (cache.asMap().remove(new UserKey(serverName, playerUUID)) != null) {
+                disconnectEvictions.incrementAndGet();
+            }
+        }
+    }
+
+    /**
+     * Evicts every cached level.
+     */
+    public void clear() {
+        cache.invalidateAll();
+    }
+
+    /**
+     * @return the hit, miss and size/idle eviction counters of the cache
+     */
+    public CacheStats getStats() {
+        return retiredStats.plus(cache.stats());
+    }
+
+    /**
+     * @return the number of entries evicted because their player disconnected
+     */
+    public long getDisconnectEvictions() {
+        return disconnectEvictions.get();
+    }
+
+    /**
+     * @return the approximate number of cached levels
+     */
+    public long size() {
+        return cache.size();
+    }
+
+    /**
+     * Records that a level of a player is cached for a server. Called once the level is in the cache,
+     * so that a concurrent eviction of the same key cannot leave it cached but untracked.
+     */
+    private void track(UserKey key) {
+        serversByPlayer.compute(key.playerUUID(), (playerUUID, servers) -> {
+            Set<String> tracked = servers != null ? servers : ConcurrentHashMap.newKeySet();
+            tracked.add(key.serverName());
+            return tracked;
+        });
+    }
+
+    /**
+     * Stops tracking an evicted level, unless it has been cached again in the meantime.
+     */
+    private void untrack(RemovalNotification<UserKey, Integer> notification) {
+        UserKey key = notification.getKey();
+        if (notification.getCause() == RemovalCause.REPLACED || key == null) {
+            return;
+        }
+
+        serversByPlayer.computeIfPresent(key.playerUUID(), (playerUUID, servers) -> {
+            if (!cache.asMap().containsKey(key)) {
+                servers.remove(key.serverName());
+            }
+            return servers.isEmpty() ? null : servers;
+        });
+    }
+
+    private Cache<UserKey, Integer> build(long maximumSize, long expireAfterAccess) {
+        RemovalListener<UserKey, Integer> listener = this::untrack;
+        return CacheBuilder.newBuilder()
+                .maximumSize(maximumSize)
+                .expireAfterAccess(expireAfterAccess, TimeUnit.SECONDS)
+                .removalListener(listener)
+                .recordStats()
+                .build();
+    }
+
+}
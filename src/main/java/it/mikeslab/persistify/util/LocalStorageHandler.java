@@ -0,0 +1,489 @@
+/*
+ *  Copyright (c) 2023, MikesLab
+ *  All rights reserved.
+ *
+ *  Redistribution and use in source and binary forms, with or without
+ *  modification, are permitted provided that the following conditions are met:
+ *  1. Redistributions of source code must retain the above copyright notice, this
+ *     list of conditions and the following disclaimer.
+ *  2. Redistributions in binary form must reproduce the above copyright notice,
+ *     this list of conditions and the following disclaimer in the documentation
+ *     and/or other materials provided with the distribution.
+ *  3. Neither the name of the copyright holder nor the names of its
+ *     contributors may be used to endorse or promote products derived from
+ *     this software without specific prior written permission.
+ *  4. Redistribution of this software in source or binary forms shall be free
+ *     of all charges or fees to the recipient of this software.
+ *
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ *  AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ *  IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ *  DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ *  FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ *  DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ *  SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ *  CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ *  OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ *  OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package it.mikeslab.persistify.util;
+
+import com.google.gson.JsonParser;
+import it.mikeslab.persistify.data.DataChanges;
+import it.mikeslab.persistify.data.DataJson;
+import it.mikeslab.persistify.object.User;
+import it.mikeslab.persistify.object.UserKey;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiFunction;
+import java.util.function.Consumer;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * An embedded storage backend which keeps every player in memory and persists them to a local file.
+ * <p>
+ * Each change appends the full record of the changed player to the file, and the file is replayed on startup.
+ * Once the file holds too many superseded records it is compacted into a snapshot of the live records.
+ * This backend needs no external service, but it must not be shared between several proxies.
+ */
+public class LocalStorageHandler implements StorageHandler {
+
+    private final File file;
+    private final double compactionRatio;
+    private final Logger logger;
+
+    private final Map<UserKey, User> users = new ConcurrentHashMap<>();
+    private final Object writeLock = new Object();
+    private final ScheduledExecutorService scheduler;
+
+    private DataOutputStream output;
+    private long records;
+
+    // The players the last experience batch was applied to, so that a retry of the batch skips them
+    private UUID experienceBatch;
+    private final Set<UserKey> experienceBatchKeys = new HashSet<>();
+
+    /**
+     * Constructs a new LocalStorageHandler, loading the data stored in the specified file.
+     *
+     * @param file the file the data is stored in, created if it does not exist
+     * @param compactionInterval the number of seconds between checks for compaction
+     * @param compactionRatio the number of stored records per player above which the file is compacted
+     * @param logger the logger used to report storage issues
+     */
+    public LocalStorageHandler(File file, long compactionInterval, double compactionRatio, Logger logger) {
+        this.file = file;
+        this.compactionRatio = compactionRatio;
+        this.logger = logger;
+
+        try {
+            load();
+            output = openOutput();
+        } catch (IOException e) {
+            throw new UncheckedIOException("Unable to open local storage file " + file, e);
+        }
+
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "Persistify Local Storage");
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.scheduler.scheduleWithFixedDelay(this::compactIfNeeded, compactionInterval, compactionInterval, TimeUnit.SECONDS);
+
+        logger.info("Loaded " + users.size() + " record(s) from local storage.");
+    }
+
+    @Override
+    public int registerUser(User user) {
+        // Records are appended while the write lock is held, so the file order matches the update order
+        User stored = update(UserKey.of(user), (key, existing) -> append(existing == null
+                ? new User(user.getServerName(), user.getPlayerName(), user.getPlayerUUID(), user.getLevel())
+                : copy(existing, user.getPlayerName(), existing.getLevel())));
+
+        return stored.getLevel();
+    }
+
+    @Override
+    public void setLevelByUUID(String bungeeCordServerName, UUID playerUUID, int newLevel) {
+        setLevels(Map.of(new UserKey(bungeeCordServerName, playerUUID), newLevel));
+    }
+
+    @Override
+    public void setLevels(Map<UserKey, Integer> levels) {
+        levels.forEach((key, level) -> {
+            // Like an update without upsert, players which were never registered are ignored
+            updateIfPresent(key, (k, existing) ->
+                    append(copy(existing, existing.getPlayerName(), level)));
+        });
+    }
+
+    @Override
+    public int getLevelByUUID(String serverName, UUID playerUUID) {
+        User user = users.get(new UserKey(serverName, playerUUID));
+        return user != null ? user.getLevel() : -1;
+    }
+
+    @Override
+    public Map<UUID, Integer> getLevels(String serverName, Collection<UUID> playerUUIDs) {
+        Map<UUID, Integer> levels = new HashMap<>();
+        for (UUID playerUUID : playerUUIDs) {
+            User user = users.get(new UserKey(serverName, playerUUID));
+            if (user != null) {
+                levels.put(playerUUID, user.getLevel());
+            }
+        }
+        return levels;
+    }
+
+    @Override
+    public List<User> getUserProfiles(UUID playerUUID) {
+        return users.values().stream()
+                .filter(user -> user.getPlayerUUID().equals(playerUUID))
+                .toList();
+    }
+
+    @Override
+    public Map<String, Object> getData(String serverName, UUID playerUUID) {
+        User user = users.get(new UserKey(serverName, playerUUID));
+        return user != null ? new HashMap<>(user.getData()) : new HashMap<>();
+    }
+
+    @Override
+    public void updateData(String serverName, UUID playerUUID, DataChanges changes) {
+        if (changes.isEmpty()) {
+            return;
+        }
+
+        // Like an upsert, the player is created if they were never registered
+        update(new UserKey(serverName, playerUUID), (key, existing) -> {
+            User updated = existing != null
+                    ? copy(existing, existing.getPlayerName(), existing.getLevel())
+                    : new User(serverName, null, playerUUID, 0);
+            changes.applyTo(updated.getData());
+            return append(updated);
+        });
+    }
+
+    @Override
+    public synchronized Map<UserKey, Long> addExperience(UUID batchId, Map<UserKey, Long> amounts) {
+        if (!batchId.equals(experienceBatch)) {
+            experienceBatch = batchId;
+            experienceBatchKeys.clear();
+        }
+
+        Map<UserKey, Long> totals = new HashMap<>();
+        amounts.forEach((key, amount) -> {
+            if (!experienceBatchKeys.add(key)) {
+                // Already applied before the batch failed on another player
+                User existing = users.get(key);
+                totals.put(key, existing != null ? existing.getExperience() : 0);
+                return;
+            }
+
+            User updated;
+            try {
+                updated = update(key, (k, existing) -> {
+                    User user = existing != null
+                            ? copy(existing, existing.getPlayerName(), existing.getLevel())
+                            : new User(key.serverName(), null, key.playerUUID(), 0);
+                    user.setExperience(user.getExperience() + amount);
+                    return append(user);
+                });
+            } catch (RuntimeException e) {
+                experienceBatchKeys.remove(key);
+                throw e;
+            }
+            totals.put(key, updated.getExperience());
+        });
+        return totals;
+    }
+
+    @Override
+    public long getExperience(String serverName, UUID playerUUID) {
+        User user = users.get(new UserKey(serverName, playerUUID));
+        return user != null ? user.getExperience() : 0;
+    }
+
+    @Override
+    public int raiseLevel(String serverName, UUID playerUUID, int level) {
+        int[] previousLevel = {-1};
+        updateIfPresent(new UserKey(serverName, playerUUID), (key, existing) -> {
+            if (existing.getLevel() >= level) {
+                return existing;
+            }
+            previousLevel[0] = existing.getLevel();
+            return append(copy(existing, existing.getPlayerName(), level));
+        });
+        return previousLevel[0];
+    }
+
+    @Override
+    public List<User> getTopLevels(String serverName, int offset, int limit) {
+        return users.values().stream()
+                .filter(user -> user.getServerName().equals(serverName))
+                .sorted(Comparator.comparingInt(User::getLevel).reversed().thenComparing(User::getPlayerUUID))
+                .skip(offset)
+                .limit(limit)
+                .toList();
+    }
+
+    @Override
+    public long getRank(String serverName, UUID playerUUID) {
+        int level = getLevelByUUID(serverName, playerUUID);
+        if (level == -1) {
+            return -1;
+        }
+        return users.values().stream()
+                .filter(user -> user.getServerName().equals(serverName) && user.getLevel() > level)
+                .count() + 1;
+    }
+
+    @Override
+    public void forEachUser(String serverName, Consumer<User> consumer) {
+        users.values().stream()
+                .filter(user -> user.getServerName().equals(serverName))
+                .forEach(consumer);
+    }
+
+    @Override
+    public void forEachUser(Consumer<User> consumer) {
+        users.values().forEach(consumer);
+    }
+
+    @Override
+    public void importUsers(List<User> users) {
+        for (User user : users) {
+            update(UserKey.of(user), (key, existing) -> {
+                User imported = new User(user.getServerName(), user.getPlayerName(), user.getPlayerUUID(), user.getLevel(),
+                        user.getExperience() > 0 || existing == null ? user.getExperience() : existing.getExperience(),
+                        user.getLastSeen());
+                imported.getData().putAll(user.getData().isEmpty() && existing != null ? existing.getData() : user.getData());
+                return append(imported);
+            });
+        }
+    }
+
+    @Override
+    public void disconnect() {
+        scheduler.shutdown();
+        synchronized (writeLock) {
+            if (output == null) {
+                return;
+            }
+            try {
+                compact();
+                output.close();
+            } catch (IOException e) {
+                logger.log(Level.SEVERE, "Unable to close local storage file", e);
+            }
+            output = null;
+        }
+    }
+
+
+    /**
+     * Updates a stored player while holding the write lock, so that a compaction never snapshots the map between
+     * the append of the new record and the update of the map.
+     */
+    private User update(UserKey key, BiFunction<UserKey, User, User> remapping) {
+        synchronized (writeLock) {
+            return users.compute(key, remapping);
+        }
+    }
+
+    private User updateIfPresent(UserKey key, BiFunction<UserKey, User, User> remapping) {
+        synchronized (writeLock) {
+            return users.computeIfPresent(key, remapping);
+        }
+    }
+
+    private User append(User user) {
+        synchronized (writeLock) {
+            if (output == null) {
+                throw new IllegalStateException("Local storage has been closed");
+            }
+            try {
+                writeRecord(output, user);
+                output.flush();
+                records++;
+                return user;
+            } catch (IOException e) {
+                throw new UncheckedIOException("Unable to write to local storage file", e);
+            }
+        }
+    }
+
+    private void compactIfNeeded() {
+        synchronized (writeLock) {
+            if (output == null || records <= users.size() * compactionRatio) {
+                return;
+            }
+            try {
+                compact();
+            } catch (IOException e) {
+                logger.log(Level.WARNING, "Unable to compact local storage file", e);
+            }
+        }
+    }
+
+    /**
+     * Replaces the file with a snapshot of the live records. Must be called while holding the write lock.
+     */
+    private void compact() throws IOException {
+        File snapshot = new File(file.getPath() + ".tmp");
+
+        try (FileOutputStream snapshotStream = new FileOutputStream(snapshot);
+             DataOutputStream snapshotOutput = new DataOutputStream(new BufferedOutputStream(snapshotStream))) {
+            for (User user : users.values()) {
+                writeRecord(snapshotOutput, user);
+            }
+            snapshotOutput.flush();
+            snapshotStream.getFD().sync();
+        }
+
+        output.close();
+        Files.move(snapshot.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        records = users.size();
+        output = openOutput();
+    }
+
+    private void load() throws IOException {
+        if (!file.exists()) {
+            return;
+        }
+
+        long fileLength = file.length();
+        long validLength = 0;
+        try (DataInputStream input = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            while (fileLength - validLength >= Integer.BYTES) {
+                int length = input.readInt();
+                // A length which does not fit in the rest of the file was left by a torn write, it is never allocated
+                if (length < 0 || length > fileLength - validLength - Integer.BYTES) {
+                    break;
+                }
+                byte[] payload = new byte[length];
+                input.readFully(payload);
+                long offset = validLength;
+                validLength += Integer.BYTES + length;
+                records++;
+
+                User user;
+                try {
+                    user = readRecord(payload);
+                } catch (IOException | RuntimeException e) {
+                    // The record is framed correctly, so the records after it can still be read
+                    logger.log(Level.WARNING, "Skipping an invalid record at offset " + offset + " of " + file.getName(), e);
+                    continue;
+                }
+                users.put(UserKey.of(user), user);
+            }
+        }
+
+        if (validLength < fileLength) {
+            // Kept aside, as a length corrupted in the middle of the file also discards the records after it
+            File discarded = new File(file.getPath() + ".discarded");
+            try (FileChannel source = FileChannel.open(file.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE);
+                 FileChannel target = FileChannel.open(discarded.toPath(), StandardOpenOption.CREATE,
+                         StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+                source.transferTo(validLength, fileLength - validLength, target);
+                source.truncate(validLength);
+            }
+            logger.warning("Discarded " + (fileLength - validLength) + " byte(s) which do not form a record at the end of "
+                    + file.getName() + ", they have been copied to " + discarded.getName());
+        }
+    }
+
+    /**
+     * Stored users are never modified, every change stores a copy.
+     */
+    private static User copy(User user, String playerName, int level) {
+        User copy = new User(user.getServerName(), playerName, user.getPlayerUUID(), level, user.getExperience(), user.getLastSeen());
+        copy.getData().putAll(user.getData());
+        return copy;
+    }
+
+    private DataOutputStream openOutput() throws IOException {
+        return new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file, true)));
+    }
+
+    private static void writeRecord(DataOutputStream out, User user) throws IOException {
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream(64);
+        DataOutputStream payload = new DataOutputStream(buffer);
+        payload.writeUTF(user.getServerName());
+        payload.writeLong(user.getPlayerUUID().getMostSignificantBits());
+        payload.writeLong(user.getPlayerUUID().getLeastSignificantBits());
+        payload.writeUTF(user.getPlayerName() != null ? user.getPlayerName() : "");
+        payload.writeInt(user.getLevel());
+        if (!user.getData().isEmpty() || user.getExperience() != 0) {
+            byte[] data = user.getData().isEmpty()
+                    ? new byte[0]
+                    : DataJson.toJson(user.getData()).toString().getBytes(StandardCharsets.UTF_8);
+            payload.writeInt(data.length);
+            payload.write(data);
+        }
+        if (user.getExperience() != 0) {
+            payload.writeLong(user.getExperience());
+        }
+
+        // Records are length-prefixed so that a partially written one can be detected on load
+        out.writeInt(buffer.size());
+        buffer.writeTo(out);
+    }
+
+    private static User readRecord(byte[] payload) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(payload));
+        String serverName = in.readUTF();
+        UUID playerUUID = new UUID(in.readLong(), in.readLong());
+        String playerName = in.readUTF();
+        int level = in.readInt();
+        User user = new User(serverName, playerName.isEmpty() ? null : playerName, playerUUID, level);
+
+        // Records written before player data and experience were supported end earlier
+        if (in.available() > 0) {
+            int length = in.readInt();
+            if (length < 0 || length > in.available()) {
+                throw new EOFException("Player data overruns its record");
+            }
+            byte[] data = new byte[length];
+            in.readFully(data);
+            if (data.length > 0) {
+                user.getData().putAll(DataJson.fromJson(JsonParser.parseString(new String(data, StandardCharsets.UTF_8)).getAsJsonObject()));
+            }
+        }
+        if (in.available() > 0) {
+            user.setExperience(in.readLong());
+        }
+        return user;
+    }
+
+}
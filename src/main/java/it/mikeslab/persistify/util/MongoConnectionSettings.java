@@ -0,0 +1,64 @@
+/*
+ *  Copyright (c) 2023, MikesLab
+ *  All rights reserved.
+ *
+ *  Redistribution and use in source and binary forms, with or without
+ *  modification, are permitted provided that the following conditions are met:
+ *  1. Redistributions of source code must retain the above copyright notice, this
+ *     list of conditions and the following disclaimer.
+ *  2. Redistributions in binary form must reproduce the above copyright notice,
+ *     this list of conditions and the following disclaimer in the documentation
+ *     and/or other materials provided with the distribution.
+ *  3. Neither the name of the copyright holder nor the names of its
+ *     contributors may be used to endorse or promote products derived from
+ *     this software without specific prior written permission.
+ *  4. Redistribution of this software in source or binary forms shall be free
+ *     of all charges or fees to the recipient of this software.
+ *
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ *  AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ *  IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ *  DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ *  FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ *  DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ *  SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ *  CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ *  OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ *  OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package it.mikeslab.persistify.util;
+
+import net.md_5.bungee.config.Configuration;
+
+/**
+ * The settings used to connect to MongoDB.
+ *
+ * @param connectionString the connection string to the MongoDB server
+ * @param database the name of the MongoDB database to use
+ * @param collection the name of the MongoDB collection to use
+ * @param compactSchema whether documents use the compact schema instead of the legacy one
+ * @param maxPoolSize the maximum number of connections in the pool
+ * @param minPoolSize the minimum number of connections kept in the pool
+ * @param connectTimeout the connection timeout, in milliseconds
+ * @param socketTimeout the socket read timeout, in milliseconds, 0 for none
+ * @param serverSelectionTimeout the time to wait for a suitable server, in milliseconds
+ */
+public record MongoConnectionSettings(String connectionString, String database, String collection, boolean compactSchema,
+                                      int maxPoolSize, int minPoolSize,
+                                      int connectTimeout, int socketTimeout, int serverSelectionTimeout) {
+
+    public static MongoConnectionSettings fromConfig(Configuration config) {
+        return new MongoConnectionSettings(
+                config.getString("connection-string"),
+                config.getString("database"),
+                config.getString("collection"),
+                config.getString("schema", "legacy").equalsIgnoreCase("compact"),
+                config.getInt("mongodb.pool.max-size", 100),
+                config.getInt("mongodb.pool.min-size", 0),
+                config.getInt("mongodb.connect-timeout", 5000),
+                config.getInt("mongodb.socket-timeout", 10000),
+                config.getInt("mongodb.server-selection-timeout", 5000));
+    }
+
+}
@@ -31,81 +31,189 @@ package it.mikeslab.persistify.util;
 
 
 import com.mongodb.ConnectionString;
+import com.mongodb.ErrorCategory;
+import com.mongodb.MongoBulkWriteException;
 import com.mongodb.MongoClientSettings;
+import com.mongodb.MongoCommandException;
+import com.mongodb.MongoException;
 import com.mongodb.ServerApi;
 import com.mongodb.ServerApiVersion;
+import com.mongodb.bulk.BulkWriteResult;
+import com.mongodb.client.ChangeStreamIterable;
+import com.mongodb.client.MongoChangeStreamCursor;
 import com.mongodb.client.MongoClient;
 import com.mongodb.client.MongoClients;
 import com.mongodb.client.MongoCollection;
 import com.mongodb.client.MongoDatabase;
+import com.mongodb.client.model.Aggregates;
+import com.mongodb.client.model.BulkWriteOptions;
+import com.mongodb.client.model.Filters;
+import com.mongodb.client.model.FindOneAndUpdateOptions;
+import com.mongodb.client.model.IndexOptions;
+import com.mongodb.client.model.Indexes;
+import com.mongodb.client.model.Projections;
+import com.mongodb.client.model.PushOptions;
+import com.mongodb.client.model.ReturnDocument;
+import com.mongodb.client.model.Sorts;
+import com.mongodb.client.model.UpdateOneModel;
+import com.mongodb.client.model.UpdateOptions;
+import com.mongodb.client.model.Updates;
+import com.mongodb.client.model.WriteModel;
+import com.mongodb.client.model.changestream.ChangeStreamDocument;
+import com.mongodb.client.model.changestream.FullDocument;
 import it.mikeslab.persistify.Persistify;
+import it.mikeslab.persistify.coherence.LevelChange;
+import it.mikeslab.persistify.data.DataChanges;
+import it.mikeslab.persistify.metrics.DriverMetrics;
+import it.mikeslab.persistify.metrics.PersistifyMetrics;
 import it.mikeslab.persistify.object.User;
-import net.md_5.bungee.api.plugin.Plugin;
+import it.mikeslab.persistify.object.UserKey;
+import it.mikeslab.persistify.util.schema.CompactDocumentSchema;
+import it.mikeslab.persistify.util.schema.DocumentSchema;
+import it.mikeslab.persistify.util.schema.LegacyDocumentSchema;
+import it.mikeslab.persistify.util.schema.SchemaField;
+import it.mikeslab.persistify.util.schema.SchemaMigration;
+import it.mikeslab.persistify.util.schema.ServerIdRegistry;
+import org.bson.BsonDocument;
 import org.bson.Document;
+import org.bson.UuidRepresentation;
+import org.bson.conversions.Bson;
 
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
+import java.util.logging.Logger;
 
 /**
  * A helper class for connecting to and interacting with a MongoDB database.
  */
-public class MongoDBHandler {
+public class MongoDBHandler implements StorageHandler {
+
+    private static final int MIGRATION_BATCH_SIZE = 1000;
+    private static final int RECENT_EXPERIENCE_BATCHES = 8;
+    private static final LegacyDocumentSchema LEGACY_SCHEMA = new LegacyDocumentSchema();
+
+    private final MongoConnectionSettings connectionSettings;
+    private final PersistifyMetrics metrics;
 
     private MongoCollection<Document> collection;
     private MongoClient mongoClient;
     private MongoDatabase database;
+    private DocumentSchema schema;
+    private PlayerArchive archive;
+    private volatile SchemaMigration pendingMigration;
 
     /**
-     * Constructs a new instance of MongoDBHandler that connects to the specified MongoDB server and initializes the database and collection.
+     * Constructs a new instance of MongoDBHandler for the specified MongoDB server.
+     * The driver connects in the background, nothing is sent to the server until {@link #bootstrap()} is called.
      *
-     * @param connString the connection string to the MongoDB server in the format "mongodb://[username:password@]host[:port][/?options]"
-     * @param databaseName the name of the MongoDB database to use
-     * @param collectionName the name of the MongoDB collection to use
+     * @param connectionSettings the connection string, database, collection, schema, pool and timeout settings to use
+     * @param metrics the registry the driver and collection bootstrap metrics are reported to
      *
      */
-    public MongoDBHandler(String connString, String databaseName, String collectionName) {
-        ConnectionString connectionString = new ConnectionString(connString);
+    public MongoDBHandler(MongoConnectionSettings connectionSettings, PersistifyMetrics metrics) {
+        ConnectionString connectionString = new ConnectionString(connectionSettings.connectionString());
+        DriverMetrics driverMetrics = metrics.getDriverMetrics();
 
         MongoClientSettings settings = MongoClientSettings.builder()
                 .applyConnectionString(connectionString)
                 .serverApi(ServerApi.builder()
                         .version(ServerApiVersion.V1)
                         .build())
+                .uuidRepresentation(UuidRepresentation.STANDARD)
+                .applyToConnectionPoolSettings(builder -> builder
+                        .maxSize(connectionSettings.maxPoolSize())
+                        .minSize(connectionSettings.minPoolSize())
+                        .addConnectionPoolListener(driverMetrics))
+                .applyToSocketSettings(builder -> builder
+                        .connectTimeout(connectionSettings.connectTimeout(), TimeUnit.MILLISECONDS)
+                        .readTimeout(connectionSettings.socketTimeout(), TimeUnit.MILLISECONDS))
+                .applyToClusterSettings(builder -> builder
+                        .serverSelectionTimeout(connectionSettings.serverSelectionTimeout(), TimeUnit.MILLISECONDS))
+                .addCommandListener(driverMetrics)
                 .build();
 
-        mongoClient = MongoClients.create(settings);
-        database = mongoClient.getDatabase(databaseName);
-        collection = this.getCollection(collectionName);
+        this.connectionSettings = connectionSettings;
+        this.metrics = metrics;
+        this.mongoClient = MongoClients.create(settings);
+        this.database = mongoClient.getDatabase(connectionSettings.database());
+    }
 
-        Plugin plugin = Persistify.getInstance();
-        if(mongoClient != null) {
-            plugin.getLogger().info("Connection to MongoDB established.");
-        } else {
-            plugin.getLogger().severe("Connection to MongoDB failed. Shutting down...");
-            plugin.getProxy().stop();
-        }
+    /**
+     * Checks the connection, then prepares the collection, the schema and the indexes. This blocks on the server,
+     * and must complete before any other operation is called.
+     *
+     * @throws MongoException if the server cannot be reached or the collection cannot be prepared
+     */
+    public void bootstrap() {
+        // MongoClients.create never fails on an unreachable server and connects lazily, so a ping is the only real check
+        database.runCommand(new Document("ping", 1));
+
+        String collectionName = connectionSettings.collection();
+        metrics.operation("bootstrap").run(() -> {
+            // Creating the indexes creates the collection if needed, no need to list the existing ones first
+            MongoCollection<Document> players = database.getCollection(collectionName);
+            schema = connectionSettings.compactSchema()
+                    ? new CompactDocumentSchema(new ServerIdRegistry(database.getCollection(collectionName + "_servers")))
+                    : new LegacyDocumentSchema();
+            archive = new PlayerArchive(players, database.getCollection(collectionName + "_archive"), schema);
+            collection = players;
+            this.ensureIndexes();
+            archive.ensureIndexes();
+
+            if (schema instanceof CompactDocumentSchema compactSchema) {
+                SchemaMigration migration = new SchemaMigration(players, compactSchema, MIGRATION_BATCH_SIZE, Persistify.getInstance().getLogger());
+                if (migration.prepare()) {
+                    Persistify.getInstance().getLogger().warning("Legacy documents found, they are migrated as players are looked up"
+                            + " until \"/persistify migrate-schema\" is run.");
+                    pendingMigration = migration;
+                }
+            }
+        });
+
+        Persistify.getInstance().getLogger().info("Connection to MongoDB established.");
     }
 
     /**
-     * Adds or overwrites a player's data for the specified BungeeCord server name and player UUID.
+     * Registers a player's data for the specified BungeeCord server name and player UUID, if not already present.
+     * The stored player name and the last time the player has been seen are always refreshed.
+     * Every player takes a single atomic upsert, so concurrent registrations of the same player from several proxies
+     * never produce duplicate documents. Only when the upsert inserts a document are the archive and the legacy
+     * documents looked up, and what they hold is brought back over the inserted document.
      *
      * @param user a User object containing the player's data
+     * @return the stored level of the player, which is the level of the User object if it was just registered
      */
-    public void registerUser(User user) {
-        UUID playerUUID = user.getPlayerUUID();
-        String playerName = user.getPlayerName();
-        int level = user.getLevel();
-        String bungeeCordServerName = user.getServerName();
-
-        Document existingDoc = isUserRegistered(bungeeCordServerName, playerUUID.toString());
+    @Override
+    public int registerUser(User user) {
+        Document filter = schema.filter(user.getServerName(), user.getPlayerUUID());
+        String levelField = schema.field(SchemaField.LEVEL);
+        Date now = new Date();
+        Bson update = Updates.combine(
+                Updates.set(schema.field(SchemaField.NAME), user.getPlayerName()),
+                Updates.set(schema.field(SchemaField.LAST_SEEN), now),
+                Updates.setOnInsert(levelField, user.getLevel()));
 
-        if (existingDoc == null) {
-            //If the document doesn't exist, create it
-            Document newDoc = new Document("serverName", bungeeCordServerName)
-                    .append("uuid", playerUUID.toString())
-                    .append("name", playerName)
-                    .append("level", level);
-            collection.insertOne(newDoc);
+        // The document before the update is only missing when the upsert has just inserted it
+        Document previous = collection.findOneAndUpdate(filter, update, new FindOneAndUpdateOptions()
+                .upsert(true)
+                .returnDocument(ReturnDocument.BEFORE)
+                .projection(Projections.include(levelField)));
+        if (previous != null) {
+            return previous.getInteger(levelField, user.getLevel());
         }
+
+        Document refreshed = new Document(schema.field(SchemaField.NAME), user.getPlayerName())
+                .append(schema.field(SchemaField.LAST_SEEN), now);
+        Document restored = restoreOver(UserKey.of(user), refreshed);
+        return restored != null ? restored.getInteger(levelField, user.getLevel()) : user.getLevel();
     }
 
     /**
@@ -115,30 +223,438 @@ public class MongoDBHandler {
      * @param playerUUID the UUID of the player
      * @param newLevel the new level of the player
      */
+    @Override
     public void setLevelByUUID(String bungeeCordServerName, UUID playerUUID, int newLevel) {
-        collection.updateOne(new Document("serverName", bungeeCordServerName)
-                .append("uuid", playerUUID.toString()), new Document("$set", new Document("level", newLevel)));
+        Document filter = schema.filter(bungeeCordServerName, playerUUID);
+        Bson update = Updates.set(schema.field(SchemaField.LEVEL), newLevel);
+
+        if (collection.updateOne(filter, update).getMatchedCount() == 0 && !restore(List.of(new UserKey(bungeeCordServerName, playerUUID))).isEmpty()) {
+            collection.updateOne(filter, update);
+        }
+    }
+
+    /**
+     * Sets the levels of several players with a single unordered bulk write.
+     * Archived players are moved back and updated with a second one.
+     *
+     * @param levels the new levels, keyed by BungeeCord server name and player UUID
+     */
+    @Override
+    public void setLevels(Map<UserKey, Integer> levels) {
+        if (levels.isEmpty()) {
+            return;
+        }
+
+        List<WriteModel<Document>> writes = new ArrayList<>(levels.size());
+        levels.forEach((key, level) -> writes.add(new UpdateOneModel<>(
+                schema.filter(key.serverName(), key.playerUUID()),
+                Updates.set(schema.field(SchemaField.LEVEL), level))));
+
+        BulkWriteResult result = collection.bulkWrite(writes, new BulkWriteOptions().ordered(false));
+        if (result.getMatchedCount() < writes.size()) {
+            Map<UserKey, Integer> rehydrated = new HashMap<>();
+            for (Document doc : restore(levels.keySet())) {
+                UserKey key = UserKey.of(schema.decodeUser(doc));
+                rehydrated.put(key, levels.get(key));
+            }
+            setLevels(rehydrated);
+        }
     }
 
     /**
-     * Gets the level of a player given their UUID and the name of a BungeeCord server.
+     * Gets the level of a player given their UUID and the name of a BungeeCord server, moving the player back
+     * from the archive if needed.
      *
      * @param serverName the name of the BungeeCord server where the player joined
      * @param playerUUID the UUID of the player whose level is being retrieved
      * @return the level of the player, or -1 if no data was found for the player
      */
+    @Override
     public int getLevelByUUID(String serverName, UUID playerUUID) {
-        Document doc = collection.find(new Document("serverName", serverName).append("uuid", playerUUID.toString())).first();
+        Document doc = findOne(serverName, playerUUID, Projections.include(schema.field(SchemaField.LEVEL)));
         if (doc != null) {
-            return doc.getInteger("level", -1);
+            return doc.getInteger(schema.field(SchemaField.LEVEL), -1);
         } else {
             return -1;
         }
     }
 
+    /**
+     * Gets the levels of several players on the same BungeeCord server with a single query.
+     * Archived players are moved back with a second one.
+     *
+     * @param serverName the name of the BungeeCord server where the players joined
+     * @param playerUUIDs the UUIDs of the players whose levels are being retrieved
+     * @return the levels of the players, players with no data are not included
+     */
+    @Override
+    public Map<UUID, Integer> getLevels(String serverName, Collection<UUID> playerUUIDs) {
+        Map<UUID, Integer> levels = new HashMap<>();
+        if (playerUUIDs.isEmpty()) {
+            return levels;
+        }
+
+        List<Object> uuids = new ArrayList<>(playerUUIDs.size());
+        for (UUID playerUUID : playerUUIDs) {
+            uuids.add(schema.encodeUuid(playerUUID));
+        }
+
+        String uuidField = schema.field(SchemaField.UUID);
+        String levelField = schema.field(SchemaField.LEVEL);
+        for (Document doc : collection.find(Filters.and(serverFilter(serverName), Filters.in(uuidField, uuids)))
+                .projection(Projections.include(uuidField, levelField))) {
+            levels.put(schema.decodeUuid(doc.get(uuidField)), doc.getInteger(levelField, -1));
+        }
+
+        if (levels.size() < playerUUIDs.size()) {
+            List<UserKey> missing = new ArrayList<>();
+            for (UUID playerUUID : playerUUIDs) {
+                if (!levels.containsKey(playerUUID)) {
+                    missing.add(new UserKey(serverName, playerUUID));
+                }
+            }
+            for (Document doc : restore(missing)) {
+                levels.put(schema.decodeUuid(doc.get(uuidField)), doc.getInteger(levelField, -1));
+            }
+        }
+        return levels;
+    }
+
+    /**
+     * Gets the data of a player on every BungeeCord server they have joined, with a single query over the uuid index.
+     * The archived profiles of the player are moved back with a second query over the uuid index of the archive,
+     * so that the session of a returning player holds all of their data.
+     *
+     * @param playerUUID the UUID of the player
+     * @return the data of the player, one User per server
+     */
+    @Override
+    public List<User> getUserProfiles(UUID playerUUID) {
+        List<User> users = new ArrayList<>();
+        Bson filter = Filters.eq(schema.field(SchemaField.UUID), schema.encodeUuid(playerUUID));
+        for (Document doc : collection.find(filter)) {
+            users.add(schema.decodeUser(doc));
+        }
+        SchemaMigration migration = pendingMigration;
+        if (migration != null) {
+            for (Document doc : migration.migrate(Filters.eq(LEGACY_SCHEMA.field(SchemaField.UUID), LEGACY_SCHEMA.encodeUuid(playerUUID)))) {
+                users.add(schema.decodeUser(doc));
+            }
+        }
+        for (Document doc : archive.rehydrate(filter)) {
+            users.add(schema.decodeUser(doc));
+        }
+        return users;
+    }
+
+    /**
+     * Gets the data other plugins store for a player on a BungeeCord server, projecting only the data field.
+     *
+     * @param serverName the name of the BungeeCord server
+     * @param playerUUID the UUID of the player
+     * @return the stored values of the fields, keyed by field name, empty if there is none
+     */
+    @Override
+    public Map<String, Object> getData(String serverName, UUID playerUUID) {
+        String dataField = schema.field(SchemaField.DATA);
+        Document doc = findOne(serverName, playerUUID, Projections.include(dataField));
+
+        Document data = doc != null ? doc.get(dataField, Document.class) : null;
+        return data != null ? new HashMap<>(data) : new HashMap<>();
+    }
+
+    /**
+     * Sets and increments fields of the data of a player with a single partial update: set fields are sent
+     * with $set and increments with $inc, so the rest of the document is never rewritten.
+     * If the player has no document, they are moved back from the archive if needed, then the update is upserted.
+     *
+     * @param serverName the name of the BungeeCord server
+     * @param playerUUID the UUID of the player
+     * @param changes the fields to set and increment
+     */
+    @Override
+    public void updateData(String serverName, UUID playerUUID, DataChanges changes) {
+        if (changes.isEmpty()) {
+            return;
+        }
+
+        String dataField = schema.field(SchemaField.DATA);
+        List<Bson> updates = new ArrayList<>(changes.sets().size() + changes.increments().size() + 1);
+        changes.sets().forEach((name, value) -> updates.add(Updates.set(dataField + "." + name, value)));
+        changes.increments().forEach((name, amount) -> updates.add(Updates.inc(dataField + "." + name, amount)));
+        updates.add(Updates.setOnInsert(schema.field(SchemaField.LEVEL), 0));
+
+        Document filter = schema.filter(serverName, playerUUID);
+        Bson update = Updates.combine(updates);
+        if (collection.updateOne(filter, update).getMatchedCount() == 0) {
+            restore(List.of(new UserKey(serverName, playerUUID)));
+            collection.updateOne(filter, update, new UpdateOptions().upsert(true));
+        }
+    }
+
+    /**
+     * Atomically adds experience to several players with a single unordered bulk $inc, then reads the totals back
+     * with one query per server. Players with no document are moved back from the archive if needed,
+     * then their experience is upserted with a second bulk $inc.
+     *
+     * @param amounts the experience to add, keyed by BungeeCord server name and player UUID
+     * @return the total experience of the players after the addition
+     */
+    @Override
+    public Map<UserKey, Long> addExperience(UUID batchId, Map<UserKey, Long> amounts) {
+        Map<UserKey, Long> totals = incrementExperience(batchId, amounts, false);
+        if (totals.size() < amounts.size()) {
+            Map<UserKey, Long> missing = new HashMap<>(amounts);
+            missing.keySet().removeAll(totals.keySet());
+            restore(missing.keySet());
+            totals.putAll(incrementExperience(batchId, missing, true));
+        }
+        return totals;
+    }
+
+
+    /**
+     * Gets the total experience of a player on a BungeeCord server.
+     *
+     * @param serverName the name of the BungeeCord server
+     * @param playerUUID the UUID of the player
+     * @return the total experience of the player, 0 if no data was found for the player
+     */
+    @Override
+    public long getExperience(String serverName, UUID playerUUID) {
+        String experienceField = schema.field(SchemaField.EXPERIENCE);
+        Document doc = findOne(serverName, playerUUID, Projections.include(experienceField));
+
+        Number experience = doc != null ? doc.get(experienceField, Number.class) : null;
+        return experience != null ? experience.longValue() : 0;
+    }
+
+    /**
+     * Atomically raises the level of a player with an update conditional on the stored level being lower,
+     * so that concurrent raises from several proxies only succeed once.
+     *
+     * @param serverName the name of the BungeeCord server
+     * @param playerUUID the UUID of the player
+     * @param level the new level
+     * @return the level before it was raised, or -1 if it was not lower than the new level
+     */
+    @Override
+    public int raiseLevel(String serverName, UUID playerUUID, int level) {
+        String levelField = schema.field(SchemaField.LEVEL);
+        Document previous = collection.findOneAndUpdate(
+                Filters.and(schema.filter(serverName, playerUUID), Filters.lt(levelField, level)),
+                Updates.set(levelField, level),
+                new FindOneAndUpdateOptions().projection(Projections.include(levelField)).returnDocument(ReturnDocument.BEFORE));
+
+        return previous != null ? previous.getInteger(levelField, 0) : -1;
+    }
+
+    /**
+     * Gets a page of the players of a BungeeCord server, ordered by descending level.
+     * Served by the (server, level) index, archived players are not ranked.
+     *
+     * @param serverName the name of the BungeeCord server
+     * @param offset the number of players to skip
+     * @param limit the maximum number of players to return
+     * @return the players, highest level first
+     */
+    @Override
+    public List<User> getTopLevels(String serverName, int offset, int limit) {
+        List<User> users = new ArrayList<>(limit);
+        for (Document doc : collection.find(serverFilter(serverName))
+                // The uuid breaks ties, so that pages are stable and players with the same level are never skipped
+                .sort(Sorts.orderBy(Sorts.descending(schema.field(SchemaField.LEVEL)), Sorts.ascending(schema.field(SchemaField.UUID))))
+                .skip(offset)
+                .limit(limit)) {
+            users.add(schema.decodeUser(doc));
+        }
+        return users;
+    }
+
+    /**
+     * Gets the rank of a player on a BungeeCord server, by counting the players with a higher level
+     * over the (server, level) index.
+     *
+     * @param serverName the name of the BungeeCord server
+     * @param playerUUID the UUID of the player
+     * @return the 1-based rank of the player, or -1 if no data was found for the player
+     */
+    @Override
+    public long getRank(String serverName, UUID playerUUID) {
+        int level = getLevelByUUID(serverName, playerUUID);
+        if (level == -1) {
+            return -1;
+        }
+        return collection.countDocuments(Filters.and(
+                serverFilter(serverName),
+                Filters.gt(schema.field(SchemaField.LEVEL), level))) + 1;
+    }
+
+    /**
+     * Streams every player of a BungeeCord server with a batched cursor, archived players excluded.
+     *
+     * @param serverName the name of the BungeeCord server
+     * @param consumer the consumer each player is passed to
+     */
+    @Override
+    public void forEachUser(String serverName, Consumer<User> consumer) {
+        for (Document doc : collection.find(serverFilter(serverName)).batchSize(1000)) {
+            consumer.accept(schema.decodeUser(doc));
+        }
+    }
+
+    /**
+     * Streams every player of every BungeeCord server with a batched cursor, archived players included.
+     *
+     * @param consumer the consumer each player is passed to
+     */
+    @Override
+    public void forEachUser(Consumer<User> consumer) {
+        for (Document doc : collection.find().batchSize(1000)) {
+            consumer.accept(schema.decodeUser(doc));
+        }
+        archive.forEach(doc -> consumer.accept(schema.decodeUser(doc)));
+    }
+
+    /**
+     * Upserts the data of several players with a single unordered bulk write.
+     * Their archived documents, if any, are discarded since the imported data replaces them.
+     *
+     * @param users the players to store
+     */
+    @Override
+    public void importUsers(List<User> users) {
+        if (users.isEmpty()) {
+            return;
+        }
+
+        List<WriteModel<Document>> writes = new ArrayList<>(users.size());
+        for (User user : users) {
+            List<Bson> updates = new ArrayList<>(4);
+            updates.add(Updates.set(schema.field(SchemaField.NAME), user.getPlayerName()));
+            updates.add(Updates.set(schema.field(SchemaField.LEVEL), user.getLevel()));
+            if (user.getExperience() > 0) {
+                updates.add(Updates.set(schema.field(SchemaField.EXPERIENCE), user.getExperience()));
+            }
+            if (!user.getData().isEmpty()) {
+                updates.add(Updates.set(schema.field(SchemaField.DATA), new Document(user.getData())));
+            }
+
+            writes.add(new UpdateOneModel<>(
+                    schema.filter(user.getServerName(), user.getPlayerUUID()),
+                    Updates.combine(updates),
+                    new UpdateOptions().upsert(true)));
+        }
+
+        collection.bulkWrite(writes, new BulkWriteOptions().ordered(false));
+        archive.discard(schema.filter(users.stream().map(UserKey::of).toList()));
+    }
+
+    /**
+     * Checks whether the deployment supports change streams, which requires a replica set or a sharded cluster.
+     *
+     * @return true if change streams are supported
+     */
+    public boolean supportsChangeStreams() {
+        Document hello = database.runCommand(new Document("hello", 1));
+        return hello.containsKey("setName") || "isdbgrid".equals(hello.getString("msg"));
+    }
+
+    /**
+     * Opens a change stream reporting the documents whose level has been inserted or updated.
+     *
+     * @param resumeToken the token to resume a previous stream after, or null to start from now
+     * @return the change stream cursor, which must be closed by the caller
+     */
+    public MongoChangeStreamCursor<ChangeStreamDocument<Document>> watchLevels(BsonDocument resumeToken) {
+        ChangeStreamIterable<Document> stream = collection.watch(List.of(Aggregates.match(Filters.or(
+                        Filters.in("operationType", "insert", "replace"),
+                        Filters.exists("updateDescription.updatedFields." + schema.field(SchemaField.LEVEL))))))
+                .fullDocument(FullDocument.UPDATE_LOOKUP);
+
+        if (resumeToken != null) {
+            stream = stream.resumeAfter(resumeToken);
+        }
+        return stream.cursor();
+    }
+
+    /**
+     * @param event a change stream event opened by {@link #watchLevels(BsonDocument)}
+     * @return the level change reported by the event, or null if the document no longer exists
+     */
+    public LevelChange toLevelChange(ChangeStreamDocument<Document> event) {
+        Document doc = event.getFullDocument();
+        if (doc == null) {
+            return null;
+        }
+        User user = schema.decodeUser(doc);
+        return new LevelChange(UserKey.of(user), user.getLevel());
+    }
+
+    /**
+     * @return the settings the handler was created with
+     */
+    public MongoConnectionSettings getConnectionSettings() {
+        return connectionSettings;
+    }
+
+    /**
+     * Moves the players who have not connected to a server for a while to the archive collection, in batches.
+     *
+     * @param maxIdle the number of milliseconds since a player was last seen on a server before they are archived
+     * @param batchSize the number of documents moved at a time
+     * @param isOnline tells whether a player is connected, whose documents are never archived
+     * @return the number of archived documents
+     */
+    public long archiveIdle(long maxIdle, int batchSize, Predicate<UUID> isOnline) {
+        return metrics.operation("archive").record(() ->
+                archive.archiveIdle(new Date(System.currentTimeMillis() - maxIdle), batchSize, isOnline));
+    }
+
+    /**
+     * @return the number of documents archived since startup
+     */
+    public long getArchivedCount() {
+        return archive != null ? archive.getArchived() : 0;
+    }
+
+    /**
+     * @return the number of archived documents moved back since startup
+     */
+    public long getRehydratedCount() {
+        return archive != null ? archive.getRehydrated() : 0;
+    }
+
+    /**
+     * Rewrites every document stored with the legacy schema into the compact schema, in batches.
+     * Only available when the compact schema is in use. The archive collection is migrated as well.
+     *
+     * @param batchSize the number of documents rewritten with each bulk write
+     * @return the number of migrated documents
+     */
+    public long migrateToCompactSchema(int batchSize) {
+        if (!(schema instanceof CompactDocumentSchema compactSchema)) {
+            throw new IllegalStateException("The compact schema must be enabled before migrating to it");
+        }
+        Logger logger = Persistify.getInstance().getLogger();
+        MongoCollection<Document> archiveCollection = database.getCollection(connectionSettings.collection() + "_archive");
+
+        SchemaMigration migration = new SchemaMigration(collection, compactSchema, batchSize, logger);
+        SchemaMigration archiveMigration = new SchemaMigration(archiveCollection, compactSchema, batchSize, logger);
+        migration.prepare();
+        archiveMigration.prepare();
+
+        long migrated = migration.run() + archiveMigration.run();
+        if (migration.isComplete()) {
+            pendingMigration = null;
+        }
+        return migrated;
+    }
+
     /**
      * Disconnects from the MongoDB database and releases any resources held by the MongoDB driver.
      */
+    @Override
     public void disconnect() {
         if (mongoClient != null) {
             mongoClient.close();
@@ -149,26 +665,143 @@ public class MongoDBHandler {
     }
 
 
-    private Document isUserRegistered(String serverName, String playerUUID) {
-        return collection.find(new Document("serverName", serverName)
-                .append("uuid", playerUUID)).first();
+    private Bson serverFilter(String serverName) {
+        return Filters.eq(schema.field(SchemaField.SERVER), schema.encodeServer(serverName));
     }
 
+    private Map<String, List<Object>> uuidsByServer(Collection<UserKey> keys) {
+        Map<String, List<Object>> uuidsByServer = new HashMap<>();
+        for (UserKey key : keys) {
+            uuidsByServer.computeIfAbsent(key.serverName(), serverName -> new ArrayList<>()).add(schema.encodeUuid(key.playerUUID()));
+        }
+        return uuidsByServer;
+    }
 
-    private MongoCollection<Document> getCollection(String collectionName) {
-        if (!doesCollectionExist(collectionName)) {
-            database.createCollection(collectionName);
+    /**
+     * Brings back the documents of players missing from the hot collection: legacy documents not migrated yet
+     * are migrated, then archived documents are moved back.
+     *
+     * @return the documents brought back, in the current schema
+     */
+    private List<Document> restore(Collection<UserKey> keys) {
+        List<Document> restored = new ArrayList<>();
+        SchemaMigration migration = pendingMigration;
+        if (migration != null) {
+            restored.addAll(migration.migrate(LEGACY_SCHEMA.filter(keys)));
         }
-        return database.getCollection(collectionName);
+        restored.addAll(archive.rehydrate(schema.filter(keys)));
+        return restored;
     }
 
-    private boolean doesCollectionExist(String collectionName) {
-        for (String collection : database.listCollectionNames()) {
-            if (collection.equalsIgnoreCase(collectionName)) {
-                return true;
+    /**
+     * Brings back the document of a player who has just been inserted in the hot collection: a legacy document not
+     * migrated yet is merged into the inserted one, then an archived document is moved back over it.
+     * A player with nothing to bring back costs a single indexed query on the archive.
+     *
+     * @return the document brought back, null if there was none
+     */
+    private Document restoreOver(UserKey key, Document inserted) {
+        Document restored = null;
+        SchemaMigration migration = pendingMigration;
+        if (migration != null) {
+            List<Document> migrated = migration.migrate(LEGACY_SCHEMA.filter(List.of(key)));
+            restored = migrated.isEmpty() ? null : migrated.get(0);
+        }
+
+        Document archived = archive.rehydrateOver(schema.filter(key.serverName(), key.playerUUID()), inserted);
+        return archived != null ? archived : restored;
+    }
+
+    /**
+     * Looks a single document up, bringing it back if it is not in the hot collection.
+     * Documents brought back are returned whole, the projection only applies to the hot collection.
+     */
+    private Document findOne(String serverName, UUID playerUUID, Bson projection) {
+        Document doc = collection.find(schema.filter(serverName, playerUUID)).projection(projection).first();
+        if (doc == null) {
+            List<Document> restored = restore(List.of(new UserKey(serverName, playerUUID)));
+            doc = restored.isEmpty() ? null : restored.get(0);
+        }
+        return doc;
+    }
+
+    /**
+     * Increments the experience of the players the batch was not applied to yet. Each document keeps the ids of
+     * the last batches applied to it, so that a retried batch skips it.
+     */
+    private Map<UserKey, Long> incrementExperience(UUID batchId, Map<UserKey, Long> amounts, boolean upsert) {
+        Map<UserKey, Long> totals = new HashMap<>();
+        if (amounts.isEmpty()) {
+            return totals;
+        }
+
+        String experienceField = schema.field(SchemaField.EXPERIENCE);
+        String batchesField = schema.field(SchemaField.EXPERIENCE_BATCHES);
+        Object encodedBatchId = schema.encodeUuid(batchId);
+
+        List<WriteModel<Document>> writes = new ArrayList<>(amounts.size());
+        amounts.forEach((key, amount) -> writes.add(new UpdateOneModel<>(
+                Filters.and(schema.filter(key.serverName(), key.playerUUID()), Filters.ne(batchesField, encodedBatchId)),
+                Updates.combine(
+                        Updates.inc(experienceField, amount),
+                        Updates.pushEach(batchesField, List.of(encodedBatchId), new PushOptions().slice(-RECENT_EXPERIENCE_BATCHES)),
+                        Updates.setOnInsert(schema.field(SchemaField.LEVEL), 0)),
+                new UpdateOptions().upsert(upsert))));
+        try {
+            collection.bulkWrite(writes, new BulkWriteOptions().ordered(false));
+        } catch (MongoBulkWriteException e) {
+            // An upsert conflicts with a document the batch was already applied to
+            boolean alreadyApplied = upsert && e.getWriteErrors().stream()
+                    .allMatch(error -> error.getCategory() == ErrorCategory.DUPLICATE_KEY);
+            if (!alreadyApplied) {
+                throw e;
             }
         }
-        return false;
+
+        String uuidField = schema.field(SchemaField.UUID);
+        uuidsByServer(amounts.keySet()).forEach((serverName, uuids) -> {
+            for (Document doc : collection.find(Filters.and(serverFilter(serverName), Filters.in(uuidField, uuids)))
+                    .projection(Projections.include(uuidField, experienceField))) {
+                Number total = doc.get(experienceField, Number.class);
+                totals.put(new UserKey(serverName, schema.decodeUuid(doc.get(uuidField))), total != null ? total.longValue() : 0);
+            }
+        });
+        return totals;
+    }
+
+    /**
+     * Creates the unique (server, uuid) index used by every lookup and by the registration upsert,
+     * and the (server, level, uuid) index used by the leaderboards.
+     * Creating an index which already exists is a no-op.
+     */
+    private void ensureIndexes() {
+        String serverField = schema.field(SchemaField.SERVER);
+        String levelField = schema.field(SchemaField.LEVEL);
+        String uuidField = schema.field(SchemaField.UUID);
+
+        try {
+            collection.createIndex(
+                    Indexes.ascending(serverField, schema.field(SchemaField.UUID)),
+                    schema.keyIndexOptions());
+        } catch (MongoCommandException e) {
+            // Most likely duplicated (serverName, uuid) documents left over by older versions
+            Persistify.getInstance().getLogger().warning("Unable to create the unique (serverName, uuid) index: " + e.getErrorMessage());
+        }
+
+        collection.createIndex(
+                Indexes.compoundIndex(Indexes.ascending(serverField), Indexes.descending(levelField), Indexes.ascending(uuidField)),
+                new IndexOptions().name(serverField + "_" + levelField + "_" + uuidField));
+
+        // Superseded by the index above, which also serves the rank counts
+        String previousLeaderboardIndex = serverField + "_" + levelField;
+        for (Document index : collection.listIndexes()) {
+            if (previousLeaderboardIndex.equals(index.getString("name"))) {
+                collection.dropIndex(previousLeaderboardIndex);
+            }
+        }
+
+        // Serves the lookup of all the profiles of a player on login, which the (server, uuid) index cannot
+        collection.createIndex(Indexes.ascending(uuidField));
     }
 
 
@@ -0,0 +1,183 @@
+/*
+ *  Copyright (c) 2023, MikesLab
+ *  All rights reserved.
+ *
+ *  Redistribution and use in source and binary forms, with or without
+ *  modification, are permitted provided that the following conditions are met:
+ *  1. Redistributions of source code must retain the above copyright notice, this
+ *     list of conditions and the following disclaimer.
+ *  2. Redistributions in binary form must reproduce the above copyright notice,
+ *     this list of conditions and the following disclaimer in the documentation
+ *     and/or other materials provided with the distribution.
+ *  3. Neither the name of the copyright holder nor the names of its
+ *     contributors may be used to endorse or promote products derived from
+ *     this software without specific prior written permission.
+ *  4. Redistribution of this software in source or binary forms shall be free
+ *     of all charges or fees to the recipient of this software.
+ *
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ *  AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ *  IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ *  DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ *  FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ *  DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ *  SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ *  CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ *  OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ *  OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package it.mikeslab.persistify.util;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A bounded executor that runs database operations away from the proxy's event threads.
+ * <p>
+ * When the queue is full the submitting thread waits a short while for a free slot, which slows producers down
+ * without ever running a database operation on an event or network thread. If no slot frees up in time, or once the
+ * executor has been shut down, the operation is rejected with a {@link RejectedExecutionException}.
+ */
+public class PersistenceExecutor implements Executor {
+
+    // Bounds the time an event or network thread can be held when the queue is full
+    private static final long HAND_OFF_TIMEOUT = 250;
+
+    private final ThreadPoolExecutor executor;
+    private final Logger logger;
+    private final AtomicLong rejected = new AtomicLong();
+
+    /**
+     * Constructs a new PersistenceExecutor.
+     *
+     * @param threads the number of worker threads
+     * @param queueSize the maximum number of operations waiting for a worker
+     * @param logger the logger used to report failed operations
+     */
+    public PersistenceExecutor(int threads, int queueSize, Logger logger) {
+        this.logger = logger;
+        this.executor = new ThreadPoolExecutor(
+                threads,
+                threads,
+                60L, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<>(queueSize),
+                new WorkerThreadFactory(),
+                this::handOff);
+        this.executor.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * Submits an operation to the pipeline, waiting for a free slot if the queue is full.
+     *
+     * @param task the operation to run
+     * @throws RejectedExecutionException if the queue stayed full or the executor has been shut down
+     */
+    @Override
+    public void execute(Runnable task) {
+        executor.execute(() -> {
+            try {
+                task.run();
+            } catch (Throwable t) {
+                logger.log(Level.SEVERE, "A persistence operation failed", t);
+            }
+        });
+    }
+
+    /**
+     * Changes the number of worker threads while running. Extra threads stop once they are idle.
+     *
+     * @param threads the number of worker threads
+     */
+    public synchronized void setThreads(int threads) {
+        // The core size can never exceed the maximum size, so the order depends on the direction
+        if (threads > executor.getMaximumPoolSize()) {
+            executor.setMaximumPoolSize(threads);
+            executor.setCorePoolSize(threads);
+        } else {
+            executor.setCorePoolSize(threads);
+            executor.setMaximumPoolSize(threads);
+        }
+    }
+
+    /**
+     * @return the number of operations waiting for a worker
+     */
+    public int getQueueDepth() {
+        return executor.getQueue().size();
+    }
+
+    /**
+     * @return the number of operations currently being executed
+     */
+    public int getActiveCount() {
+        return executor.getActiveCount();
+    }
+
+    /**
+     * @return the number of operations rejected because the queue stayed full or the executor was shut down
+     */
+    public long getRejectedCount() {
+        return rejected.get();
+    }
+
+    /**
+     * Stops accepting new operations and waits for the pending ones to complete.
+     *
+     * @param timeout the maximum time to wait
+     * @param unit the unit of the timeout argument
+     * @return true if every pending operation completed, false if some had to be abandoned
+     */
+    public boolean shutdown(long timeout, TimeUnit unit) {
+        executor.shutdown();
+        try {
+            if (executor.awaitTermination(timeout, unit)) {
+                return true;
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+
+        int abandoned = executor.shutdownNow().size();
+        logger.warning("Persistence pipeline did not drain in time, " + abandoned + " operation(s) abandoned.");
+        return false;
+    }
+
+
+    private void handOff(Runnable task, ThreadPoolExecutor pool) {
+        if (!pool.isShutdown()) {
+            try {
+                if (pool.getQueue().offer(task, HAND_OFF_TIMEOUT, TimeUnit.MILLISECONDS)) {
+                    return;
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        rejected.incrementAndGet();
+        throw new RejectedExecutionException(pool.isShutdown()
+                ? "The persistence pipeline has been shut down"
+                : "The persistence pipeline is saturated");
+    }
+
+    private static class WorkerThreadFactory implements ThreadFactory {
+        private final AtomicInteger counter = new AtomicInteger();
+
+        @Override
+        public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, "Persistify Worker #" + counter.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+
+}
@@ -0,0 +1,273 @@
+/*
+ *  Copyright (c) 2023, MikesLab
+ *  All rights reserved.
+ *
+ *  Redistribution and use in source and binary forms, with or without
+ *  modification, are permitted provided that the following conditions are met:
+ *  1. Redistributions of source code must retain the above copyright notice, this
+ *     list of conditions and the following disclaimer.
+ *  2. Redistributions in binary form must reproduce the above copyright notice,
+ *     this list of conditions and the following disclaimer in the documentation
+ *     and/or other materials provided with the distribution.
+ *  3. Neither the name of the copyright holder nor the names of its
+ *     contributors may be used to endorse or promote products derived from
+ *     this software without specific prior written permission.
+ *  4. Redistribution of this software in source or binary forms shall be free
+ *     of all charges or fees to the recipient of this software.
+ *
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ *  AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ *  IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ *  DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ *  FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ *  DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ *  SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ *  CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ *  OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ *  OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package it.mikeslab.persistify.util;
+
+import com.mongodb.ErrorCategory;
+import com.mongodb.MongoBulkWriteException;
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.model.BulkWriteOptions;
+import com.mongodb.client.model.DeleteOneModel;
+import com.mongodb.client.model.Filters;
+import com.mongodb.client.model.Indexes;
+import com.mongodb.client.model.InsertManyOptions;
+import com.mongodb.client.model.Projections;
+import com.mongodb.client.model.ReplaceOneModel;
+import com.mongodb.client.model.ReplaceOptions;
+import com.mongodb.client.model.Sorts;
+import com.mongodb.client.model.Updates;
+import com.mongodb.client.model.WriteModel;
+import it.mikeslab.persistify.util.schema.DocumentSchema;
+import it.mikeslab.persistify.util.schema.SchemaField;
+import org.bson.Document;
+import org.bson.conversions.Bson;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
+
+/**
+ * The archive tier of the player documents.
+ * <p>
+ * The documents of players who have not connected for a while are moved from the hot collection to the archive,
+ * so that the hot collection and its indexes stay small enough to be held in memory. They are moved back as is the
+ * next time they are looked up, both collections always use the same schema.
+ */
+public class PlayerArchive {
+
+    private final MongoCollection<Document> hot;
+    private final MongoCollection<Document> archive;
+    private final DocumentSchema schema;
+    private final String lastSeenField;
+
+    private final AtomicLong archived = new AtomicLong();
+    private final AtomicLong rehydrated = new AtomicLong();
+
+    public PlayerArchive(MongoCollection<Document> hot, MongoCollection<Document> archive, DocumentSchema schema) {
+        this.hot = hot;
+        this.archive = archive;
+        this.schema = schema;
+        this.lastSeenField = schema.field(SchemaField.LAST_SEEN);
+    }
+
+    /**
+     * Creates the last seen index of the hot collection, which finds the idle documents, and the key and uuid
+     * indexes of the archive, which serve the same lookups as in the hot collection.
+     */
+    public void ensureIndexes() {
+        hot.createIndex(Indexes.ascending(lastSeenField));
+
+        archive.createIndex(
+                Indexes.ascending(schema.field(SchemaField.SERVER), schema.field(SchemaField.UUID)),
+                schema.keyIndexOptions());
+        archive.createIndex(Indexes.ascending(schema.field(SchemaField.UUID)));
+    }
+
+    /**
+     * Moves the archived documents matching a filter back to the hot collection.
+     *
+     * @param filter the filter, which must match the same documents in both collections
+     * @return the documents moved back, empty if none was archived
+     */
+    public List<Document> rehydrate(Bson filter) {
+        List<Document> docs = archive.find(filter).into(new ArrayList<>());
+        if (docs.isEmpty()) {
+            return docs;
+        }
+
+        // Looking a player up counts as seeing them, so that they are not archived again by the next run
+        Date now = new Date();
+        docs.forEach(doc -> doc.put(lastSeenField, now));
+
+        try {
+            hot.insertMany(docs, new InsertManyOptions().ordered(false));
+        } catch (MongoBulkWriteException e) {
+            // Documents moved back concurrently by another proxy are already there
+            if (e.getWriteErrors().stream().anyMatch(error -> ErrorCategory.fromErrorCode(error.getCode()) != ErrorCategory.DUPLICATE_KEY)) {
+                throw e;
+            }
+        }
+
+        archive.deleteMany(Filters.in("_id", ids(docs)));
+        rehydrated.addAndGet(docs.size());
+        return docs;
+    }
+
+    /**
+     * Moves the archived document of a single player back over the document that has just been inserted for them.
+     * The fields of the inserted document, such as the refreshed name and last seen time, take precedence.
+     *
+     * @param filter the filter of the player, which must match the same document in both collections
+     * @param inserted the fields of the inserted document to keep
+     * @return the document moved back, null if the player was not archived
+     */
+    public Document rehydrateOver(Bson filter, Document inserted) {
+        Document doc = archive.find(filter).first();
+        if (doc == null) {
+            return null;
+        }
+
+        Object id = doc.remove("_id");
+        doc.putAll(inserted);
+        hot.replaceOne(filter, doc);
+
+        archive.deleteOne(Filters.eq("_id", id));
+        rehydrated.incrementAndGet();
+        return doc;
+    }
+
+    /**
+     * Deletes the archived documents matching a filter, once newer documents have been written to the hot collection.
+     *
+     * @param filter the filter
+     */
+    public void discard(Bson filter) {
+        archive.deleteMany(filter);
+    }
+
+    /**
+     * Moves the documents of the players not seen since a cutoff to the archive, in batches.
+     * A document is only removed from the hot collection if it has not changed since it was copied,
+     * so that writes made while archiving are never lost.
+     *
+     * @param cutoff the documents last seen before are archived
+     * @param batchSize the number of documents moved at a time
+     * @param isOnline tells whether a player is connected, whose documents are never archived
+     * @return the number of archived documents
+     */
+    public long archiveIdle(Date cutoff, int batchSize, Predicate<UUID> isOnline) {
+        // Documents written before the last seen time was tracked, or by upserts, start being tracked now
+        hot.updateMany(Filters.eq(lastSeenField, null), Updates.set(lastSeenField, new Date()));
+
+        String uuidField = schema.field(SchemaField.UUID);
+        long count = 0;
+        while (true) {
+            List<Document> batch = hot.find(Filters.lt(lastSeenField, cutoff))
+                    .sort(Sorts.ascending(lastSeenField))
+                    .limit(batchSize)
+                    .into(new ArrayList<>());
+            if (batch.isEmpty()) {
+                return count;
+            }
+
+            List<Document> idle = new ArrayList<>(batch.size());
+            List<Object> online = new ArrayList<>();
+            for (Document doc : batch) {
+                if (isOnline.test(schema.decodeUuid(doc.get(uuidField)))) {
+                    online.add(doc.get("_id"));
+                } else {
+                    idle.add(doc);
+                }
+            }
+
+            if (!online.isEmpty()) {
+                // Connected for longer than the idle time, so not idle at all
+                hot.updateMany(Filters.in("_id", online), Updates.set(lastSeenField, new Date()));
+            }
+            if (idle.isEmpty()) {
+                continue;
+            }
+
+            List<WriteModel<Document>> copies = new ArrayList<>(idle.size());
+            List<WriteModel<Document>> deletions = new ArrayList<>(idle.size());
+            for (Document doc : idle) {
+                copies.add(new ReplaceOneModel<>(Filters.eq("_id", doc.get("_id")), doc, new ReplaceOptions().upsert(true)));
+                deletions.add(new DeleteOneModel<>(unchanged(doc)));
+            }
+            archive.bulkWrite(copies, new BulkWriteOptions().ordered(false));
+            int deleted = hot.bulkWrite(deletions, new BulkWriteOptions().ordered(false)).getDeletedCount();
+
+            if (deleted < idle.size()) {
+                // The hot documents changed while being copied stay, and their stale copies are discarded
+                List<Object> kept = hot.find(Filters.in("_id", ids(idle)))
+                        .projection(Projections.include("_id"))
+                        .map(doc -> doc.get("_id"))
+                        .into(new ArrayList<>());
+                archive.deleteMany(Filters.in("_id", kept));
+            }
+
+            count += deleted;
+            archived.addAndGet(deleted);
+            if (deleted == 0) {
+                // Left to the next run rather than retried in a loop
+                return count;
+            }
+        }
+    }
+
+    /**
+     * Streams every archived player document with a batched cursor.
+     *
+     * @param consumer the consumer each document is passed to
+     */
+    public void forEach(Consumer<Document> consumer) {
+        for (Document doc : archive.find().batchSize(1000)) {
+            consumer.accept(doc);
+        }
+    }
+
+    /**
+     * @return the number of documents archived since startup
+     */
+    public long getArchived() {
+        return archived.get();
+    }
+
+    /**
+     * @return the number of documents moved back to the hot collection since startup
+     */
+    public long getRehydrated() {
+        return rehydrated.get();
+    }
+
+
+    private Bson unchanged(Document doc) {
+        List<Bson> filters = new ArrayList<>();
+        doc.forEach((name, value) -> filters.add(Filters.eq(name, value)));
+        for (SchemaField field : SchemaField.values()) {
+            if (!doc.containsKey(schema.field(field))) {
+                filters.add(Filters.exists(schema.field(field), false));
+            }
+        }
+        return Filters.and(filters);
+    }
+
+    private static List<Object> ids(List<Document> docs) {
+        List<Object> ids = new ArrayList<>(docs.size());
+        for (Document doc : docs) {
+            ids.add(doc.get("_id"));
+        }
+        return ids;
+    }
+
+}
@@ -0,0 +1,408 @@
+/*
+ *  Copyright (c) 2023, MikesLab
+ *  All rights reserved.
+ *
+ *  Redistribution and use in source and binary forms, with or without
+ *  modification, are permitted provided that the following conditions are met:
+ *  1. Redistributions of source code must retain the above copyright notice, this
+ *     list of conditions and the following disclaimer.
+ *  2. Redistributions in binary form must reproduce the above copyright notice,
+ *     this list of conditions and the following disclaimer in the documentation
+ *     and/or other materials provided with the distribution.
+ *  3. Neither the name of the copyright holder nor the names of its
+ *     contributors may be used to endorse or promote products derived from
+ *     this software without specific prior written permission.
+ *  4. Redistribution of this software in source or binary forms shall be free
+ *     of all charges or fees to the recipient of this software.
+ *
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ *  AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ *  IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ *  DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ *  FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ *  DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ *  SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ *  CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ *  OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ *  OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package it.mikeslab.persistify.util;
+
+import com.mongodb.MongoExecutionTimeoutException;
+import com.mongodb.MongoNodeIsRecoveringException;
+import com.mongodb.MongoNotPrimaryException;
+import com.mongodb.MongoSocketException;
+import com.mongodb.MongoTimeoutException;
+import it.mikeslab.persistify.data.DataChanges;
+import it.mikeslab.persistify.data.PlayerData;
+import it.mikeslab.persistify.object.User;
+import it.mikeslab.persistify.object.UserKey;
+import it.mikeslab.persistify.util.WriteOutbox.PendingWrite;
+
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A StorageHandler which keeps the proxy working while the backend of another one is unreachable.
+ * <p>
+ * Connectivity failures trip a {@link CircuitBreaker}. While it is open, reads fail fast with a
+ * {@link StorageUnavailableException} instead of waiting for the driver timeouts, and writes are queued in a
+ * {@link WriteOutbox}. The outbox is replayed in order once a trial call succeeds; until it has been drained,
+ * new writes are queued behind it so that an older queued write never overwrites a newer one.
+ * A queued write the storage rejects once it is reachable again is dropped on its own, the rest of the queue is kept.
+ * <p>
+ * Queued level updates count as written: the futures of
+ * {@link it.mikeslab.persistify.api.APIManager#setPlayerLevelAsync(String, UUID, int)} complete once the update
+ * is queued, not once it is replayed. Queued writes are spilled to disk when the memory capacity of the outbox is
+ * reached and when the proxy shuts down, so only the writes still held in memory are lost if the proxy crashes.
+ */
+public class ResilientStorageHandler implements StorageHandler {
+
+    private final StorageHandler delegate;
+    private final CircuitBreaker circuitBreaker;
+    private final WriteOutbox outbox;
+    private final int replayBatchSize;
+    private final Logger logger;
+    private final ScheduledExecutorService scheduler;
+
+    private volatile boolean replaying;
+
+    /**
+     * Constructs a new ResilientStorageHandler.
+     *
+     * @param delegate the storage to protect
+     * @param circuitBreaker the breaker tracking the health of the storage
+     * @param outbox the outbox writes are queued in while the storage is unavailable
+     * @param replayInterval the number of milliseconds between attempts to replay queued writes
+     * @param replayBatchSize the maximum number of queued writes replayed with each bulk write
+     * @param logger the logger state changes are reported to
+     */
+    public ResilientStorageHandler(StorageHandler delegate, CircuitBreaker circuitBreaker, WriteOutbox outbox,
+                                   long replayInterval, int replayBatchSize, Logger logger) {
+        this.delegate = delegate;
+        this.circuitBreaker = circuitBreaker;
+        this.outbox = outbox;
+        this.replayBatchSize = replayBatchSize;
+        this.logger = logger;
+
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "Persistify Outbox Replay");
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.scheduler.scheduleWithFixedDelay(this::replayQuietly, replayInterval, replayInterval, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Registers the user, or queues the registration if the storage is unavailable.
+     *
+     * @throws StorageUnavailableException if the registration has been queued, as the stored level is unknown
+     */
+    @Override
+    public int registerUser(User user) {
+        if (mustQueue()) {
+            outbox.add(new PendingWrite(true, user));
+            throw new StorageUnavailableException("Storage unavailable, registration of " + user.getPlayerUUID() + " queued");
+        }
+
+        try {
+            int level = delegate.registerUser(user);
+            circuitBreaker.recordSuccess();
+            return level;
+        } catch (RuntimeException e) {
+            if (!isConnectivityFailure(e)) {
+                // The storage answered, so a trial call has to settle the breaker whatever the error
+                circuitBreaker.recordSuccess();
+                throw e;
+            }
+            onFailure(e);
+            outbox.add(new PendingWrite(true, user));
+            throw new StorageUnavailableException("Storage unavailable, registration of " + user.getPlayerUUID() + " queued", e);
+        }
+    }
+
+    @Override
+    public void setLevelByUUID(String bungeeCordServerName, UUID playerUUID, int newLevel) {
+        setLevels(Map.of(new UserKey(bungeeCordServerName, playerUUID), newLevel));
+    }
+
+    /**
+     * Sets the levels, or queues them if the storage is unavailable. Queued levels count as written.
+     */
+    @Override
+    public void setLevels(Map<UserKey, Integer> levels) {
+        if (levels.isEmpty()) {
+            return;
+        }
+
+        if (mustQueue()) {
+            queueLevels(levels);
+            return;
+        }
+
+        try {
+            delegate.setLevels(levels);
+            circuitBreaker.recordSuccess();
+        } catch (RuntimeException e) {
+            if (!isConnectivityFailure(e)) {
+                circuitBreaker.recordSuccess();
+                throw e;
+            }
+            onFailure(e);
+            queueLevels(levels);
+        }
+    }
+
+    @Override
+    public int getLevelByUUID(String bungeeCordServerName, UUID playerUUID) {
+        return read(() -> delegate.getLevelByUUID(bungeeCordServerName, playerUUID));
+    }
+
+    @Override
+    public Map<UUID, Integer> getLevels(String bungeeCordServerName, Collection<UUID> playerUUIDs) {
+        return read(() -> delegate.getLevels(bungeeCordServerName, playerUUIDs));
+    }
+
+    @Override
+    public List<User> getUserProfiles(UUID playerUUID) {
+        return read(() -> delegate.getUserProfiles(playerUUID));
+    }
+
+    @Override
+    public Map<String, Object> getData(String serverName, UUID playerUUID) {
+        return read(() -> delegate.getData(serverName, playerUUID));
+    }
+
+    /**
+     * Updates the data, failing fast if the storage is unavailable. Data changes are not queued,
+     * callers such as {@link PlayerData#saveTo(StorageHandler)} keep tracking them until they are saved.
+     */
+    @Override
+    public void updateData(String serverName, UUID playerUUID, DataChanges changes) {
+        read(() -> {
+            delegate.updateData(serverName, playerUUID, changes);
+            return null;
+        });
+    }
+
+    /**
+     * Adds the experience, failing fast if the storage is unavailable. Experience is not queued,
+     * the {@link it.mikeslab.persistify.level.ExperienceEngine} keeps accumulating it until it is written.
+     */
+    @Override
+    public Map<UserKey, Long> addExperience(UUID batchId, Map<UserKey, Long> amounts) {
+        return read(() -> delegate.addExperience(batchId, amounts));
+    }
+
+    @Override
+    public long getExperience(String serverName, UUID playerUUID) {
+        return read(() -> delegate.getExperience(serverName, playerUUID));
+    }
+
+    @Override
+    public int raiseLevel(String serverName, UUID playerUUID, int level) {
+        return read(() -> delegate.raiseLevel(serverName, playerUUID, level));
+    }
+
+    @Override
+    public List<User> getTopLevels(String serverName, int offset, int limit) {
+        return read(() -> delegate.getTopLevels(serverName, offset, limit));
+    }
+
+    @Override
+    public long getRank(String serverName, UUID playerUUID) {
+        return read(() -> delegate.getRank(serverName, playerUUID));
+    }
+
+    @Override
+    public void forEachUser(String serverName, Consumer<User> consumer) {
+        read(() -> {
+            delegate.forEachUser(serverName, consumer);
+            return null;
+        });
+    }
+
+    @Override
+    public void forEachUser(Consumer<User> consumer) {
+        read(() -> {
+            delegate.forEachUser(consumer);
+            return null;
+        });
+    }
+
+    @Override
+    public void importUsers(List<User> users) {
+        read(() -> {
+            delegate.importUsers(users);
+            return null;
+        });
+    }
+
+    /**
+     * Makes a last attempt to replay the queued writes, spills the remaining ones to disk and disconnects.
+     */
+    @Override
+    public void disconnect() {
+        scheduler.shutdown();
+        try {
+            scheduler.awaitTermination(5, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+
+        replayQuietly();
+        outbox.close();
+        delegate.disconnect();
+    }
+
+    public CircuitBreaker.State getState() {
+        return circuitBreaker.getState();
+    }
+
+    public long getQueuedWrites() {
+        return outbox.size();
+    }
+
+    public long getSpilledWrites() {
+        return outbox.getSpilled();
+    }
+
+    public long getDroppedWrites() {
+        return outbox.getDropped();
+    }
+
+
+    private <T> T read(Supplier<T> operation) {
+        if (!circuitBreaker.allowRequest()) {
+            throw new StorageUnavailableException("Storage unavailable, the circuit breaker is open");
+        }
+
+        try {
+            T result = operation.get();
+            circuitBreaker.recordSuccess();
+            return result;
+        } catch (RuntimeException e) {
+            if (isConnectivityFailure(e)) {
+                onFailure(e);
+            } else {
+                circuitBreaker.recordSuccess();
+            }
+            throw e;
+        }
+    }
+
+    private boolean mustQueue() {
+        return replaying || !outbox.isEmpty() || !circuitBreaker.allowRequest();
+    }
+
+    private void queueLevels(Map<UserKey, Integer> levels) {
+        levels.forEach((key, level) -> outbox.add(new PendingWrite(false, new User(key.serverName(), null, key.playerUUID(), level))));
+    }
+
+    private void onFailure(RuntimeException e) {
+        CircuitBreaker.State previous = circuitBreaker.getState();
+        circuitBreaker.recordFailure();
+        if (previous != CircuitBreaker.State.OPEN && circuitBreaker.getState() == CircuitBreaker.State.OPEN) {
+            logger.warning("Storage unavailable (" + e.getMessage() + "), switching to degraded mode.");
+        }
+    }
+
+    private void replayQuietly() {
+        if (outbox.isEmpty() || !circuitBreaker.allowRequest()) {
+            return;
+        }
+
+        replaying = true;
+        long replayed = 0;
+        try {
+            List<PendingWrite> batch;
+            while (!(batch = outbox.poll(replayBatchSize)).isEmpty()) {
+                try {
+                    apply(batch);
+                    circuitBreaker.recordSuccess();
+                    replayed += batch.size();
+                } catch (RuntimeException e) {
+                    if (!isConnectivityFailure(e)) {
+                        circuitBreaker.recordSuccess();
+                        int applied = replayOneByOne(batch);
+                        if (applied < 0) {
+                            return;
+                        }
+                        replayed += applied;
+                        continue;
+                    }
+                    outbox.requeue(batch);
+                    onFailure(e);
+                    return;
+                }
+            }
+            if (replayed > 0) {
+                logger.info("Storage available again, replayed " + replayed + " queued write(s).");
+            }
+        } finally {
+            replaying = false;
+        }
+    }
+
+    /**
+     * Replays a batch the storage rejected one write at a time, dropping only the writes it rejects.
+     * Retrying such a write would hold every following write back forever.
+     *
+     * @return the number of writes replayed, or -1 if the storage became unreachable and the rest was requeued
+     */
+    private int replayOneByOne(List<PendingWrite> batch) {
+        int applied = 0;
+        for (int i = 0; i < batch.size(); i++) {
+            PendingWrite write = batch.get(i);
+            try {
+                apply(List.of(write));
+                applied++;
+            } catch (RuntimeException e) {
+                if (isConnectivityFailure(e)) {
+                    outbox.requeue(batch.subList(i, batch.size()));
+                    onFailure(e);
+                    return -1;
+                }
+                logger.log(Level.SEVERE, "Unable to replay the queued " + (write.registration() ? "registration" : "level")
+                        + " of " + write.user().getPlayerUUID() + " on " + write.user().getServerName() + ", it has been dropped", e);
+            }
+        }
+        return applied;
+    }
+
+    private void apply(List<PendingWrite> batch) {
+        // Consecutive level updates are coalesced into a single bulk write, registrations keep their position
+        Map<UserKey, Integer> levels = new LinkedHashMap<>();
+        for (PendingWrite write : batch) {
+            if (write.registration()) {
+                delegate.setLevels(levels);
+                levels.clear();
+                delegate.registerUser(write.user());
+            } else {
+                levels.put(UserKey.of(write.user()), write.user().getLevel());
+            }
+        }
+        delegate.setLevels(levels);
+    }
+
+    private static boolean isConnectivityFailure(Throwable e) {
+        return e instanceof MongoSocketException
+                || e instanceof MongoTimeoutException
+                || e instanceof MongoExecutionTimeoutException
+                || e instanceof MongoNotPrimaryException
+                || e instanceof MongoNodeIsRecoveringException
+                || e instanceof StorageUnavailableException;
+    }
+
+}
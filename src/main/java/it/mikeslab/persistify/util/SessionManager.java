@@ -0,0 +1,281 @@
+/*
+ *  Copyright (c) 2023, MikesLab
+ *  All rights reserved.
+ *
+ *  Redistribution and use in source and binary forms, with or without
+ *  modification, are permitted provided that the following conditions are met:
+ *  1. Redistributions of source code must retain the above copyright notice, this
+ *     list of conditions and the following disclaimer.
+ *  2. Redistributions in binary form must reproduce the above copyright notice,
+ *     this list of conditions and the following disclaimer in the documentation
+ *     and/or other materials provided with the distribution.
+ *  3. Neither the name of the copyright holder nor the names of its
+ *     contributors may be used to endorse or promote products derived from
+ *     this software without specific prior written permission.
+ *  4. Redistribution of this software in source or binary forms shall be free
+ *     of all charges or fees to the recipient of this software.
+ *
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ *  AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ *  IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ *  DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ *  FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ *  DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ *  SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ *  CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ *  OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ *  OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package it.mikeslab.persistify.util;
+
+import it.mikeslab.persistify.data.PlayerData;
+import it.mikeslab.persistify.object.User;
+import it.mikeslab.persistify.object.UserKey;
+
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Predicate;
+
+/**
+ * Holds the data of every player connected to the proxy, from login to disconnection.
+ * <p>
+ * All of a player's per-server documents are loaded with a single query on login, so that switching servers
+ * and reading the levels and data of online players needs no database round-trip. Unlike the {@link LevelCache}, sessions
+ * are never evicted while the player is connected.
+ * <p>
+ * Data which cannot be saved when its session is closed, e.g. while the storage is unavailable, is kept until a later
+ * attempt saves it, or handed back to the session of the player if they join again first.
+ */
+public class SessionManager {
+
+    // Registering again refreshes the last time the player has been seen, which only needs a coarse precision
+    private static final long LAST_SEEN_REFRESH = TimeUnit.DAYS.toMillis(1);
+
+    private final StorageHandler storageHandler;
+    private final WriteBehindBuffer writeBehindBuffer;
+    private final Map<UUID, Session> sessions = new ConcurrentHashMap<>();
+    private final Map<UserKey, PlayerData> unsaved = new ConcurrentHashMap<>();
+
+    public SessionManager(StorageHandler storageHandler, WriteBehindBuffer writeBehindBuffer) {
+        this.storageHandler = storageHandler;
+        this.writeBehindBuffer = writeBehindBuffer;
+    }
+
+    /**
+     * Opens the session of a player and loads their data on every server. This blocks on the database.
+     *
+     * @param playerUUID the UUID of the player
+     */
+    public void open(UUID playerUUID) {
+        // The session is visible before the query, so that updates made while it runs are not lost
+        Session session = new Session();
+        sessions.put(playerUUID, session);
+
+        try {
+            for (User user : storageHandler.getUserProfiles(playerUUID)) {
+                UserKey key = UserKey.of(user);
+                Integer pendingLevel = writeBehindBuffer.getPendingLevel(key);
+                int level = pendingLevel != null ? pendingLevel : user.getLevel();
+                session.profiles.putIfAbsent(user.getServerName(), new Profile(user.getPlayerName(), level, user.getLastSeen()));
+                session.data.putIfAbsent(user.getServerName(), new PlayerData(key, user.getData()));
+            }
+
+            // Changes which have not been saved yet are more recent than the stored data
+            unsaved.forEach((key, data) -> {
+                if (key.playerUUID().equals(playerUUID) && unsaved.remove(key, data)) {
+                    session.data.put(key.serverName(), data);
+                }
+            });
+            session.loaded = true;
+        } catch (RuntimeException e) {
+            sessions.remove(playerUUID, session);
+            throw e;
+        }
+    }
+
+    /**
+     * Closes the session of a player.
+     *
+     * @param playerUUID the UUID of the player
+     * @return the data of the player held by the session, which may still have to be saved
+     */
+    public Collection<PlayerData> close(UUID playerUUID) {
+        Session session = sessions.remove(playerUUID);
+        return session != null ? session.data.values() : List.of();
+    }
+
+    /**
+     * Closes the sessions of players who are not connected, e.g. because their login was cancelled or they
+     * left before it completed, and saves their data.
+     *
+     * @param isOnline tells whether a player is connected to the proxy
+     * @param gracePeriod the number of milliseconds during which a new session is kept, while its login completes
+     * @return the number of sessions closed
+     */
+    public int closeStale(Predicate<UUID> isOnline, long gracePeriod) {
+        long openedBefore = System.currentTimeMillis() - gracePeriod;
+        int closed = 0;
+        for (Map.Entry<UUID, Session> entry : sessions.entrySet()) {
+            if (entry.getValue().openedAt < openedBefore && !isOnline.test(entry.getKey())
+                    && sessions.remove(entry.getKey(), entry.getValue())) {
+                save(entry.getValue().data.values());
+                closed++;
+            }
+        }
+        return closed;
+    }
+
+    /**
+     * Saves the data held by a closed session. Data which cannot be saved is kept for {@link #saveUnsaved()}.
+     *
+     * @param data the data returned by {@link #close(UUID)}
+     */
+    public void save(Collection<PlayerData> data) {
+        for (PlayerData playerData : data) {
+            try {
+                playerData.saveTo(storageHandler);
+            } catch (RuntimeException e) {
+                unsaved.put(playerData.getKey(), playerData);
+            }
+        }
+    }
+
+    /**
+     * Keeps the data held by a closed session to be saved by {@link #saveUnsaved()}, without attempting to save it now.
+     *
+     * @param data the data returned by {@link #close(UUID)}
+     */
+    public void keepUnsaved(Collection<PlayerData> data) {
+        for (PlayerData playerData : data) {
+            unsaved.put(playerData.getKey(), playerData);
+        }
+    }
+
+    /**
+     * Attempts to save again the data which could not be saved when its session was closed.
+     *
+     * @return the number of players and servers whose data is still not saved
+     */
+    public int saveUnsaved() {
+        for (PlayerData playerData : unsaved.values()) {
+            try {
+                playerData.saveTo(storageHandler);
+                unsaved.remove(playerData.getKey(), playerData);
+            } catch (RuntimeException e) {
+                // Kept for the next attempt
+            }
+        }
+        return unsaved.size();
+    }
+
+    /**
+     * Closes every session and saves all the data held, when the proxy shuts down.
+     *
+     * @return the number of players and servers whose data could not be saved
+     */
+    public int closeAll() {
+        for (UUID playerUUID : sessions.keySet()) {
+            for (PlayerData playerData : close(playerUUID)) {
+                unsaved.put(playerData.getKey(), playerData);
+            }
+        }
+        return saveUnsaved();
+    }
+
+    /**
+     * @param key the player and server to look up
+     * @return the data of the player on the server, or null if the player has no loaded session
+     */
+    public PlayerData getData(UserKey key) {
+        Session session = sessions.get(key.playerUUID());
+        if (session == null || !session.loaded) {
+            return null;
+        }
+
+        // A loaded session holds every stored document of the player, so a missing one has no data yet
+        return session.data.computeIfAbsent(key.serverName(), serverName -> new PlayerData(key, Map.of()));
+    }
+
+    /**
+     * @param key the player and server to look up
+     * @return the level of the player on the server, or null if it is not held by a loaded session
+     */
+    public Integer getLevel(UserKey key) {
+        Session session = sessions.get(key.playerUUID());
+        if (session == null || !session.loaded) {
+            return null;
+        }
+
+        Profile profile = session.profiles.get(key.serverName());
+        return profile != null ? profile.level() : null;
+    }
+
+    /**
+     * @param key the player and server to look up
+     * @param playerName the current name of the player
+     * @return true if the player is known to be registered on the server with the same name, and has been seen recently
+     */
+    public boolean isRegistered(UserKey key, String playerName) {
+        Session session = sessions.get(key.playerUUID());
+        if (session == null || !session.loaded) {
+            return false;
+        }
+
+        Profile profile = session.profiles.get(key.serverName());
+        return profile != null && Objects.equals(profile.playerName(), playerName)
+                && (profile.lastSeen() == 0 || System.currentTimeMillis() - profile.lastSeen() < LAST_SEEN_REFRESH);
+    }
+
+    /**
+     * Records that a player has been registered on a server.
+     *
+     * @param key the player and server
+     * @param playerName the stored name of the player
+     * @param level the stored level of the player
+     */
+    public void registered(UserKey key, String playerName, int level) {
+        Session session = sessions.get(key.playerUUID());
+        if (session != null) {
+            session.profiles.put(key.serverName(), new Profile(playerName, level, System.currentTimeMillis()));
+        }
+    }
+
+    /**
+     * Updates the level of a player held by a session, whether it has been set locally or by another proxy.
+     *
+     * @param key the player and server
+     * @param level the new level
+     */
+    public void update(UserKey key, int level) {
+        Session session = sessions.get(key.playerUUID());
+        if (session != null) {
+            session.profiles.compute(key.serverName(), (serverName, profile) ->
+                    profile != null ? new Profile(profile.playerName(), level, profile.lastSeen()) : new Profile(null, level, 0));
+        }
+    }
+
+    public int size() {
+        return sessions.size();
+    }
+
+    public int getUnsavedCount() {
+        return unsaved.size();
+    }
+
+
+    private record Profile(String playerName, int level, long lastSeen) {}
+
+    private static class Session {
+        private final Map<String, Profile> profiles = new ConcurrentHashMap<>();
+        private final Map<String, PlayerData> data = new ConcurrentHashMap<>();
+        private final long openedAt = System.currentTimeMillis();
+        private volatile boolean loaded;
+    }
+
+}
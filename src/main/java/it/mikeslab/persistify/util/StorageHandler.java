@@ -0,0 +1,193 @@
+/*
+ *  Copyright (c) 2023, MikesLab
+ *  All rights reserved.
+ *
+ *  Redistribution and use in source and binary forms, with or without
+ *  modification, are permitted provided that the following conditions are met:
+ *  1. Redistributions of source code must retain the above copyright notice, this
+ *     list of conditions and the following disclaimer.
+ *  2. Redistributions in binary form must reproduce the above copyright notice,
+ *     this list of conditions and the following disclaimer in the documentation
+ *     and/or other materials provided with the distribution.
+ *  3. Neither the name of the copyright holder nor the names of its
+ *     contributors may be used to endorse or promote products derived from
+ *     this software without specific prior written permission.
+ *  4. Redistribution of this software in source or binary forms shall be free
+ *     of all charges or fees to the recipient of this software.
+ *
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ *  AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ *  IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ *  DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ *  FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ *  DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ *  SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ *  CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ *  OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ *  OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package it.mikeslab.persistify.util;
+
+import it.mikeslab.persistify.data.DataChanges;
+import it.mikeslab.persistify.object.User;
+import it.mikeslab.persistify.object.UserKey;
+
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.function.Consumer;
+
+/**
+ * A storage backend for player data.
+ */
+public interface StorageHandler {
+
+    /**
+     * Registers a player's data for the specified BungeeCord server name and player UUID, if not already present.
+     * The stored player name is always refreshed.
+     *
+     * @param user a User object containing the player's data
+     * @return the stored level of the player, which is the level of the User object if it was just registered
+     */
+    int registerUser(User user);
+
+    /**
+     * Sets the level of the player with the specified UUID on the specified BungeeCord server.
+     *
+     * @param bungeeCordServerName the name of the BungeeCord server you want to set the level on
+     * @param playerUUID the UUID of the player
+     * @param newLevel the new level of the player
+     */
+    void setLevelByUUID(String bungeeCordServerName, UUID playerUUID, int newLevel);
+
+    /**
+     * Sets the levels of several players at once.
+     *
+     * @param levels the new levels, keyed by BungeeCord server name and player UUID
+     */
+    void setLevels(Map<UserKey, Integer> levels);
+
+    /**
+     * Gets the level of a player given their UUID and the name of a BungeeCord server.
+     *
+     * @param serverName the name of the BungeeCord server where the player joined
+     * @param playerUUID the UUID of the player whose level is being retrieved
+     * @return the level of the player, or -1 if no data was found for the player
+     */
+    int getLevelByUUID(String serverName, UUID playerUUID);
+
+    /**
+     * Gets the levels of several players on the same BungeeCord server at once.
+     *
+     * @param serverName the name of the BungeeCord server where the players joined
+     * @param playerUUIDs the UUIDs of the players whose levels are being retrieved
+     * @return the levels of the players, players with no data are not included
+     */
+    Map<UUID, Integer> getLevels(String serverName, Collection<UUID> playerUUIDs);
+
+    /**
+     * Gets the data of a player on every BungeeCord server they have joined.
+     *
+     * @param playerUUID the UUID of the player
+     * @return the data of the player, one User per server
+     */
+    List<User> getUserProfiles(UUID playerUUID);
+
+    /**
+     * Gets the data other plugins store for a player on a BungeeCord server.
+     *
+     * @param serverName the name of the BungeeCord server
+     * @param playerUUID the UUID of the player
+     * @return the stored values of the fields, keyed by field name, empty if there is none
+     */
+    Map<String, Object> getData(String serverName, UUID playerUUID);
+
+    /**
+     * Sets and increments fields of the data of a player on a BungeeCord server, leaving the other fields untouched.
+     *
+     * @param serverName the name of the BungeeCord server
+     * @param playerUUID the UUID of the player
+     * @param changes the fields to set and increment
+     */
+    void updateData(String serverName, UUID playerUUID, DataChanges changes);
+
+    /**
+     * Atomically adds experience to several players at once. Players who were never registered are created.
+     * <p>
+     * A batch which failed is retried with the same id: players the batch was already applied to are not
+     * incremented again, so a retry never adds the same experience twice.
+     *
+     * @param batchId the id of the batch, unique to its amounts
+     * @param amounts the experience to add, keyed by BungeeCord server name and player UUID
+     * @return the total experience of the players after the addition
+     */
+    Map<UserKey, Long> addExperience(UUID batchId, Map<UserKey, Long> amounts);
+
+    /**
+     * Gets the total experience of a player on a BungeeCord server.
+     *
+     * @param serverName the name of the BungeeCord server
+     * @param playerUUID the UUID of the player
+     * @return the total experience of the player, 0 if no data was found for the player
+     */
+    long getExperience(String serverName, UUID playerUUID);
+
+    /**
+     * Atomically raises the level of a player, if the stored level is lower.
+     *
+     * @param serverName the name of the BungeeCord server
+     * @param playerUUID the UUID of the player
+     * @param level the new level
+     * @return the level before it was raised, or -1 if it was not lower than the new level
+     */
+    int raiseLevel(String serverName, UUID playerUUID, int level);
+
+    /**
+     * Gets a page of the players of a BungeeCord server, ordered by descending level.
+     *
+     * @param serverName the name of the BungeeCord server
+     * @param offset the number of players to skip
+     * @param limit the maximum number of players to return
+     * @return the players, highest level first
+     */
+    List<User> getTopLevels(String serverName, int offset, int limit);
+
+    /**
+     * Gets the rank of a player on a BungeeCord server. Players with the same level share the same rank.
+     *
+     * @param serverName the name of the BungeeCord server
+     * @param playerUUID the UUID of the player
+     * @return the 1-based rank of the player, or -1 if no data was found for the player
+     */
+    long getRank(String serverName, UUID playerUUID);
+
+    /**
+     * Streams every player of a BungeeCord server, without holding them all in memory.
+     *
+     * @param serverName the name of the BungeeCord server
+     * @param consumer the consumer each player is passed to
+     */
+    void forEachUser(String serverName, Consumer<User> consumer);
+
+    /**
+     * Streams every player of every BungeeCord server, without holding them all in memory.
+     *
+     * @param consumer the consumer each player is passed to
+     */
+    void forEachUser(Consumer<User> consumer);
+
+    /**
+     * Stores the data of several players at once, replacing the name and level of the players already stored.
+     *
+     * @param users the players to store
+     */
+    void importUsers(List<User> users);
+
+    /**
+     * Releases any resources held by the storage backend.
+     */
+    void disconnect();
+
+}
@@ -0,0 +1,346 @@
+/*
+ *  Copyright (c) 2023, MikesLab
+ *  All rights reserved.
+ *
+ *  Redistribution and use in source and binary forms, with or without
+ *  modification, are permitted provided that the following conditions are met:
+ *  1. Redistributions of source code must retain the above copyright notice, this
+ *     list of conditions and the following disclaimer.
+ *  2. Redistributions in binary form must reproduce the above copyright notice,
+ *     this list of conditions and the following disclaimer in the documentation
+ *     and/or other materials provided with the distribution.
+ *  3. Neither the name of the copyright holder nor the names of its
+ *     contributors may be used to endorse or promote products derived from
+ *     this software without specific prior written permission.
+ *  4. Redistribution of this software in source or binary forms shall be free
+ *     of all charges or fees to the recipient of this software.
+ *
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ *  AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ *  IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ *  DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ *  FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ *  DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ *  SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ *  CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ *  OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ *  OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package it.mikeslab.persistify.util;
+
+import it.mikeslab.persistify.object.UserKey;
+import lombok.Getter;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Predicate;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Buffers level updates in memory and writes them to the storage backend in batches.
+ * <p>
+ * Repeated updates to the same player on the same server are coalesced, only the last one is written.
+ * The buffer is flushed as a single unordered bulk write when it reaches the flush size, every flush interval,
+ * and when it is closed. Writers never flush themselves, flushes always run on the buffer's own thread.
+ */
+public class WriteBehindBuffer {
+
+    private static final long BACKLOG_WARNING_INTERVAL = TimeUnit.MINUTES.toMillis(1);
+
+    private final StorageHandler dbHandler;
+    private final Logger logger;
+    private volatile int flushSize;
+    private volatile int maxBuffered;
+
+    private final Map<UserKey, PendingLevel> pending = new ConcurrentHashMap<>();
+    private volatile Map<UserKey, Integer> inFlight = Collections.emptyMap();
+
+    private final ReentrantLock flushLock = new ReentrantLock();
+    private final AtomicBoolean earlyFlushScheduled = new AtomicBoolean();
+    private final AtomicLong lastBacklogWarning = new AtomicLong();
+    private final ScheduledExecutorService scheduler;
+    private ScheduledFuture<?> periodicFlush;
+
+    @Getter private volatile long lastFlushMillis;
+    @Getter private volatile long maxFlushMillis;
+    @Getter private volatile int lastBatchSize;
+    private final AtomicLong flushCount = new AtomicLong();
+    private final AtomicLong flushedEntries = new AtomicLong();
+    private final AtomicLong coalescedWrites = new AtomicLong();
+
+    /**
+     * Constructs a new WriteBehindBuffer and starts its periodic flush.
+     *
+     * @param dbHandler the storage backend the batches are written to
+     * @param flushSize the number of buffered entries that triggers an early flush
+     * @param flushInterval the interval between periodic flushes, in milliseconds
+     * @param maxBuffered the number of buffered entries above which the backlog is reported
+     * @param logger the logger used to report failed flushes
+     * @throws IllegalArgumentException if the flush interval is not positive
+     */
+    public WriteBehindBuffer(StorageHandler dbHandler, int flushSize, long flushInterval, int maxBuffered, Logger logger) {
+        requirePositive(flushInterval);
+        this.dbHandler = dbHandler;
+        this.flushSize = flushSize;
+        this.maxBuffered = maxBuffered;
+        this.logger = logger;
+
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "Persistify Write-Behind");
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.periodicFlush = scheduler.scheduleWithFixedDelay(this::flushQuietly, flushInterval, flushInterval, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Applies new settings while running, buffered updates are kept.
+     *
+     * @param flushSize the number of buffered entries that triggers an early flush
+     * @param flushInterval the interval between periodic flushes, in milliseconds
+     * @param maxBuffered the number of buffered entries above which the backlog is reported
+     * @throws IllegalArgumentException if the flush interval is not positive, in which case nothing is changed
+     */
+    public synchronized void reconfigure(int flushSize, long flushInterval, int maxBuffered) {
+        requirePositive(flushInterval);
+        this.flushSize = flushSize;
+        this.maxBuffered = maxBuffered;
+        periodicFlush.cancel(false);
+        periodicFlush = scheduler.scheduleWithFixedDelay(this::flushQuietly, flushInterval, flushInterval, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Buffers a level update, replacing any update for the same player and server which has not been written yet.
+     *
+     * @param key the player and server to update
+     * @param level the new level
+     */
+    public void setLevel(UserKey key, int level) {
+        buffer(key, new PendingLevel(level, null));
+    }
+
+    /**
+     * Buffers a level update like {@link #setLevel(UserKey, int)}, tracking when it is written.
+     *
+     * @param key the player and server to update
+     * @param level the new level
+     * @return a future completed on the flushing thread once the flush carrying the update, or a later update
+     *         of the same player which replaced it, has written it
+     */
+    public CompletableFuture<Void> setLevelAsync(UserKey key, int level) {
+        CompletableFuture<Void> written = new CompletableFuture<>();
+        buffer(key, new PendingLevel(level, written));
+        return written;
+    }
+
+    /**
+     * Gets a level which has been set but not written to the database yet.
+     *
+     * @param key the player and server to look up
+     * @return the buffered level, or null if there is no pending update
+     */
+    public Integer getPendingLevel(UserKey key) {
+        PendingLevel update = pending.get(key);
+        if (update != null) {
+            return update.level();
+        }
+        return inFlight.get(key);
+    }
+
+    /**
+     * Writes every buffered update to the database.
+     * If the write fails, the updates which have not been superseded in the meantime are buffered again.
+     */
+    public void flush() {
+        flush(key -> true);
+    }
+
+    /**
+     * Writes the buffered updates of a single player to the database, leaving the others to the next flush.
+     *
+     * @param playerUUID the UUID of the player
+     */
+    public void flushPlayer(UUID playerUUID) {
+        flush(key -> key.playerUUID().equals(playerUUID));
+    }
+
+    /**
+     * Stops the periodic flush and writes the remaining updates.
+     */
+    public void close() {
+        scheduler.shutdown();
+        try {
+            scheduler.awaitTermination(5, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        flush();
+    }
+
+    /**
+     * @return the number of updates waiting to be written
+     */
+    public int getPendingCount() {
+        return pending.size();
+    }
+
+    /**
+     * @return the number of completed flushes
+     */
+    public long getFlushCount() {
+        return flushCount.get();
+    }
+
+    /**
+     * @return the number of updates written by all the completed flushes
+     */
+    public long getFlushedEntries() {
+        return flushedEntries.get();
+    }
+
+    /**
+     * @return the number of updates which replaced a pending one instead of causing a write
+     */
+    public long getCoalescedWrites() {
+        return coalescedWrites.get();
+    }
+
+
+    private void buffer(UserKey key, PendingLevel update) {
+        boolean[] coalesced = new boolean[1];
+        pending.compute(key, (k, previous) -> {
+            coalesced[0] = previous != null;
+            return previous != null ? update.replacing(previous) : update;
+        });
+        if (coalesced[0]) {
+            coalescedWrites.incrementAndGet();
+        }
+
+        int size = pending.size();
+        if (size >= flushSize && earlyFlushScheduled.compareAndSet(false, true)) {
+            try {
+                scheduler.execute(() -> {
+                    earlyFlushScheduled.set(false);
+                    flushQuietly();
+                });
+            } catch (RejectedExecutionException e) {
+                // Closed, the remaining updates are written by close()
+                earlyFlushScheduled.set(false);
+            }
+        }
+        if (size >= maxBuffered) {
+            warnBacklog(size);
+        }
+    }
+
+    private void warnBacklog(int size) {
+        long now = System.currentTimeMillis();
+        long last = lastBacklogWarning.get();
+        if (now - last >= BACKLOG_WARNING_INTERVAL && lastBacklogWarning.compareAndSet(last, now)) {
+            logger.warning(size + " level updates are waiting to be written, the storage is not keeping up.");
+        }
+    }
+
+    private static void requirePositive(long flushInterval) {
+        if (flushInterval <= 0) {
+            throw new IllegalArgumentException("The flush interval must be positive, got " + flushInterval);
+        }
+    }
+
+    private void flush(Predicate<UserKey> filter) {
+        flushLock.lock();
+        try {
+            // Entries are copied to the in-flight map before leaving the pending one, so readers always see them
+            Map<UserKey, Integer> batch = new ConcurrentHashMap<>();
+            List<CompletableFuture<Void>> writes = new ArrayList<>();
+            inFlight = batch;
+            for (Map.Entry<UserKey, PendingLevel> entry : pending.entrySet()) {
+                PendingLevel update = entry.getValue();
+                if (filter.test(entry.getKey()) && pending.remove(entry.getKey(), update)) {
+                    batch.put(entry.getKey(), update.level());
+                    if (update.written() != null) {
+                        writes.add(update.written());
+                    }
+                }
+            }
+            if (batch.isEmpty()) {
+                inFlight = Collections.emptyMap();
+                return;
+            }
+
+            long start = System.nanoTime();
+            try {
+                dbHandler.setLevels(batch);
+            } catch (RuntimeException e) {
+                batch.forEach((key, level) -> pending.putIfAbsent(key, new PendingLevel(level, null)));
+                writes.forEach(written -> written.completeExceptionally(e));
+                throw e;
+            } finally {
+                inFlight = Collections.emptyMap();
+            }
+
+            long elapsed = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+            lastFlushMillis = elapsed;
+            maxFlushMillis = Math.max(maxFlushMillis, elapsed);
+            lastBatchSize = batch.size();
+            flushCount.incrementAndGet();
+            flushedEntries.addAndGet(batch.size());
+
+            logger.fine("Flushed " + batch.size() + " level update(s) in " + elapsed + "ms");
+            writes.forEach(written -> written.complete(null));
+        } finally {
+            flushLock.unlock();
+        }
+    }
+
+    private void flushQuietly() {
+        try {
+            flush();
+        } catch (RuntimeException e) {
+            logger.log(Level.WARNING, "Unable to flush buffered level updates, retrying on the next flush", e);
+        }
+    }
+
+    /**
+     * A buffered update, with the future of the caller waiting for its write if there is one.
+     */
+    private record PendingLevel(int level, CompletableFuture<Void> written) {
+
+        /**
+         * @return the update to buffer in place of the previous one, which completes the future of the previous one
+         */
+        PendingLevel replacing(PendingLevel previous) {
+            if (previous.written() == null) {
+                return this;
+            }
+            if (written == null) {
+                return new PendingLevel(level, previous.written());
+            }
+
+            written.whenComplete((ignored, throwable) -> {
+                if (throwable == null) {
+                    previous.written().complete(null);
+                } else {
+                    previous.written().completeExceptionally(throwable);
+                }
+            });
+            return this;
+        }
+    }
+
+}
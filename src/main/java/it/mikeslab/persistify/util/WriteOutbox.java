@@ -0,0 +1,322 @@
+/*
+ *  Copyright (c) 2023, MikesLab
+ *  All rights reserved.
+ *
+ *  Redistribution and use in source and binary forms, with or without
+ *  modification, are permitted provided that the following conditions are met:
+ *  1. Redistributions of source code must retain the above copyright notice, this
+ *     list of conditions and the following disclaimer.
+ *  2. Redistributions in binary form must reproduce the above copyright notice,
+ *     this list of conditions and the following disclaimer in the documentation
+ *     and/or other materials provided with the distribution.
+ *  3. Neither the name of the copyright holder nor the names of its
+ *     contributors may be used to endorse or promote products derived from
+ *     this software without specific prior written permission.
+ *  4. Redistribution of this software in source or binary forms shall be free
+ *     of all charges or fees to the recipient of this software.
+ *
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ *  AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ *  IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ *  DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ *  FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ *  DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ *  SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ *  CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ *  OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ *  OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package it.mikeslab.persistify.util;
+
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import it.mikeslab.persistify.object.User;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A bounded FIFO queue of writes that could not reach the storage backend.
+ * <p>
+ * Writes are kept in memory up to a capacity, then spilled to NDJSON segment files. Once spilling started,
+ * every following write is spilled too so that the replay order always matches the order of the writes.
+ * Writes left over when the outbox is closed are spilled as well, and picked up again on the next start.
+ */
+public class WriteOutbox {
+
+    private static final String SEGMENT_PREFIX = "segment-";
+    private static final String SEGMENT_SUFFIX = ".ndjson";
+
+    /**
+     * A queued write: either a player registration or a level update.
+     *
+     * @param registration whether the user is registered rather than having its level set
+     * @param user the server name, UUID, level and, for registrations, name of the player
+     */
+    public record PendingWrite(boolean registration, User user) {}
+
+    private final File folder;
+    private final int capacity;
+    private final long maxSpilled;
+    private final Logger logger;
+
+    private final Deque<PendingWrite> memory = new ArrayDeque<>();
+    private final Deque<File> segments = new ArrayDeque<>();
+    private final AtomicLong dropped = new AtomicLong();
+
+    private BufferedWriter segmentWriter;
+    private int segmentEntries;
+    private long spilled;
+    private long nextSegment;
+
+    /**
+     * Constructs a new WriteOutbox, recovering the segments spilled by a previous run.
+     *
+     * @param folder the folder segment files are spilled to
+     * @param capacity the number of writes kept in memory before spilling to disk, also the size of a segment
+     * @param maxSpilled the number of writes which can be spilled to disk before new writes are dropped
+     * @param logger the logger failures are reported to
+     */
+    public WriteOutbox(File folder, int capacity, long maxSpilled, Logger logger) {
+        this.folder = folder;
+        this.capacity = capacity;
+        this.maxSpilled = maxSpilled;
+        this.logger = logger;
+
+        File[] files = folder.listFiles((dir, name) -> name.startsWith(SEGMENT_PREFIX) && name.endsWith(SEGMENT_SUFFIX));
+        if (files != null) {
+            Arrays.stream(files)
+                    .sorted(Comparator.comparingLong(WriteOutbox::segmentNumber))
+                    .forEach(segments::addLast);
+        }
+
+        for (File segment : segments) {
+            spilled += countLines(segment);
+        }
+        nextSegment = segments.isEmpty() ? 0 : segmentNumber(segments.getLast()) + 1;
+
+        if (spilled > 0) {
+            logger.warning("Recovered " + spilled + " write(s) left over by a previous run, they will be replayed.");
+        }
+    }
+
+    /**
+     * Queues a write, spilling it to disk if the memory is full.
+     * The write is dropped if the spill limit has been reached.
+     *
+     * @param write the write to queue
+     */
+    public synchronized void add(PendingWrite write) {
+        if (spilled == 0 && memory.size() < capacity) {
+            memory.addLast(write);
+            return;
+        }
+
+        if (spilled >= maxSpilled) {
+            if (dropped.getAndIncrement() % 1000 == 0) {
+                logger.severe("The write outbox is full, writes are being dropped (" + dropped.get() + " so far).");
+            }
+            return;
+        }
+
+        try {
+            spill(write);
+        } catch (IOException e) {
+            dropped.incrementAndGet();
+            logger.log(Level.SEVERE, "Unable to spill a write to disk, it has been dropped", e);
+        }
+    }
+
+    /**
+     * Removes the oldest writes from the outbox.
+     *
+     * @param max the maximum number of writes to remove
+     * @return the removed writes, oldest first, or an empty list if the outbox is empty
+     */
+    public synchronized List<PendingWrite> poll(int max) {
+        if (memory.isEmpty() && !segments.isEmpty()) {
+            loadOldestSegment();
+        }
+
+        List<PendingWrite> batch = new ArrayList<>(Math.min(max, memory.size()));
+        while (batch.size() < max && !memory.isEmpty()) {
+            batch.add(memory.pollFirst());
+        }
+        return batch;
+    }
+
+    /**
+     * Puts writes which could not be replayed back at the head of the outbox.
+     *
+     * @param batch the writes returned by {@link #poll(int)}
+     */
+    public synchronized void requeue(List<PendingWrite> batch) {
+        for (int i = batch.size() - 1; i >= 0; i--) {
+            memory.addFirst(batch.get(i));
+        }
+    }
+
+    public synchronized boolean isEmpty() {
+        return memory.isEmpty() && spilled == 0;
+    }
+
+    public synchronized long size() {
+        return memory.size() + spilled;
+    }
+
+    public synchronized long getSpilled() {
+        return spilled;
+    }
+
+    public long getDropped() {
+        return dropped.get();
+    }
+
+    /**
+     * Spills the writes still in memory to disk, ahead of the segments already spilled.
+     */
+    public synchronized void close() {
+        try {
+            closeSegmentWriter();
+            if (!memory.isEmpty()) {
+                long number = segments.isEmpty() ? nextSegment : segmentNumber(segments.getFirst()) - 1;
+                File segment = writeSegment(number, memory);
+                segments.addFirst(segment);
+                spilled += memory.size();
+                logger.warning("Spilled " + memory.size() + " pending write(s) to disk, they will be replayed on the next start.");
+                memory.clear();
+            }
+        } catch (IOException e) {
+            logger.log(Level.SEVERE, "Unable to spill " + memory.size() + " pending write(s) to disk, they are lost", e);
+        }
+    }
+
+
+    private void spill(PendingWrite write) throws IOException {
+        if (segmentWriter == null || segmentEntries >= capacity) {
+            closeSegmentWriter();
+            File segment = segmentFile(nextSegment++);
+            segmentWriter = Files.newBufferedWriter(segment.toPath(), StandardCharsets.UTF_8,
+                    StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE);
+            segments.addLast(segment);
+        }
+
+        segmentWriter.write(toJson(write));
+        segmentWriter.newLine();
+        // Flushed on every write so that a crash loses as little as possible
+        segmentWriter.flush();
+        segmentEntries++;
+        spilled++;
+    }
+
+    private void loadOldestSegment() {
+        File segment = segments.peekFirst();
+        try {
+            // Never read the segment still being written
+            if (segments.size() == 1) {
+                closeSegmentWriter();
+            }
+
+            List<PendingWrite> writes = new ArrayList<>();
+            try (BufferedReader reader = Files.newBufferedReader(segment.toPath(), StandardCharsets.UTF_8)) {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    if (!line.isBlank()) {
+                        writes.add(fromJson(line));
+                    }
+                }
+            }
+
+            memory.addAll(writes);
+            segments.pollFirst();
+            spilled = Math.max(0, spilled - writes.size());
+            Files.deleteIfExists(segment.toPath());
+        } catch (IOException | RuntimeException e) {
+            logger.log(Level.SEVERE, "Unable to read spilled writes from " + segment.getName() + ", the segment is skipped", e);
+            segments.pollFirst();
+            spilled = 0;
+            for (File remaining : segments) {
+                spilled += countLines(remaining);
+            }
+        }
+    }
+
+    private File writeSegment(long number, Iterable<PendingWrite> writes) throws IOException {
+        File segment = segmentFile(number);
+        try (BufferedWriter writer = Files.newBufferedWriter(segment.toPath(), StandardCharsets.UTF_8)) {
+            for (PendingWrite write : writes) {
+                writer.write(toJson(write));
+                writer.newLine();
+            }
+        }
+        return segment;
+    }
+
+    private void closeSegmentWriter() throws IOException {
+        if (segmentWriter != null) {
+            segmentWriter.close();
+            segmentWriter = null;
+            segmentEntries = 0;
+        }
+    }
+
+    private File segmentFile(long number) {
+        if (!folder.exists() && !folder.mkdirs()) {
+            throw new UncheckedIOException(new IOException("Unable to create " + folder));
+        }
+        return new File(folder, SEGMENT_PREFIX + number + SEGMENT_SUFFIX);
+    }
+
+    private long countLines(File segment) {
+        try (BufferedReader reader = Files.newBufferedReader(segment.toPath(), StandardCharsets.UTF_8)) {
+            return reader.lines().filter(line -> !line.isBlank()).count();
+        } catch (IOException | UncheckedIOException e) {
+            logger.log(Level.SEVERE, "Unable to read spilled writes from " + segment.getName(), e);
+            return 0;
+        }
+    }
+
+    private static long segmentNumber(File segment) {
+        String name = segment.getName();
+        return Long.parseLong(name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length()));
+    }
+
+    private static String toJson(PendingWrite write) {
+        User user = write.user();
+        JsonObject json = new JsonObject();
+        json.addProperty("type", write.registration() ? "register" : "level");
+        json.addProperty("server", user.getServerName());
+        json.addProperty("uuid", user.getPlayerUUID().toString());
+        json.addProperty("name", user.getPlayerName());
+        json.addProperty("level", user.getLevel());
+        return json.toString();
+    }
+
+    private static PendingWrite fromJson(String line) {
+        JsonObject json = JsonParser.parseString(line).getAsJsonObject();
+        User user = new User(
+                json.get("server").getAsString(),
+                json.has("name") && !json.get("name").isJsonNull() ? json.get("name").getAsString() : null,
+                UUID.fromString(json.get("uuid").getAsString()),
+                json.get("level").getAsInt());
+        return new PendingWrite(json.get("type").getAsString().equals("register"), user);
+    }
+
+}
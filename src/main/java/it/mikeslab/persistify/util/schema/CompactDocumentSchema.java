@@ -0,0 +1,76 @@
+/*
+ *  Copyright (c) 2023, MikesLab
+ *  All rights reserved.
+ *
+ *  Redistribution and use in source and binary forms, with or without
+ *  modification, are permitted provided that the following conditions are met:
+ *  1. Redistributions of source code must retain the above copyright notice, this
+ *     list of conditions and the following disclaimer.
+ *  2. Redistributions in binary form must reproduce the above copyright notice,
+ *     this list of conditions and the following disclaimer in the documentation
+ *     and/or other materials provided with the distribution.
+ *  3. Neither the name of the copyright holder nor the names of its
+ *     contributors may be used to endorse or promote products derived from
+ *     this software without specific prior written permission.
+ *  4. Redistribution of this software in source or binary forms shall be free
+ *     of all charges or fees to the recipient of this software.
+ *
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ *  AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ *  IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ *  DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ *  FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ *  DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ *  SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ *  CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ *  OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ *  OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package it.mikeslab.persistify.util.schema;
+
+import com.mongodb.client.model.Filters;
+import com.mongodb.client.model.IndexOptions;
+
+import java.util.UUID;
+
+/**
+ * A compact schema: single-letter field names, UUIDs as BSON binary subtype 4 and server names replaced by
+ * small integer ids. The client must be configured with the standard UUID representation.
+ */
+public class CompactDocumentSchema extends DocumentSchema {
+
+    private final ServerIdRegistry serverIds;
+
+    public CompactDocumentSchema(ServerIdRegistry serverIds) {
+        this.serverIds = serverIds;
+    }
+
+    @Override
+    public String field(SchemaField field) {
+        return field.getCompactName();
+    }
+
+    @Override
+    public Object encodeServer(String serverName) {
+        return serverIds.resolve(serverName);
+    }
+
+    @Override
+    public String decodeServer(Object value) {
+        return serverIds.nameOf(((Number) value).intValue());
+    }
+
+    @Override
+    public Object encodeUuid(UUID playerUUID) {
+        return playerUUID;
+    }
+
+    @Override
+    public IndexOptions keyIndexOptions() {
+        // Partial, so that legacy documents waiting for migration don't collide on missing fields
+        return new IndexOptions().unique(true).name("s_u")
+                .partialFilterExpression(Filters.exists(field(SchemaField.UUID)));
+    }
+
+}
@@ -0,0 +1,144 @@
+/*
+ *  Copyright (c) 2023, MikesLab
+ *  All rights reserved.
+ *
+ *  Redistribution and use in source and binary forms, with or without
+ *  modification, are permitted provided that the following conditions are met:
+ *  1. Redistributions of source code must retain the above copyright notice, this
+ *     list of conditions and the following disclaimer.
+ *  2. Redistributions in binary form must reproduce the above copyright notice,
+ *     this list of conditions and the following disclaimer in the documentation
+ *     and/or other materials provided with the distribution.
+ *  3. Neither the name of the copyright holder nor the names of its
+ *     contributors may be used to endorse or promote products derived from
+ *     this software without specific prior written permission.
+ *  4. Redistribution of this software in source or binary forms shall be free
+ *     of all charges or fees to the recipient of this software.
+ *
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ *  AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ *  IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ *  DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ *  FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ *  DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ *  SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ *  CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ *  OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ *  OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package it.mikeslab.persistify.util.schema;
+
+import com.mongodb.client.model.Filters;
+import com.mongodb.client.model.IndexOptions;
+import it.mikeslab.persistify.object.User;
+import it.mikeslab.persistify.object.UserKey;
+import org.bson.Document;
+import org.bson.conversions.Bson;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+/**
+ * Describes how player data is laid out in MongoDB documents.
+ */
+public abstract class DocumentSchema {
+
+    /**
+     * @param field the field
+     * @return the name of the field in this schema
+     */
+    public abstract String field(SchemaField field);
+
+    /**
+     * @param serverName the name of a BungeeCord server
+     * @return the value stored for the server name
+     */
+    public abstract Object encodeServer(String serverName);
+
+    /**
+     * @param value a value stored for a server name
+     * @return the name of the BungeeCord server
+     */
+    public abstract String decodeServer(Object value);
+
+    /**
+     * @param playerUUID the UUID of a player
+     * @return the value stored for the UUID
+     */
+    public abstract Object encodeUuid(UUID playerUUID);
+
+    /**
+     * @return the options of the unique (server, uuid) index
+     */
+    public abstract IndexOptions keyIndexOptions();
+
+    /**
+     * @param value a value stored for a UUID, either a UUID or its string form
+     * @return the UUID
+     */
+    public UUID decodeUuid(Object value) {
+        return value instanceof UUID uuid ? uuid : UUID.fromString(value.toString());
+    }
+
+    /**
+     * @param serverName the name of the BungeeCord server
+     * @param playerUUID the UUID of the player
+     * @return a filter matching the document of the player on the server
+     */
+    public Document filter(String serverName, UUID playerUUID) {
+        return new Document(field(SchemaField.SERVER), encodeServer(serverName))
+                .append(field(SchemaField.UUID), encodeUuid(playerUUID));
+    }
+
+    /**
+     * @param keys the players and servers
+     * @return a filter matching the documents of the players on the servers, with one $in per server
+     */
+    public Bson filter(Collection<UserKey> keys) {
+        Map<String, List<Object>> uuidsByServer = new HashMap<>();
+        for (UserKey key : keys) {
+            uuidsByServer.computeIfAbsent(key.serverName(), serverName -> new ArrayList<>()).add(encodeUuid(key.playerUUID()));
+        }
+
+        List<Bson> filters = new ArrayList<>(uuidsByServer.size());
+        uuidsByServer.forEach((serverName, uuids) -> filters.add(Filters.and(
+                Filters.eq(field(SchemaField.SERVER), encodeServer(serverName)),
+                Filters.in(field(SchemaField.UUID), uuids))));
+        return Filters.or(filters);
+    }
+
+    /**
+     * @param doc a player document
+     * @return the player data held by the document
+     */
+    public User decodeUser(Document doc) {
+        User user = new User(
+                decodeServer(doc.get(field(SchemaField.SERVER))),
+                doc.getString(field(SchemaField.NAME)),
+                decodeUuid(doc.get(field(SchemaField.UUID))),
+                doc.getInteger(field(SchemaField.LEVEL), 0));
+
+        Number experience = doc.get(field(SchemaField.EXPERIENCE), Number.class);
+        if (experience != null) {
+            user.setExperience(experience.longValue());
+        }
+
+        Date lastSeen = doc.getDate(field(SchemaField.LAST_SEEN));
+        if (lastSeen != null) {
+            user.setLastSeen(lastSeen.getTime());
+        }
+
+        Document data = doc.get(field(SchemaField.DATA), Document.class);
+        if (data != null) {
+            user.getData().putAll(data);
+        }
+        return user;
+    }
+
+}
@@ -0,0 +1,266 @@
+/*
+ *  Copyright (c) 2023, MikesLab
+ *  All rights reserved.
+ *
+ *  Redistribution and use in source and binary forms, with or without
+ *  modification, are permitted provided that the following conditions are met:
+ *  1. Redistributions of source code must retain the above copyright notice, this
+ *     list of conditions and the following disclaimer.
+ *  2. Redistributions in binary form must reproduce the above copyright notice,
+ *     this list of conditions and the following disclaimer in the documentation
+ *     and/or other materials provided with the distribution.
+ *  3. Neither the name of the copyright holder nor the names of its
+ *     contributors may be used to endorse or promote products derived from
+ *     this software without specific prior written permission.
+ *  4. Redistribution of this software in source or binary forms shall be free
+ *     of all charges or fees to the recipient of this software.
+ *
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ *  AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ *  IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ *  DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ *  FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ *  DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ *  SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ *  CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ *  OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ *  OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package it.mikeslab.persistify.util.schema;
+
+import com.mongodb.ErrorCategory;
+import com.mongodb.MongoBulkWriteException;
+import com.mongodb.MongoCommandException;
+import com.mongodb.MongoWriteException;
+import com.mongodb.bulk.BulkWriteError;
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.model.BulkWriteOptions;
+import com.mongodb.client.model.Filters;
+import com.mongodb.client.model.FindOneAndUpdateOptions;
+import com.mongodb.client.model.IndexOptions;
+import com.mongodb.client.model.Indexes;
+import com.mongodb.client.model.Projections;
+import com.mongodb.client.model.ReplaceOneModel;
+import com.mongodb.client.model.ReturnDocument;
+import com.mongodb.client.model.Updates;
+import com.mongodb.client.model.WriteModel;
+import org.bson.Document;
+import org.bson.conversions.Bson;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.logging.Logger;
+
+/**
+ * Rewrites the legacy documents of a collection into the compact schema, in place and in batches.
+ * Fields which are not part of the schema are copied unchanged.
+ * <p>
+ * A player registered again under the compact schema before their legacy document was migrated ends up with two
+ * documents. The legacy one is then merged into the compact one instead of replacing it.
+ */
+public class SchemaMigration {
+
+    private final MongoCollection<Document> collection;
+    private final LegacyDocumentSchema source = new LegacyDocumentSchema();
+    private final CompactDocumentSchema target;
+    private final int batchSize;
+    private final Logger logger;
+
+    private long migrated;
+    private long failed;
+
+    public SchemaMigration(MongoCollection<Document> collection, CompactDocumentSchema target, int batchSize, Logger logger) {
+        this.collection = collection;
+        this.target = target;
+        this.batchSize = batchSize;
+        this.logger = logger;
+    }
+
+    /**
+     * Makes the legacy (serverName, uuid) index partial, so that it only covers legacy documents and never collides
+     * on compact ones, then checks over it whether legacy documents are left.
+     * The index is kept once the migration is complete: it is empty, and tells the next start there is nothing to migrate.
+     *
+     * @return true if the collection still holds legacy documents
+     */
+    public boolean prepare() {
+        IndexOptions options = legacyIndexOptions();
+        for (Document index : collection.listIndexes()) {
+            if (options.getName().equals(index.getString("name")) && !index.containsKey("partialFilterExpression")) {
+                collection.dropIndex(options.getName());
+            }
+        }
+
+        try {
+            collection.createIndex(Indexes.ascending(source.field(SchemaField.SERVER), source.field(SchemaField.UUID)), options);
+        } catch (MongoCommandException e) {
+            // Most likely duplicated legacy documents left over by older versions
+            logger.warning("Unable to create the partial legacy index: " + e.getErrorMessage());
+        }
+
+        return collection.find(legacyFilter()).projection(Projections.include("_id")).first() != null;
+    }
+
+    /**
+     * Migrates every legacy document. Only one batch of documents is held in memory at a time.
+     *
+     * @return the number of migrated documents
+     */
+    public long run() {
+        List<Document> batch = new ArrayList<>(batchSize);
+
+        for (Document doc : collection.find(legacyFilter()).batchSize(batchSize)) {
+            batch.add(doc);
+            if (batch.size() >= batchSize) {
+                write(batch);
+            }
+        }
+        write(batch);
+
+        logger.info("Schema migration completed: " + migrated + " document(s) migrated, " + failed + " failed.");
+        return migrated;
+    }
+
+    /**
+     * @return true if the last {@link #run()} migrated every legacy document
+     */
+    public boolean isComplete() {
+        return failed == 0;
+    }
+
+    /**
+     * Migrates the legacy documents matching a filter right away. While the collection has not been migrated yet,
+     * this is done whenever a player is not found under the compact schema, so that they are never registered again
+     * on top of their legacy data.
+     *
+     * @param filter a filter in the legacy schema
+     * @return the migrated documents, in the compact schema
+     */
+    public List<Document> migrate(Bson filter) {
+        List<Document> docs = new ArrayList<>();
+        for (Document legacy : collection.find(Filters.and(legacyFilter(), filter))) {
+            Document compact = convert(legacy);
+            try {
+                collection.replaceOne(Filters.eq("_id", legacy.get("_id")), compact);
+            } catch (MongoWriteException e) {
+                if (e.getError().getCategory() != ErrorCategory.DUPLICATE_KEY) {
+                    throw e;
+                }
+                compact = merge(legacy, compact);
+            }
+            if (compact != null) {
+                docs.add(compact);
+            }
+        }
+        return docs;
+    }
+
+
+    private Bson legacyFilter() {
+        return Filters.exists(source.field(SchemaField.UUID));
+    }
+
+    private IndexOptions legacyIndexOptions() {
+        return new IndexOptions().unique(true)
+                .name(source.keyIndexOptions().getName())
+                .partialFilterExpression(legacyFilter());
+    }
+
+    private Document convert(Document legacy) {
+        Document compact = new Document(legacy);
+        for (SchemaField field : SchemaField.values()) {
+            Object value = compact.remove(source.field(field));
+            if (value == null) {
+                continue;
+            }
+            compact.put(target.field(field), switch (field) {
+                case SERVER -> target.encodeServer((String) value);
+                case UUID -> target.encodeUuid(source.decodeUuid(value));
+                default -> value;
+            });
+        }
+        return compact;
+    }
+
+    /**
+     * Folds a legacy document into the compact document of the same player, then deletes it.
+     * The highest level and last seen time win, experience adds up, the name and the data fields of the compact
+     * document are more recent and are kept.
+     *
+     * @return the merged document, or null if the compact document no longer exists
+     */
+    private Document merge(Document legacy, Document converted) {
+        String dataField = target.field(SchemaField.DATA);
+        Document filter = new Document(target.field(SchemaField.SERVER), converted.get(target.field(SchemaField.SERVER)))
+                .append(target.field(SchemaField.UUID), converted.get(target.field(SchemaField.UUID)));
+        Document current = collection.find(filter).first();
+        if (current == null) {
+            return null;
+        }
+
+        List<Bson> updates = new ArrayList<>();
+        Object level = converted.get(target.field(SchemaField.LEVEL));
+        if (level != null) {
+            updates.add(Updates.max(target.field(SchemaField.LEVEL), level));
+        }
+        Object lastSeen = converted.get(target.field(SchemaField.LAST_SEEN));
+        if (lastSeen != null) {
+            updates.add(Updates.max(target.field(SchemaField.LAST_SEEN), lastSeen));
+        }
+        Number experience = converted.get(target.field(SchemaField.EXPERIENCE), Number.class);
+        if (experience != null && experience.longValue() != 0) {
+            updates.add(Updates.inc(target.field(SchemaField.EXPERIENCE), experience));
+        }
+        if (current.get(target.field(SchemaField.NAME)) == null && converted.get(target.field(SchemaField.NAME)) != null) {
+            updates.add(Updates.set(target.field(SchemaField.NAME), converted.get(target.field(SchemaField.NAME))));
+        }
+        Document data = converted.get(dataField, Document.class);
+        Document currentData = current.get(dataField, Document.class);
+        if (data != null) {
+            data.forEach((name, value) -> {
+                if (currentData == null || !currentData.containsKey(name)) {
+                    updates.add(Updates.set(dataField + "." + name, value));
+                }
+            });
+        }
+
+        Document merged = updates.isEmpty()
+                ? current
+                : collection.findOneAndUpdate(filter, Updates.combine(updates), new FindOneAndUpdateOptions().returnDocument(ReturnDocument.AFTER));
+        collection.deleteOne(Filters.eq("_id", legacy.get("_id")));
+        return merged;
+    }
+
+    private void write(List<Document> batch) {
+        if (batch.isEmpty()) {
+            return;
+        }
+
+        List<WriteModel<Document>> writes = new ArrayList<>(batch.size());
+        for (Document doc : batch) {
+            writes.add(new ReplaceOneModel<>(Filters.eq("_id", doc.get("_id")), convert(doc)));
+        }
+
+        try {
+            migrated += collection.bulkWrite(writes, new BulkWriteOptions().ordered(false)).getModifiedCount();
+        } catch (MongoBulkWriteException e) {
+            migrated += e.getWriteResult().getModifiedCount();
+            for (BulkWriteError error : e.getWriteErrors()) {
+                Document legacy = batch.get(error.getIndex());
+                if (error.getCategory() == ErrorCategory.DUPLICATE_KEY) {
+                    // The player was registered again under the compact schema before being migrated
+                    merge(legacy, convert(legacy));
+                    migrated++;
+                } else {
+                    failed++;
+                    logger.warning("Document " + legacy.get("_id") + " could not be migrated: " + error.getMessage());
+                }
+            }
+        }
+
+        logger.info("Schema migration in progress: " + migrated + " document(s) migrated...");
+        batch.clear();
+    }
+
+}
@@ -0,0 +1,122 @@
+/*
+ *  Copyright (c) 2023, MikesLab
+ *  All rights reserved.
+ *
+ *  Redistribution and use in source and binary forms, with or without
+ *  modification, are permitted provided that the following conditions are met:
+ *  1. Redistributions of source code must retain the above copyright notice, this
+ *     list of conditions and the following disclaimer.
+ *  2. Redistributions in binary form must reproduce the above copyright notice,
+ *     this list of conditions and the following disclaimer in the documentation
+ *     and/or other materials provided with the distribution.
+ *  3. Neither the name of the copyright holder nor the names of its
+ *     contributors may be used to endorse or promote products derived from
+ *     this software without specific prior written permission.
+ *  4. Redistribution of this software in source or binary forms shall be free
+ *     of all charges or fees to the recipient of this software.
+ *
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ *  AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ *  IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ *  DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ *  FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ *  DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ *  SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ *  CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ *  OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ *  OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package it.mikeslab.persistify.util.schema;
+
+import com.mongodb.ErrorCategory;
+import com.mongodb.MongoWriteException;
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.model.Filters;
+import com.mongodb.client.model.FindOneAndUpdateOptions;
+import com.mongodb.client.model.ReturnDocument;
+import com.mongodb.client.model.Updates;
+import org.bson.Document;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Maps BungeeCord server names to small integer ids shared by every proxy.
+ * <p>
+ * Each server is stored as {_id: name, id: number}, next to a counter document with the integer _id 0.
+ * Mappings never change once created, so they are cached forever.
+ */
+public class ServerIdRegistry {
+
+    private static final int COUNTER_ID = 0;
+
+    private final MongoCollection<Document> servers;
+    private final Map<String, Integer> ids = new ConcurrentHashMap<>();
+    private final Map<Integer, String> names = new ConcurrentHashMap<>();
+
+    public ServerIdRegistry(MongoCollection<Document> servers) {
+        this.servers = servers;
+        for (Document doc : servers.find(Filters.type("_id", "string"))) {
+            cache(doc);
+        }
+    }
+
+    /**
+     * Gets the id of a server, allocating one if the server has never been seen.
+     *
+     * @param serverName the name of the server
+     * @return the id of the server
+     */
+    public int resolve(String serverName) {
+        Integer id = ids.get(serverName);
+        if (id != null) {
+            return id;
+        }
+
+        Document doc = servers.find(Filters.eq("_id", serverName)).first();
+        if (doc == null) {
+            Document counter = servers.findOneAndUpdate(
+                    Filters.eq("_id", COUNTER_ID),
+                    Updates.inc("next", 1),
+                    new FindOneAndUpdateOptions().upsert(true).returnDocument(ReturnDocument.AFTER));
+            try {
+                servers.insertOne(new Document("_id", serverName).append("id", counter.getInteger("next")));
+            } catch (MongoWriteException e) {
+                // Another proxy registered the server first, its id wins
+                if (e.getError().getCategory() != ErrorCategory.DUPLICATE_KEY) {
+                    throw e;
+                }
+            }
+            doc = servers.find(Filters.eq("_id", serverName)).first();
+        }
+        return cache(doc);
+    }
+
+    /**
+     * @param id the id of a server
+     * @return the name of the server
+     */
+    public String nameOf(int id) {
+        String name = names.get(id);
+        if (name == null) {
+            Document doc = servers.find(Filters.eq("id", id)).first();
+            if (doc == null) {
+                throw new IllegalStateException("Unknown server id " + id);
+            }
+            cache(doc);
+            name = doc.getString("_id");
+        }
+        return name;
+    }
+
+
+    private int cache(Document doc) {
+        String name = doc.getString("_id");
+        int id = doc.getInteger("id");
+        ids.put(name, id);
+        names.put(id, name);
+        return id;
+    }
+
+}
@@ -0,0 +1,99 @@
+/*
+ *  Copyright (c) 2023, MikesLab
+ *  All rights reserved.
+ *
+ *  Redistribution and use in source and binary forms, with or without
+ *  modification, are permitted provided that the following conditions are met:
+ *  1. Redistributions of source code must retain the above copyright notice, this
+ *     list of conditions and the following disclaimer.
+ *  2. Redistributions in binary form must reproduce the above copyright notice,
+ *     this list of conditions and the following disclaimer in the documentation
+ *     and/or other materials provided with the distribution.
+ *  3. Neither the name of the copyright holder nor the names of its
+ *     contributors may be used to endorse or promote products derived from
+ *     this software without specific prior written permission.
+ *  4. Redistribution of this software in source or binary forms shall be free
+ *     of all charges or fees to the recipient of this software.
+ *
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ *  AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ *  IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ *  DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ *  FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ *  DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ *  SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ *  CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ *  OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ *  OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package it.mikeslab.persistify.bench;
+
+import it.mikeslab.persistify.object.User;
+import it.mikeslab.persistify.util.LocalStorageHandler;
+import it.mikeslab.persistify.util.StorageHandler;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.Random;
+import java.util.UUID;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.stream.Stream;
+
+/**
+ * Fixtures shared by the benchmarks. Player UUIDs come from a seeded generator so runs are reproducible.
+ */
+final class BenchmarkSupport {
+
+    static final String SERVER_NAME = "lobby";
+    static final Logger LOGGER = Logger.getLogger("Persistify-Benchmark");
+
+    static {
+        LOGGER.setLevel(Level.WARNING);
+    }
+
+    private BenchmarkSupport() {
+    }
+
+    static UUID[] playerUUIDs(int count, long seed) {
+        Random random = new Random(seed);
+        UUID[] uuids = new UUID[count];
+        for (int i = 0; i < count; i++) {
+            uuids[i] = new UUID(random.nextLong(), random.nextLong());
+        }
+        return uuids;
+    }
+
+    static File createDataFolder() {
+        try {
+            return Files.createTempDirectory("persistify-bench").toFile();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    static StorageHandler createStorage(File dataFolder) {
+        // Compaction is left to the end of the run so that it does not skew the measurements
+        return new LocalStorageHandler(new File(dataFolder, "storage.dat"), 3600, 1000.0, LOGGER);
+    }
+
+    static void registerAll(StorageHandler storage, UUID[] uuids) {
+        for (int i = 0; i < uuids.length; i++) {
+            storage.registerUser(new User(SERVER_NAME, "Player" + i, uuids[i], 0));
+        }
+    }
+
+    static void deleteDataFolder(File dataFolder) {
+        try (Stream<Path> paths = Files.walk(dataFolder.toPath())) {
+            paths.sorted(Comparator.reverseOrder()).map(Path::toFile).forEach(File::delete);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+}
@@ -0,0 +1,107 @@
+/*
+ *  Copyright (c) 2023, MikesLab
+ *  All rights reserved.
+ *
+ *  Redistribution and use in source and binary forms, with or without
+ *  modification, are permitted provided that the following conditions are met:
+ *  1. Redistributions of source code must retain the above copyright notice, this
+ *     list of conditions and the following disclaimer.
+ *  2. Redistributions in binary form must reproduce the above copyright notice,
+ *     this list of conditions and the following disclaimer in the documentation
+ *     and/or other materials provided with the distribution.
+ *  3. Neither the name of the copyright holder nor the names of its
+ *     contributors may be used to endorse or promote products derived from
+ *     this software without specific prior written permission.
+ *  4. Redistribution of this software in source or binary forms shall be free
+ *     of all charges or fees to the recipient of this software.
+ *
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ *  AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ *  IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ *  DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ *  FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ *  DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ *  SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ *  CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ *  OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ *  OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package it.mikeslab.persistify.bench;
+
+import it.mikeslab.persistify.object.User;
+import it.mikeslab.persistify.util.PersistenceExecutor;
+import it.mikeslab.persistify.util.StorageHandler;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.util.UUID;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Time taken to register thousands of distinct players arriving at once through the persistence pipeline,
+ * as happens when a proxy restarts and every player reconnects.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 10)
+@Fork(1)
+public class JoinStormBenchmark {
+
+    @Param({"5000"})
+    public int players;
+
+    @Param({"4"})
+    public int threads;
+
+    private File dataFolder;
+    private StorageHandler storage;
+    private PersistenceExecutor executor;
+    private UUID[] uuids;
+    private long seed;
+
+    @Setup(Level.Iteration)
+    public void setUp() {
+        dataFolder = BenchmarkSupport.createDataFolder();
+        storage = BenchmarkSupport.createStorage(dataFolder);
+        executor = new PersistenceExecutor(threads, 1024, BenchmarkSupport.LOGGER);
+        // Every iteration gets players which have never been registered
+        uuids = BenchmarkSupport.playerUUIDs(players, ++seed);
+    }
+
+    @TearDown(Level.Iteration)
+    public void tearDown() {
+        executor.shutdown(30, TimeUnit.SECONDS);
+        storage.disconnect();
+        BenchmarkSupport.deleteDataFolder(dataFolder);
+    }
+
+    @Benchmark
+    public void joinStorm() throws InterruptedException {
+        CountDownLatch registered = new CountDownLatch(uuids.length);
+        for (int i = 0; i < uuids.length; i++) {
+            User user = new User(BenchmarkSupport.SERVER_NAME, "Player" + i, uuids[i], 0);
+            executor.execute(() -> {
+                storage.registerUser(user);
+                registered.countDown();
+            });
+        }
+        registered.await();
+    }
+
+}
@@ -0,0 +1,109 @@
+/*
+ *  Copyright (c) 2023, MikesLab
+ *  All rights reserved.
+ *
+ *  Redistribution and use in source and binary forms, with or without
+ *  modification, are permitted provided that the following conditions are met:
+ *  1. Redistributions of source code must retain the above copyright notice, this
+ *     list of conditions and the following disclaimer.
+ *  2. Redistributions in binary form must reproduce the above copyright notice,
+ *     this list of conditions and the following disclaimer in the documentation
+ *     and/or other materials provided with the distribution.
+ *  3. Neither the name of the copyright holder nor the names of its
+ *     contributors may be used to endorse or promote products derived from
+ *     this software without specific prior written permission.
+ *  4. Redistribution of this software in source or binary forms shall be free
+ *     of all charges or fees to the recipient of this software.
+ *
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ *  AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ *  IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ *  DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ *  FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ *  DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ *  SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ *  CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ *  OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ *  OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package it.mikeslab.persistify.bench;
+
+import it.mikeslab.persistify.object.User;
+import it.mikeslab.persistify.util.StorageHandler;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Single-threaded latency of the storage operations on the hot paths.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@Threads(1)
+public class StorageLatencyBenchmark {
+
+    @Param({"1000", "100000"})
+    public int players;
+
+    private File dataFolder;
+    private StorageHandler storage;
+    private UUID[] uuids;
+    private int next;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        dataFolder = BenchmarkSupport.createDataFolder();
+        storage = BenchmarkSupport.createStorage(dataFolder);
+        uuids = BenchmarkSupport.playerUUIDs(players, 42L);
+        BenchmarkSupport.registerAll(storage, uuids);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        storage.disconnect();
+        BenchmarkSupport.deleteDataFolder(dataFolder);
+    }
+
+    @Benchmark
+    public int registerUser() {
+        UUID playerUUID = nextPlayer();
+        return storage.registerUser(new User(BenchmarkSupport.SERVER_NAME, "Player", playerUUID, 0));
+    }
+
+    @Benchmark
+    public int getLevelByUUID() {
+        return storage.getLevelByUUID(BenchmarkSupport.SERVER_NAME, nextPlayer());
+    }
+
+    @Benchmark
+    public void setLevelByUUID() {
+        storage.setLevelByUUID(BenchmarkSupport.SERVER_NAME, nextPlayer(), next);
+    }
+
+
+    private UUID nextPlayer() {
+        next = (next + 1) % uuids.length;
+        return uuids[next];
+    }
+
+}
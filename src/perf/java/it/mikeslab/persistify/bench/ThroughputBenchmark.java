@@ -0,0 +1,153 @@
+/*
+ *  Copyright (c) 2023, MikesLab
+ *  All rights reserved.
+ *
+ *  Redistribution and use in source and binary forms, with or without
+ *  modification, are permitted provided that the following conditions are met:
+ *  1. Redistributions of source code must retain the above copyright notice, this
+ *     list of conditions and the following disclaimer.
+ *  2. Redistributions in binary form must reproduce the above copyright notice,
+ *     this list of conditions and the following disclaimer in the documentation
+ *     and/or other materials provided with the distribution.
+ *  3. Neither the name of the copyright holder nor the names of its
+ *     contributors may be used to endorse or promote products derived from
+ *     this software without specific prior written permission.
+ *  4. Redistribution of this software in source or binary forms shall be free
+ *     of all charges or fees to the recipient of this software.
+ *
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ *  AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ *  IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ *  DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ *  FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ *  DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ *  SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ *  CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ *  OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ *  OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package it.mikeslab.persistify.bench;
+
+import it.mikeslab.persistify.api.APIManager;
+import it.mikeslab.persistify.coherence.CacheCoherence;
+import it.mikeslab.persistify.coherence.InProcessTransport;
+import it.mikeslab.persistify.level.ExperienceEngine;
+import it.mikeslab.persistify.level.LevelCurve;
+import it.mikeslab.persistify.object.User;
+import it.mikeslab.persistify.util.Leaderboard;
+import it.mikeslab.persistify.util.LevelCache;
+import it.mikeslab.persistify.util.PersistenceExecutor;
+import it.mikeslab.persistify.util.SessionManager;
+import it.mikeslab.persistify.util.StorageHandler;
+import it.mikeslab.persistify.util.WriteBehindBuffer;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Multi-threaded throughput of the storage operations, both direct and through the APIManager
+ * read cache and write-behind buffer.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@Threads(8)
+public class ThroughputBenchmark {
+
+    private static final int PLAYERS = 10_000;
+
+    private File dataFolder;
+    private StorageHandler storage;
+    private PersistenceExecutor executor;
+    private WriteBehindBuffer writeBehindBuffer;
+    private ExperienceEngine experienceEngine;
+    private APIManager apiManager;
+    private UUID[] uuids;
+
+    @State(Scope.Thread)
+    public static class Cursor {
+        private int next;
+
+        UUID nextPlayer(UUID[] uuids) {
+            next = (next + 1) % uuids.length;
+            return uuids[next];
+        }
+    }
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        dataFolder = BenchmarkSupport.createDataFolder();
+        storage = BenchmarkSupport.createStorage(dataFolder);
+        uuids = BenchmarkSupport.playerUUIDs(PLAYERS, 42L);
+        BenchmarkSupport.registerAll(storage, uuids);
+
+        executor = new PersistenceExecutor(4, 1024, BenchmarkSupport.LOGGER);
+        writeBehindBuffer = new WriteBehindBuffer(storage, 500, 1000, 10_000, BenchmarkSupport.LOGGER);
+        LevelCache levelCache = new LevelCache(PLAYERS, 600);
+        CacheCoherence cacheCoherence = new CacheCoherence(levelCache);
+        cacheCoherence.start(new InProcessTransport());
+        experienceEngine = new ExperienceEngine(storage, new LevelCurve(List.of(100, 250, 500, 1000), 1000), 1000, BenchmarkSupport.LOGGER);
+        apiManager = new APIManager(storage, writeBehindBuffer, levelCache, executor, cacheCoherence, new Leaderboard(storage, true),
+                new SessionManager(storage, writeBehindBuffer), experienceEngine, CompletableFuture.completedFuture(null));
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        executor.shutdown(10, TimeUnit.SECONDS);
+        experienceEngine.close();
+        writeBehindBuffer.close();
+        storage.disconnect();
+        BenchmarkSupport.deleteDataFolder(dataFolder);
+    }
+
+    @Benchmark
+    public int storageRegisterUser(Cursor cursor) {
+        return storage.registerUser(new User(BenchmarkSupport.SERVER_NAME, "Player", cursor.nextPlayer(uuids), 0));
+    }
+
+    @Benchmark
+    public int storageGetLevel(Cursor cursor) {
+        return storage.getLevelByUUID(BenchmarkSupport.SERVER_NAME, cursor.nextPlayer(uuids));
+    }
+
+    @Benchmark
+    public void storageSetLevel(Cursor cursor) {
+        storage.setLevelByUUID(BenchmarkSupport.SERVER_NAME, cursor.nextPlayer(uuids), cursor.next);
+    }
+
+    @Benchmark
+    public int apiGetPlayerLevel(Cursor cursor) {
+        return apiManager.getPlayerLevel(BenchmarkSupport.SERVER_NAME, cursor.nextPlayer(uuids));
+    }
+
+    @Benchmark
+    public void apiSetPlayerLevel(Cursor cursor) {
+        apiManager.setPlayerLevel(BenchmarkSupport.SERVER_NAME, cursor.nextPlayer(uuids), cursor.next);
+    }
+
+    @Benchmark
+    public void apiAddXp(Cursor cursor) {
+        apiManager.addXp(BenchmarkSupport.SERVER_NAME, cursor.nextPlayer(uuids), 10);
+    }
+
+}
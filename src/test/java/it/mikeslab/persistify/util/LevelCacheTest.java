@@ -0,0 +1,88 @@
+/*
+ *  Copyright (c) 2023, MikesLab
+ *  All rights reserved.
+ *
+ *  Redistribution and use in source and binary forms, with or without
+ *  modification, are permitted provided that the following conditions are met:
+ *  1. Redistributions of source code must retain the above copyright notice, this
+ *     list of conditions and the following disclaimer.
+ *  2. Redistributions in binary form must reproduce the above copyright notice,
+ *     this list of conditions and the following disclaimer in the documentation
+ *     and/or other materials provided with the distribution.
+ *  3. Neither the name of the copyright holder nor the names of its
+ *     contributors may be used to endorse or promote products derived from
+ *     this software without specific prior written permission.
+ *  4. Redistribution of this software in source or binary forms shall be free
+ *     of all charges or fees to the recipient of this software.
+ *
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ *  AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ *  IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ *  DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ *  FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ *  DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ *  SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ *  CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ *  OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ *  OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package it.mikeslab.persistify.util;
+
+import it.mikeslab.persistify.object.UserKey;
+import org.junit.jupiter.api.Test;
+
+import java.util.UUID;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+class LevelCacheTest {
+
+    private final UUID playerUUID = UUID.randomUUID();
+    private final UUID otherUUID = UUID.randomUUID();
+
+    @Test
+    void invalidatesEveryLevelOfAPlayerOnly() {
+        LevelCache cache = new LevelCache(100, 600);
+        cache.put(new UserKey("lobby", playerUUID), 3);
+        cache.warm(new UserKey("survival", playerUUID), 7);
+        cache.put(new UserKey("lobby", otherUUID), 5);
+
+        cache.invalidatePlayer(playerUUID);
+
+        assertNull(cache.get(new UserKey("lobby", playerUUID)));
+        assertNull(cache.get(new UserKey("survival", playerUUID)));
+        assertEquals(5, cache.get(new UserKey("lobby", otherUUID)));
+        assertEquals(2, cache.getDisconnectEvictions());
+    }
+
+    @Test
+    void keepsTrackingLevelsCachedAgainAfterAnEviction() {
+        LevelCache cache = new LevelCache(1, 600);
+        UserKey key = new UserKey("lobby", playerUUID);
+        cache.put(key, 3);
+        // Evicts the player's level, which is then cached again
+        cache.put(new UserKey("lobby", otherUUID), 5);
+        cache.put(key, 4);
+
+        cache.invalidatePlayer(playerUUID);
+
+        assertNull(cache.get(key));
+        assertEquals(1, cache.getDisconnectEvictions());
+    }
+
+    @Test
+    void keepsTrackingLevelsAcrossAReconfiguration() {
+        LevelCache cache = new LevelCache(100, 600);
+        UserKey key = new UserKey("lobby", playerUUID);
+        cache.put(key, 3);
+
+        cache.reconfigure(200, 600);
+        cache.invalidatePlayer(playerUUID);
+
+        assertNull(cache.get(key));
+        assertEquals(1, cache.getDisconnectEvictions());
+    }
+
+}
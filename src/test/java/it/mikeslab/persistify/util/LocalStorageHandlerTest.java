@@ -0,0 +1,229 @@
+/*
+ *  Copyright (c) 2023, MikesLab
+ *  All rights reserved.
+ *
+ *  Redistribution and use in source and binary forms, with or without
+ *  modification, are permitted provided that the following conditions are met:
+ *  1. Redistributions of source code must retain the above copyright notice, this
+ *     list of conditions and the following disclaimer.
+ *  2. Redistributions in binary form must reproduce the above copyright notice,
+ *     this list of conditions and the following disclaimer in the documentation
+ *     and/or other materials provided with the distribution.
+ *  3. Neither the name of the copyright holder nor the names of its
+ *     contributors may be used to endorse or promote products derived from
+ *     this software without specific prior written permission.
+ *  4. Redistribution of this software in source or binary forms shall be free
+ *     of all charges or fees to the recipient of this software.
+ *
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ *  AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ *  IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ *  DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ *  FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ *  DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ *  SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ *  CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ *  OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ *  OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package it.mikeslab.persistify.util;
+
+import it.mikeslab.persistify.object.User;
+import it.mikeslab.persistify.object.UserKey;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.UUID;
+import java.util.logging.Logger;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class LocalStorageHandlerTest {
+
+    private static final Logger LOGGER = Logger.getLogger(LocalStorageHandlerTest.class.getName());
+    private static final long COMPACTION_INTERVAL = 3600;
+    private static final double COMPACTION_RATIO = 4.0;
+
+    @TempDir
+    File folder;
+
+    @Test
+    void replaysTheAppendedRecords() {
+        File file = new File(folder, "players.dat");
+        UUID playerUUID = UUID.randomUUID();
+        UserKey key = new UserKey("lobby", playerUUID);
+
+        LocalStorageHandler storage = open(file);
+        storage.registerUser(new User("lobby", "Steve", playerUUID, 0));
+        storage.setLevels(Map.of(key, 12));
+        storage.addExperience(UUID.randomUUID(), Map.of(key, 150L));
+
+        // Opened before the first one is closed, so the file is replayed as it was appended
+        LocalStorageHandler replayed = open(file);
+        try {
+            assertEquals(12, replayed.getLevelByUUID("lobby", playerUUID));
+            assertEquals(150, replayed.getExperience("lobby", playerUUID));
+        } finally {
+            replayed.disconnect();
+            storage.disconnect();
+        }
+    }
+
+    @Test
+    void compactionKeepsOnlyTheLatestRecords() {
+        File file = new File(folder, "players.dat");
+        UUID playerUUID = UUID.randomUUID();
+        UserKey key = new UserKey("lobby", playerUUID);
+
+        LocalStorageHandler storage = open(file);
+        storage.registerUser(new User("lobby", "Steve", playerUUID, 0));
+        for (int level = 1; level <= 100; level++) {
+            storage.setLevels(Map.of(key, level));
+        }
+        long appendedLength = file.length();
+        storage.disconnect();
+
+        // Every record of the player has the same length
+        assertEquals(appendedLength / 101, file.length());
+
+        LocalStorageHandler reopened = open(file);
+        try {
+            assertEquals(100, reopened.getLevelByUUID("lobby", playerUUID));
+        } finally {
+            reopened.disconnect();
+        }
+    }
+
+    @Test
+    void truncatesARecordWhoseLengthOverrunsTheFile() throws IOException {
+        File file = new File(folder, "players.dat");
+        UUID playerUUID = storeOnePlayer(file);
+        long validLength = file.length();
+
+        try (DataOutputStream out = new DataOutputStream(new FileOutputStream(file, true))) {
+            out.writeInt(Integer.MAX_VALUE);
+            out.write(new byte[3]);
+        }
+
+        assertRecovered(file, playerUUID, validLength);
+    }
+
+    @Test
+    void truncatesAPartiallyWrittenRecord() throws IOException {
+        File file = new File(folder, "players.dat");
+        UUID playerUUID = storeOnePlayer(file);
+        long validLength = file.length();
+
+        try (DataOutputStream out = new DataOutputStream(new FileOutputStream(file, true))) {
+            out.writeInt(100);
+            out.write(new byte[10]);
+        }
+
+        assertRecovered(file, playerUUID, validLength);
+    }
+
+    @Test
+    void skipsARecordWhosePlayerDataOverrunsIt() throws IOException {
+        File file = new File(folder, "players.dat");
+        UUID playerUUID = storeOnePlayer(file);
+        appendRecord(file, playerUUID, Integer.MAX_VALUE, new byte[0]);
+
+        assertReadPastInvalidRecord(file, playerUUID);
+    }
+
+    @Test
+    void skipsARecordWithMalformedPlayerData() throws IOException {
+        File file = new File(folder, "players.dat");
+        UUID playerUUID = storeOnePlayer(file);
+        byte[] data = "{\"coins\":".getBytes(StandardCharsets.UTF_8);
+        appendRecord(file, playerUUID, data.length, data);
+
+        assertReadPastInvalidRecord(file, playerUUID);
+    }
+
+    @Test
+    void retriedExperienceBatchesAreAppliedOnce() {
+        File file = new File(folder, "players.dat");
+        UserKey key = new UserKey("lobby", UUID.randomUUID());
+        UUID batchId = UUID.randomUUID();
+
+        LocalStorageHandler storage = open(file);
+        try {
+            storage.addExperience(batchId, Map.of(key, 10L));
+            assertEquals(Map.of(key, 10L), storage.addExperience(batchId, Map.of(key, 10L)));
+            storage.addExperience(UUID.randomUUID(), Map.of(key, 10L));
+
+            assertEquals(20, storage.getExperience("lobby", key.playerUUID()));
+        } finally {
+            storage.disconnect();
+        }
+    }
+
+
+    private static LocalStorageHandler open(File file) {
+        return new LocalStorageHandler(file, COMPACTION_INTERVAL, COMPACTION_RATIO, LOGGER);
+    }
+
+    private static UUID storeOnePlayer(File file) {
+        UUID playerUUID = UUID.randomUUID();
+        LocalStorageHandler storage = open(file);
+        storage.registerUser(new User("lobby", "Steve", playerUUID, 0));
+        storage.setLevels(Map.of(new UserKey("lobby", playerUUID), 7));
+        storage.disconnect();
+        return playerUUID;
+    }
+
+    private static void assertRecovered(File file, UUID playerUUID, long validLength) {
+        long fileLength = file.length();
+        LocalStorageHandler storage = open(file);
+        try {
+            assertEquals(7, storage.getLevelByUUID("lobby", playerUUID));
+            assertEquals(validLength, file.length());
+            assertEquals(fileLength - validLength, new File(file.getPath() + ".discarded").length());
+        } finally {
+            storage.disconnect();
+        }
+    }
+
+    private static void appendRecord(File file, UUID playerUUID, int dataLength, byte[] data) throws IOException {
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+        DataOutputStream payload = new DataOutputStream(buffer);
+        payload.writeUTF("lobby");
+        payload.writeLong(playerUUID.getMostSignificantBits());
+        payload.writeLong(playerUUID.getLeastSignificantBits());
+        payload.writeUTF("Steve");
+        payload.writeInt(99);
+        payload.writeInt(dataLength);
+        payload.write(data);
+        try (DataOutputStream out = new DataOutputStream(new FileOutputStream(file, true))) {
+            out.writeInt(buffer.size());
+            buffer.writeTo(out);
+        }
+    }
+
+    private static void assertReadPastInvalidRecord(File file, UUID playerUUID) {
+        long fileLength = file.length();
+        LocalStorageHandler storage = open(file);
+        storage.setLevels(Map.of(new UserKey("lobby", playerUUID), 8));
+
+        // Replayed before the first one is closed, so the invalid record is still in the file
+        LocalStorageHandler replayed = open(file);
+        try {
+            assertTrue(file.length() > fileLength);
+            assertEquals(8, replayed.getLevelByUUID("lobby", playerUUID));
+        } finally {
+            replayed.disconnect();
+            storage.disconnect();
+        }
+    }
+
+}
@@ -0,0 +1,101 @@
+/*
+ *  Copyright (c) 2023, MikesLab
+ *  All rights reserved.
+ *
+ *  Redistribution and use in source and binary forms, with or without
+ *  modification, are permitted provided that the following conditions are met:
+ *  1. Redistributions of source code must retain the above copyright notice, this
+ *     list of conditions and the following disclaimer.
+ *  2. Redistributions in binary form must reproduce the above copyright notice,
+ *     this list of conditions and the following disclaimer in the documentation
+ *     and/or other materials provided with the distribution.
+ *  3. Neither the name of the copyright holder nor the names of its
+ *     contributors may be used to endorse or promote products derived from
+ *     this software without specific prior written permission.
+ *  4. Redistribution of this software in source or binary forms shall be free
+ *     of all charges or fees to the recipient of this software.
+ *
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ *  AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ *  IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ *  DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ *  FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ *  DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ *  SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ *  CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ *  OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ *  OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package it.mikeslab.persistify.util;
+
+import com.mongodb.MongoSocketException;
+import com.mongodb.ServerAddress;
+import it.mikeslab.persistify.object.UserKey;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.mockito.invocation.InvocationOnMock;
+
+import java.io.File;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.mockito.ArgumentMatchers.anyMap;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+
+class ResilientStorageHandlerTest {
+
+    private static final Logger LOGGER = Logger.getLogger(ResilientStorageHandlerTest.class.getName());
+    private static final long NEVER = TimeUnit.HOURS.toMillis(1);
+
+    private final StorageHandler delegate = mock(StorageHandler.class);
+    private final List<Map<UserKey, Integer>> writes = new CopyOnWriteArrayList<>();
+
+    @TempDir
+    File folder;
+
+    @Test
+    void dropsOnlyTheQueuedWritesTheStorageRejects() {
+        UserKey rejected = new UserKey("lobby", UUID.randomUUID());
+        UserKey accepted = new UserKey("lobby", UUID.randomUUID());
+        boolean[] reachable = {false};
+        doAnswer(invocation -> {
+            Map<UserKey, Integer> levels = invocation.getArgument(0);
+            if (!reachable[0]) {
+                throw new MongoSocketException("Connection refused", new ServerAddress());
+            }
+            if (levels.containsKey(rejected)) {
+                throw new IllegalArgumentException("Rejected");
+            }
+            return record(invocation);
+        }).when(delegate).setLevels(anyMap());
+
+        WriteOutbox outbox = new WriteOutbox(folder, 100, 100, LOGGER);
+        ResilientStorageHandler handler = new ResilientStorageHandler(delegate, new CircuitBreaker(1, 0), outbox, NEVER, 100, LOGGER);
+        handler.setLevels(Map.of(rejected, 3));
+        handler.setLevels(Map.of(accepted, 5));
+        assertEquals(2, handler.getQueuedWrites());
+
+        reachable[0] = true;
+        handler.disconnect();
+
+        assertEquals(List.of(Map.of(accepted, 5)), writes);
+        assertEquals(0, handler.getQueuedWrites());
+    }
+
+    private Object record(InvocationOnMock invocation) {
+        Map<UserKey, Integer> levels = invocation.getArgument(0);
+        if (!levels.isEmpty()) {
+            writes.add(new HashMap<>(levels));
+        }
+        return null;
+    }
+
+}
@@ -0,0 +1,222 @@
+/*
+ *  Copyright (c) 2023, MikesLab
+ *  All rights reserved.
+ *
+ *  Redistribution and use in source and binary forms, with or without
+ *  modification, are permitted provided that the following conditions are met:
+ *  1. Redistributions of source code must retain the above copyright notice, this
+ *     list of conditions and the following disclaimer.
+ *  2. Redistributions in binary form must reproduce the above copyright notice,
+ *     this list of conditions and the following disclaimer in the documentation
+ *     and/or other materials provided with the distribution.
+ *  3. Neither the name of the copyright holder nor the names of its
+ *     contributors may be used to endorse or promote products derived from
+ *     this software without specific prior written permission.
+ *  4. Redistribution of this software in source or binary forms shall be free
+ *     of all charges or fees to the recipient of this software.
+ *
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ *  AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ *  IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ *  DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ *  FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ *  DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ *  SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ *  CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ *  OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ *  OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package it.mikeslab.persistify.util;
+
+import it.mikeslab.persistify.object.UserKey;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.invocation.InvocationOnMock;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.anyMap;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.timeout;
+import static org.mockito.Mockito.verify;
+
+class WriteBehindBufferTest {
+
+    private static final Logger LOGGER = Logger.getLogger(WriteBehindBufferTest.class.getName());
+    private static final long NEVER = TimeUnit.HOURS.toMillis(1);
+
+    private final StorageHandler dbHandler = mock(StorageHandler.class);
+    private final List<Map<UserKey, Integer>> writes = new CopyOnWriteArrayList<>();
+    private final List<Thread> writers = new CopyOnWriteArrayList<>();
+    private WriteBehindBuffer buffer;
+
+    @BeforeEach
+    void recordWrites() {
+        doAnswer(this::record).when(dbHandler).setLevels(anyMap());
+    }
+
+    @AfterEach
+    void close() {
+        if (buffer != null) {
+            buffer.close();
+        }
+    }
+
+    @Test
+    void coalescesUpdatesOfTheSamePlayer() {
+        buffer = new WriteBehindBuffer(dbHandler, 100, NEVER, 1000, LOGGER);
+        UserKey key = key();
+
+        buffer.setLevel(key, 1);
+        buffer.setLevel(key, 2);
+
+        assertEquals(1, buffer.getPendingCount());
+        assertEquals(1, buffer.getCoalescedWrites());
+        assertEquals(2, buffer.getPendingLevel(key));
+
+        buffer.flush();
+
+        assertEquals(List.of(Map.of(key, 2)), writes);
+        assertEquals(0, buffer.getPendingCount());
+        assertNull(buffer.getPendingLevel(key));
+        assertEquals(1, buffer.getFlushedEntries());
+    }
+
+    @Test
+    void flushesASinglePlayer() {
+        buffer = new WriteBehindBuffer(dbHandler, 100, NEVER, 1000, LOGGER);
+        UserKey lobby = key();
+        UserKey survival = new UserKey("survival", lobby.playerUUID());
+        UserKey other = key();
+        buffer.setLevel(lobby, 1);
+        buffer.setLevel(survival, 2);
+        buffer.setLevel(other, 3);
+
+        buffer.flushPlayer(lobby.playerUUID());
+
+        assertEquals(List.of(Map.of(lobby, 1, survival, 2)), writes);
+        assertEquals(3, buffer.getPendingLevel(other));
+    }
+
+    @Test
+    void completesAsyncUpdatesOnceWritten() {
+        buffer = new WriteBehindBuffer(dbHandler, 100, NEVER, 1000, LOGGER);
+        UserKey key = key();
+
+        CompletableFuture<Void> replaced = buffer.setLevelAsync(key, 1);
+        CompletableFuture<Void> latest = buffer.setLevelAsync(key, 2);
+        assertFalse(replaced.isDone());
+
+        buffer.flush();
+
+        // The replaced update is written by the flush carrying the latest one
+        assertTrue(replaced.isDone() && !replaced.isCompletedExceptionally());
+        assertTrue(latest.isDone() && !latest.isCompletedExceptionally());
+    }
+
+    @Test
+    void keepsUpdatesWhoseFlushFailed() {
+        buffer = new WriteBehindBuffer(dbHandler, 100, NEVER, 1000, LOGGER);
+        UserKey key = key();
+        buffer.setLevel(key, 5);
+        doAnswer(invocation -> {
+            throw new IllegalStateException("Storage unavailable");
+        }).doAnswer(this::record).when(dbHandler).setLevels(anyMap());
+
+        assertThrows(IllegalStateException.class, buffer::flush);
+        assertEquals(5, buffer.getPendingLevel(key));
+
+        buffer.flush();
+
+        assertEquals(List.of(Map.of(key, 5)), writes);
+    }
+
+    @Test
+    void failsAsyncUpdatesWhoseFlushFailed() {
+        buffer = new WriteBehindBuffer(dbHandler, 100, NEVER, 1000, LOGGER);
+        CompletableFuture<Void> update = buffer.setLevelAsync(key(), 5);
+        doAnswer(invocation -> {
+            throw new IllegalStateException("Storage unavailable");
+        }).doAnswer(this::record).when(dbHandler).setLevels(anyMap());
+
+        assertThrows(IllegalStateException.class, buffer::flush);
+
+        assertTrue(update.isCompletedExceptionally());
+    }
+
+    @Test
+    void failedFlushNeverOverwritesNewerUpdates() {
+        buffer = new WriteBehindBuffer(dbHandler, 100, NEVER, 1000, LOGGER);
+        UserKey key = key();
+        buffer.setLevel(key, 1);
+        doAnswer(invocation -> {
+            // Set while the flush is writing the previous level
+            buffer.setLevel(key, 2);
+            throw new IllegalStateException("Storage unavailable");
+        }).doAnswer(this::record).when(dbHandler).setLevels(anyMap());
+
+        assertThrows(IllegalStateException.class, buffer::flush);
+        assertEquals(2, buffer.getPendingLevel(key));
+
+        buffer.flush();
+
+        assertEquals(List.of(Map.of(key, 2)), writes);
+    }
+
+    @Test
+    void flushesEarlyOnceTheFlushSizeIsReached() {
+        buffer = new WriteBehindBuffer(dbHandler, 2, NEVER, 1000, LOGGER);
+
+        buffer.setLevel(key(), 1);
+        buffer.setLevel(key(), 2);
+
+        verify(dbHandler, timeout(5000)).setLevels(anyMap());
+    }
+
+    @Test
+    void neverWritesOnTheCallersThread() {
+        buffer = new WriteBehindBuffer(dbHandler, 1, NEVER, 1, LOGGER);
+
+        buffer.setLevel(key(), 1);
+        buffer.setLevel(key(), 2);
+
+        verify(dbHandler, timeout(5000).atLeastOnce()).setLevels(anyMap());
+        assertFalse(writers.contains(Thread.currentThread()));
+    }
+
+    @Test
+    void rejectsNonPositiveFlushIntervals() {
+        assertThrows(IllegalArgumentException.class, () -> new WriteBehindBuffer(dbHandler, 100, 0, 1000, LOGGER));
+
+        buffer = new WriteBehindBuffer(dbHandler, 100, NEVER, 1000, LOGGER);
+        assertThrows(IllegalArgumentException.class, () -> buffer.reconfigure(100, -1, 1000));
+    }
+
+
+    private Object record(InvocationOnMock invocation) {
+        Map<UserKey, Integer> levels = invocation.getArgument(0);
+        writes.add(new HashMap<>(levels));
+        writers.add(Thread.currentThread());
+        return null;
+    }
+
+    private static UserKey key() {
+        return new UserKey("lobby", UUID.randomUUID());
+    }
+
+}
@@ -0,0 +1,150 @@
+/*
+ *  Copyright (c) 2023, MikesLab
+ *  All rights reserved.
+ *
+ *  Redistribution and use in source and binary forms, with or without
+ *  modification, are permitted provided that the following conditions are met:
+ *  1. Redistributions of source code must retain the above copyright notice, this
+ *     list of conditions and the following disclaimer.
+ *  2. Redistributions in binary form must reproduce the above copyright notice,
+ *     this list of conditions and the following disclaimer in the documentation
+ *     and/or other materials provided with the distribution.
+ *  3. Neither the name of the copyright holder nor the names of its
+ *     contributors may be used to endorse or promote products derived from
+ *     this software without specific prior written permission.
+ *  4. Redistribution of this software in source or binary forms shall be free
+ *     of all charges or fees to the recipient of this software.
+ *
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ *  AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ *  IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ *  DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ *  FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ *  DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ *  SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ *  CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ *  OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ *  OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package it.mikeslab.persistify.util;
+
+import it.mikeslab.persistify.object.User;
+import it.mikeslab.persistify.util.WriteOutbox.PendingWrite;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.util.List;
+import java.util.UUID;
+import java.util.logging.Logger;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class WriteOutboxTest {
+
+    private static final Logger LOGGER = Logger.getLogger(WriteOutboxTest.class.getName());
+
+    @TempDir
+    File folder;
+
+    @Test
+    void spillsToDiskOnceTheMemoryIsFull() {
+        WriteOutbox outbox = new WriteOutbox(folder, 2, 100, LOGGER);
+        for (int i = 0; i < 5; i++) {
+            outbox.add(write(i));
+        }
+
+        assertEquals(5, outbox.size());
+        assertEquals(3, outbox.getSpilled());
+        assertEquals(List.of(0, 1), levels(outbox.poll(10)));
+        assertEquals(List.of(2, 3), levels(outbox.poll(10)));
+        assertEquals(List.of(4), levels(outbox.poll(10)));
+        assertTrue(outbox.isEmpty());
+        assertEquals(0, outbox.getSpilled());
+    }
+
+    @Test
+    void keepsTheOrderOnceSpilling() {
+        WriteOutbox outbox = new WriteOutbox(folder, 2, 100, LOGGER);
+        outbox.add(write(0));
+        outbox.add(write(1));
+        outbox.add(write(2));
+        assertEquals(List.of(0), levels(outbox.poll(1)));
+
+        // The memory has room again, but newer writes must stay behind the spilled ones
+        outbox.add(write(3));
+
+        assertEquals(List.of(1), levels(outbox.poll(10)));
+        assertEquals(List.of(2, 3), levels(outbox.poll(10)));
+    }
+
+    @Test
+    void requeuedWritesAreReplayedFirst() {
+        WriteOutbox outbox = new WriteOutbox(folder, 10, 100, LOGGER);
+        for (int i = 0; i < 3; i++) {
+            outbox.add(write(i));
+        }
+
+        outbox.requeue(outbox.poll(2));
+
+        assertEquals(List.of(0, 1, 2), levels(outbox.poll(10)));
+    }
+
+    @Test
+    void dropsWritesOnceTheSpillLimitIsReached() {
+        WriteOutbox outbox = new WriteOutbox(folder, 1, 1, LOGGER);
+        for (int i = 0; i < 3; i++) {
+            outbox.add(write(i));
+        }
+
+        assertEquals(2, outbox.size());
+        assertEquals(1, outbox.getDropped());
+    }
+
+    @Test
+    void replaysWritesLeftOverByAPreviousRun() {
+        WriteOutbox outbox = new WriteOutbox(folder, 2, 100, LOGGER);
+        for (int i = 0; i < 3; i++) {
+            outbox.add(write(i));
+        }
+        outbox.close();
+
+        WriteOutbox recovered = new WriteOutbox(folder, 2, 100, LOGGER);
+
+        assertEquals(3, recovered.size());
+        assertEquals(List.of(0, 1), levels(recovered.poll(10)));
+        List<PendingWrite> spilled = recovered.poll(10);
+        assertEquals(List.of(2), levels(spilled));
+        assertTrue(spilled.get(0).registration());
+        assertEquals("Player2", spilled.get(0).user().getPlayerName());
+        assertTrue(recovered.isEmpty());
+    }
+
+    @Test
+    void levelUpdatesKeepTheirType() {
+        WriteOutbox outbox = new WriteOutbox(folder, 1, 100, LOGGER);
+        outbox.add(write(0));
+        outbox.add(new PendingWrite(false, new User("lobby", null, UUID.randomUUID(), 7)));
+        outbox.poll(1);
+
+        PendingWrite update = outbox.poll(1).get(0);
+
+        assertFalse(update.registration());
+        assertEquals(7, update.user().getLevel());
+        assertNull(update.user().getPlayerName());
+    }
+
+
+    private static PendingWrite write(int level) {
+        return new PendingWrite(true, new User("lobby", "Player" + level, UUID.randomUUID(), level));
+    }
+
+    private static List<Integer> levels(List<PendingWrite> writes) {
+        return writes.stream().map(write -> write.user().getLevel()).toList();
+    }
+
+}